@@ -1,14 +1,20 @@
 package com.xbrother.lanproxy.client;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.xbrother.lanproxy.client.listener.ProxyChannelBorrowListener;
+import com.xbrother.lanproxy.common.ConcurrentLongMap;
 import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.LanMapping;
+import com.xbrother.lanproxy.protocol.StreamWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,12 +42,23 @@ public class ClientChannelMannager {
 
     private static Map<String, Channel> realServerChannels = new ConcurrentHashMap<String, Channel>(); // String 为 ProxyMessage 中的 userId 客户端唯一ID
 
+    /** 复用模式（v3）下的真实服务器连接 以流编号为键 每个数据包都要查找 */
+    private static ConcurrentLongMap<Channel> streamChannels = new ConcurrentLongMap<Channel>();
+
     private static ConcurrentLinkedQueue<Channel> proxyChannelPool = new ConcurrentLinkedQueue<Channel>(); // 非阻塞式的安全队列
 
     private static volatile Channel cmdChannel;
 
+    private static volatile Map<Integer, LanMapping> lanMappings = Collections.emptyMap(); // 服务端下发的代理映射表（v2 协议）
+
     private static Config config = Config.getInstance();
 
+    /** 真实服务器连接与数据连接（复用模式为控制连接）在同一个 EventLoop 上的隧道数 */
+    private static AtomicLong localTunnels = new AtomicLong();
+
+    /** 两端在不同 EventLoop 上的隧道数 */
+    private static AtomicLong remoteTunnels = new AtomicLong();
+
     public static void borrowProxyChannel(Bootstrap bootstrap, final ProxyChannelBorrowListener borrowListener) {
         Channel channel = proxyChannelPool.poll(); // 获取元素 并在队列中清除
         if (channel != null) {
@@ -93,6 +110,14 @@ public class ClientChannelMannager {
         return cmdChannel;
     }
 
+    public static void setLanMappings(Map<Integer, LanMapping> lanMappings) {
+        ClientChannelMannager.lanMappings = lanMappings;
+    }
+
+    public static LanMapping getLanMapping(int id) {
+        return lanMappings.get(id);
+    }
+
     public static void setRealServerChannelUserId(Channel realServerChannel, String userId) {
         realServerChannel.attr(Constants.USER_ID).set(userId);
     }
@@ -105,6 +130,10 @@ public class ClientChannelMannager {
         return realServerChannels.get(userId);
     }
 
+    public static Collection<Channel> getRealServerChannels() {
+        return realServerChannels.values();
+    }
+
     public static void addRealServerChannel(String userId, Channel realServerChannel) {
         realServerChannels.put(userId, realServerChannel);
     }
@@ -113,10 +142,43 @@ public class ClientChannelMannager {
         return realServerChannels.remove(userId);
     }
 
+    public static Channel getStreamChannel(long streamId) {
+        return streamChannels.get(streamId);
+    }
+
+    public static Collection<Channel> getStreamChannels() {
+        return streamChannels.values();
+    }
+
+    public static void addStreamChannel(long streamId, Channel realServerChannel) {
+        streamChannels.put(streamId, realServerChannel);
+    }
+
+    public static Channel removeStreamChannel(long streamId) {
+        return streamChannels.remove(streamId);
+    }
+
     public static boolean isRealServerReadable(Channel realServerChannel) {
         return realServerChannel.attr(CLIENT_CHANNEL_WRITEABLE).get() && realServerChannel.attr(USER_CHANNEL_WRITEABLE).get();
     }
 
+    /**
+     * 记录隧道两端连接是否在同一个 EventLoop 上
+     */
+    public static void recordTunnel(Channel realServerChannel, Channel proxyChannel) {
+        if (realServerChannel.eventLoop() == proxyChannel.eventLoop()) {
+            localTunnels.incrementAndGet();
+        } else {
+            remoteTunnels.incrementAndGet();
+        }
+    }
+
+    public static String getTunnelStats() {
+        long local = localTunnels.get();
+        long remote = remoteTunnels.get();
+        return "local=" + local + ", remote=" + remote + ", localRatio=" + (local + remote == 0 ? 0 : local * 100 / (local + remote)) + "%";
+    }
+
     public static void clearRealServerChannels() {
         logger.warn("channel closed, clear real server channels");
 
@@ -129,5 +191,12 @@ public class ClientChannelMannager {
         }
 
         realServerChannels.clear();
+
+        for (Channel realServerChannel : streamChannels.values()) {
+            removeStreamChannel(StreamWindow.get(realServerChannel).getId());
+            if (realServerChannel.isActive()) {
+                realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
     }
 }
@@ -11,22 +11,29 @@ import com.xbrother.lanproxy.client.listener.ChannelStatusListener;
 import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.common.container.Container;
 import com.xbrother.lanproxy.common.container.ContainerHelper;
+import com.xbrother.lanproxy.protocol.FragmentHandler;
 import com.xbrother.lanproxy.protocol.IdleCheckHandler;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
 import com.xbrother.lanproxy.protocol.ProxyMessage;
 import com.xbrother.lanproxy.protocol.ProxyMessageDecoder;
 import com.xbrother.lanproxy.protocol.ProxyMessageEncoder;
+import com.xbrother.lanproxy.protocol.Transport;
+import com.xbrother.lanproxy.protocol.Varints;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslHandler;
 
 public class ProxyClientContainer implements Container, ChannelStatusListener {
@@ -43,7 +50,11 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
 
     private static final int LENGTH_ADJUSTMENT = 0; // 添加到数据长度字段的补偿值
 
-    private NioEventLoopGroup workerGroup;
+    private static final Transport TRANSPORT = Transport.select(Config.getInstance().getStringValue("transport", Transport.AUTO)); // auto 为 Linux 上使用 epoll 其他系统使用 nio
+
+    private static final int TCP_USER_TIMEOUT = Config.getInstance().getIntValue("tcp.user.timeout", 0); // epoll 下与服务端连接的 TCP_USER_TIMEOUT 毫秒 为 0 时使用系统默认值
+
+    private EventLoopGroup workerGroup;
 
     private Bootstrap bootstrap;
 
@@ -58,10 +69,12 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
     public ProxyClientContainer() {
 
         // 初始化用于连接及处理IO操作线程组
-        workerGroup = new NioEventLoopGroup();
+        workerGroup = TRANSPORT.newEventLoopGroup(0);
         realServerBootstrap = new Bootstrap();
         realServerBootstrap.group(workerGroup);
-        realServerBootstrap.channel(NioSocketChannel.class);
+        realServerBootstrap.channel(TRANSPORT.socketChannelClass());
+        realServerBootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        TRANSPORT.configure(realServerBootstrap, 0);
         realServerBootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
@@ -71,7 +84,9 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
 
         bootstrap = new Bootstrap();
         bootstrap.group(workerGroup);
-        bootstrap.channel(NioSocketChannel.class);
+        bootstrap.channel(TRANSPORT.socketChannelClass());
+        bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        TRANSPORT.configure(bootstrap, TCP_USER_TIMEOUT);
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
@@ -85,7 +100,10 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
 
                 ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
                 ch.pipeline().addLast(new ProxyMessageEncoder());
-                ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME - 10, 0));
+                ch.pipeline().addLast(new WriteScheduler(config.getIntValue("scheduler.inflight.bytes", WriteScheduler.DEFAULT_MAX_IN_FLIGHT_BYTES),
+                        config.getIntValue("scheduler.queued.bytes", WriteScheduler.DEFAULT_MAX_QUEUED_BYTES)));
+                ch.pipeline().addLast(new FragmentHandler(config.getIntValue("fragment.size", FragmentHandler.DEFAULT_FRAGMENT_SIZE), FragmentHandler.DEFAULT_MAX_MESSAGE_LENGTH));
+                ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME - 10, IdleCheckHandler.DATA_CHANNEL_IDLE_TIME - 30));
                 ch.pipeline().addLast(new ClientChannelHandler(realServerBootstrap, bootstrap, ProxyClientContainer.this));
             }
         });
@@ -111,11 +129,18 @@ public class ProxyClientContainer implements Container, ChannelStatusListener {
                 if (future.isSuccess()) {
                     // 连接成功，向服务器发送客户端认证信息（clientKey）
                     ClientChannelMannager.setCmdChannel(future.channel());
-                    ProxyMessage proxyMessage = new ProxyMessage();
+                    IdleCheckHandler.setCmdChannel(future.channel());
+                    ProxyMessage proxyMessage = ProxyMessage.newInstance();
                     proxyMessage.setType(ProxyMessage.C_TYPE_AUTH);
                     proxyMessage.setUri(config.getStringValue("client.key"));
-
-                    future.channel().writeAndFlush(proxyMessage);
+                    // 声明客户端支持的协议版本、特性与单包最大长度 服务端以 AUTH_ACK 应答协商结果
+                    ByteBuf data = future.channel().alloc().buffer();
+                    data.writeByte(config.getIntValue("protocol.version", ProtocolVersion.V3));
+                    Varints.writeVarint(data, ClientChannelHandler.FEATURES);
+                    Varints.writeVarint(data, MAX_FRAME_LENGTH);
+                    proxyMessage.setData(data);
+
+                    future.channel().writeAndFlush(proxyMessage, future.channel().voidPromise());
                     sleepTimeMill = 1000;
                     logger.info("connect proxy server success, {}", future.channel());
                 } else {
@@ -5,7 +5,22 @@ import com.xbrother.lanproxy.client.listener.ProxyChannelBorrowListener;
 import com.xbrother.lanproxy.client.ClientChannelMannager;
 import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.HeartbeatProbe;
+import com.xbrother.lanproxy.protocol.LanMapping;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
 import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.RawRelayHandler;
+import com.xbrother.lanproxy.protocol.ReadCoalescingHandler;
+import com.xbrother.lanproxy.protocol.RelayFlusher;
+import com.xbrother.lanproxy.protocol.RttStats;
+import com.xbrother.lanproxy.protocol.SocketProfile;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.protocol.Varints;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,13 +32,48 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.CharsetUtil;
 
 
 public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessage> {
 
     private static Logger logger = LoggerFactory.getLogger(ClientChannelHandler.class);
 
+    /**
+     * 服务端允许时 数据连接绑定后是否切换为透传
+     */
+    private static final boolean RAW_ENABLE = Config.getInstance().getBooleanValue("raw.enable", true);
+
+    /**
+     * 客户端支持的特性 在认证消息中声明
+     */
+    public static final int FEATURES = (Config.getInstance().getBooleanValue("compress.enable", true) ? ProtocolVersion.FEATURE_COMPRESS : 0) | ProtocolVersion.FEATURE_BATCH | ProtocolVersion.FEATURE_FRAGMENT
+            | ProtocolVersion.FEATURE_RTT | (RAW_ENABLE ? ProtocolVersion.FEATURE_RAW : 0);
+
+    /** 合并小块读取时累积的最大字节数 */
+    private static final int COALESCE_SIZE = Config.getInstance().getIntValue("coalesce.size", 16 * 1024);
+
+    /** 合并小块读取时的最长等待时间 微秒 为 0 时每轮读取结束即发出 */
+    private static final long COALESCE_DELAY_MICROS = Config.getInstance().getIntValue("coalesce.delay.us", 0);
+
+    /** 控制连接主动探测往返时延的间隔 秒 */
+    private static final int HEARTBEAT_PROBE_INTERVAL = Config.getInstance().getIntValue("heartbeat.probe.interval", 10);
+
+    /**
+     * 转发时一轮读取中未 flush 数据的上限
+     */
+    public static final int MAX_PENDING_FLUSH_BYTES = Config.getInstance().getIntValue("flush.max.pending", RelayFlusher.DEFAULT_MAX_PENDING_BYTES);
+
+    /** 真实服务器连接注册到数据连接（复用模式为控制连接）的 EventLoop 上 */
+    private static final boolean LOOP_AFFINITY = Config.getInstance().getBooleanValue("loop.affinity", true);
+
+    /** 每个 EventLoop 上连接真实服务器的 Bootstrap */
+    private static final Map<EventLoop, Bootstrap> loopBootstraps = new ConcurrentHashMap<EventLoop, Bootstrap>();
+
+    private final RelayFlusher flusher = new RelayFlusher(MAX_PENDING_FLUSH_BYTES);
+
     private Bootstrap bootstrap;
 
     private Bootstrap proxyBootstrap;
@@ -50,26 +100,125 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
                 handleDisconnectMessage(ctx, proxyMessage);
                 break;
             case ProxyMessage.P_TYPE_TRANSFER:
+            case ProxyMessage.P_TYPE_TRANSFER_DEFLATE:
                 handleTransferMessage(ctx, proxyMessage);
                 break;
+            case ProxyMessage.TYPE_AUTH_ACK:
+                handleAuthAckMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_MAPPING:
+                handleMappingMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_WINDOW_UPDATE:
+                handleWindowUpdateMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_HEARTBEAT:
+                // 只应答带发送时间的探测 旧版本服务端的心跳不需要处理
+                if (HeartbeatProbe.isProbe(ctx.channel(), proxyMessage)) {
+                    flusher.write(ctx.channel(), HeartbeatProbe.newAck(proxyMessage), 0);
+                }
+                break;
+            case ProxyMessage.TYPE_HEARTBEAT_ACK:
+                HeartbeatProbe.onAck(ctx.channel(), proxyMessage);
+                break;
             default:
                 break;
         }
     }
 
+    // 服务端告知协商结果 之后按双方都支持的特性通信
+    private void handleAuthAckMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        ByteBuf data = proxyMessage.getData();
+        int version = data.readUnsignedByte();
+        long features = Varints.readVarint(data);
+        long maxFrameLength = Varints.readVarint(data);
+        if (features < 0 || maxFrameLength <= 0 || maxFrameLength > Integer.MAX_VALUE) {
+            logger.warn("malformed auth ack, {}", ctx.channel());
+            ctx.channel().close();
+            return;
+        }
+
+        ProtocolVersion.set(ctx.channel(), version);
+        ProtocolVersion.setFeatures(ctx.channel(), (int) features & FEATURES);
+        ProtocolVersion.setMaxFrameLength(ctx.channel(), (int) maxFrameLength);
+        logger.info("negotiated version {}, features {}, maxFrameLength {}", version, features, maxFrameLength);
+
+        if (ProtocolVersion.hasFeature(ctx.channel(), ProtocolVersion.FEATURE_RTT)) {
+            HeartbeatProbe.start(ctx.channel(), HEARTBEAT_PROBE_INTERVAL);
+        }
+    }
+
+    private void handleMappingMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Map<Integer, LanMapping> lanMappings = LanMapping.decode(proxyMessage.getData());
+        logger.info("received lan mappings, {}", lanMappings.values());
+        ClientChannelMannager.setLanMappings(lanMappings);
+
+        // serialNumber 为服务端协商后的协议版本 不带认证应答的旧服务端只通过映射表告知
+        if (proxyMessage.getSerialNumber() >= ProtocolVersion.V2) {
+            ProtocolVersion.set(ctx.channel(), (int) proxyMessage.getSerialNumber());
+        }
+    }
+
+    // 复用模式下服务端归还流的接收窗口
+    private void handleWindowUpdateMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel realServerChannel = ClientChannelMannager.getStreamChannel(proxyMessage.getSerialNumber());
+        StreamWindow window = realServerChannel == null ? null : StreamWindow.get(realServerChannel);
+        long increment = Varints.readVarint(proxyMessage.getData());
+        if (window != null && increment > 0 && increment <= Integer.MAX_VALUE) {
+            window.onWindowUpdate((int) increment);
+        }
+    }
+
     private void handleTransferMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (ProtocolVersion.isMux(ctx.channel())) {
+            // 复用模式下按流编号找到真实服务器连接
+            Channel realServerChannel = ClientChannelMannager.getStreamChannel(proxyMessage.getSerialNumber());
+            StreamWindow window = realServerChannel == null ? null : StreamWindow.get(realServerChannel);
+            ByteBuf data = window == null ? null : StreamCompressor.readData(realServerChannel, proxyMessage);
+            if (data == null) {
+                return;
+            }
+
+            int bytes = data.readableBytes();
+            if (!window.tryReceive(bytes)) {
+                // 对端不遵守窗口 关闭本端连接重置流
+                logger.warn("stream {} exceeds receive window, close real server channel {}", window.getId(), realServerChannel);
+                data.release();
+                realServerChannel.close();
+                return;
+            }
+            flusher.write(realServerChannel, data, bytes);
+            window.onDataReceived(bytes);
+            return;
+        }
+
         // 获取与数据传输连接绑定的控制连接
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (realServerChannel != null) {
-            ByteBuf buf = ctx.alloc().buffer(proxyMessage.getData().length);
-            buf.writeBytes(proxyMessage.getData());
             logger.debug("write data to real server, {}", realServerChannel);
-            // 将被代理客户端 的数据直接返回给代理服务器
-            realServerChannel.writeAndFlush(buf);
+            // 直接转发消息中的数据 未压缩时为 retain 后的原数据
+            ByteBuf data = StreamCompressor.readData(realServerChannel, proxyMessage);
+            if (data != null) {
+                flusher.write(realServerChannel, data, data.readableBytes());
+            }
         }
     }
 
     private void handleDisconnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (ProtocolVersion.isMux(ctx.channel())) {
+            Channel realServerChannel = ClientChannelMannager.removeStreamChannel(proxyMessage.getSerialNumber());
+            logger.debug("handleDisconnectMessage, stream {}, {}", proxyMessage.getSerialNumber(), realServerChannel);
+            if (realServerChannel != null) {
+                // 由服务端关闭的流不需要再通知服务端
+                StreamWindow window = StreamWindow.get(realServerChannel);
+                if (window != null) {
+                    window.close();
+                }
+                realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         logger.debug("handleDisconnectMessage, {}", realServerChannel);
         if (realServerChannel != null) {
@@ -86,84 +235,241 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     private void handleConnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
         final Channel cmdChannel = ctx.channel();
-        final String userId = proxyMessage.getUri();
+        final boolean v2 = ProtocolVersion.isV2(cmdChannel);
+        final boolean mux = ProtocolVersion.isMux(cmdChannel);
+        final long streamId = proxyMessage.getSerialNumber();
+        final String userId;
+        final boolean raw;
+        final boolean compress;
+        final boolean coalesce;
+        final int priority;
+        final SocketProfile socketProfile;
+        String lanInfo;
+        if (v2) {
+            // v2 协议流编号即用户编号 数据中只有映射编号
+            userId = String.valueOf(streamId);
+            LanMapping lanMapping = ClientChannelMannager.getLanMapping((int) Varints.readVarint(proxyMessage.getData()));
+            if (lanMapping == null) {
+                logger.warn("unknown lan mapping, userId {}", userId);
+                cmdChannel.writeAndFlush(newDisconnectMessage(userId, true), cmdChannel.voidPromise());
+                return;
+            }
+            lanInfo = lanMapping.getLan();
+
+            compress = lanMapping.isCompress();
+            coalesce = lanMapping.isCoalesce();
+            priority = lanMapping.getPriority();
+            socketProfile = lanMapping.getSocketProfile();
+
+            ByteBuf data = proxyMessage.getData();
+            raw = RAW_ENABLE && !mux && !compress && data.isReadable() && (data.readUnsignedByte() & ProtocolVersion.CONNECT_FLAG_RAW) != 0;
+        } else {
+            raw = false;
+            compress = false;
+            coalesce = false;
+            priority = WriteScheduler.PRIORITY_NORMAL;
+            socketProfile = null;
+            userId = proxyMessage.getUri();
+            lanInfo = proxyMessage.getData().toString(CharsetUtil.UTF_8);
+        }
 
-        String[] serverInfo = new String(proxyMessage.getData()).split(":");
-        String ip = serverInfo[0];
-        int port = Integer.parseInt(serverInfo[1]);
+        String[] serverInfo = lanInfo.split(":");
+        final String ip = serverInfo[0];
+        final int port = Integer.parseInt(serverInfo[1]);
         // 此时代理服务器充当的是客户端的角色 其发来的连接请求
         // 其连接到对象为相对于被代理客户端本地相对的IP与端口所在的服务 即 127.0.0.1:8080 192.168.1.112:22 这种
         logger.info("connect msg server ip:" + ip + " server port:" + port);
 
-        // 建立TCP连接 并注册回调函数
-        bootstrap.connect(ip, port).addListener(new ChannelFutureListener() {
+        if (mux) {
+            // 复用模式下真实服务器连接注册到控制连接的 EventLoop 上
+            realServerBootstrap(cmdChannel).connect(ip, port).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        Channel realServerChannel = future.channel();
+                        logger.debug("connect realserver success, {}", realServerChannel);
+                        initRealServerChannel(realServerChannel, socketProfile, compress, coalesce);
+                        ClientChannelMannager.recordTunnel(realServerChannel, cmdChannel);
+                        openStream(cmdChannel, streamId, realServerChannel, priority);
+                    } else {
+                        cmdChannel.writeAndFlush(newDisconnectMessage(userId, v2), cmdChannel.voidPromise());
+                    }
+                }
+            });
+            return;
+        }
+
+        // 先获取数据连接 再把真实服务器连接注册到数据连接的 EventLoop 上，两端的转发在同一个线程中完成
+        // 如果从队列中获取不到 就直接新建一个连接
+        ClientChannelMannager.borrowProxyChannel(proxyBootstrap, new ProxyChannelBorrowListener() {
             @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                // 连接后端服务器成功
-                if (future.isSuccess()) {
-                    // 连接到真实服务器的数据传送链路
-                    final Channel realServerChannel = future.channel();
-                    logger.debug("connect realserver success, {}", realServerChannel);
-
-                    realServerChannel.config().setOption(ChannelOption.AUTO_READ, false);
-
-                    // 获取连接
-                    // 如果从队列中获取不到 就直接新建一个连接
-                    ClientChannelMannager.borrowProxyChannel(proxyBootstrap, new ProxyChannelBorrowListener() {
-                        @Override
-                        public void success(Channel channel) {
-                            // 连接绑定 client-->proxy server 连接获取成功时 将获取到的client-proxy server连接与 client-->real server 连接绑定
-                            // realServerChannel 为被代理客户端连接相对于本地网络的IP及端口所建立的 channel
-                            // channel 为被代理客户端与代理服务之间建立连接的 channel
-                            channel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
-                            realServerChannel.attr(Constants.NEXT_CHANNEL).set(channel);
-
-                            // 远程绑定
-                            ProxyMessage proxyMessage = new ProxyMessage();
-                            proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
-                            proxyMessage.setUri(userId + "@" + Config.getInstance().getStringValue("client.key"));
-                            // 向代理服务器发送连接请求的消息包
-                            channel.writeAndFlush(proxyMessage);
+            public void success(final Channel channel) {
+                // 建立TCP连接 并注册回调函数
+                realServerBootstrap(channel).connect(ip, port).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            // 连接后端服务器失败 数据连接还没有使用，归还
+                            ClientChannelMannager.returnProxyChannel(channel);
+                            cmdChannel.writeAndFlush(newDisconnectMessage(userId, v2), cmdChannel.voidPromise());
+                            return;
+                        }
+
+                        // 连接到真实服务器的数据传送链路
+                        final Channel realServerChannel = future.channel();
+                        logger.debug("connect realserver success, {}", realServerChannel);
+                        realServerChannel.config().setOption(ChannelOption.AUTO_READ, false);
+                        initRealServerChannel(realServerChannel, socketProfile, compress, coalesce);
+                        ClientChannelMannager.recordTunnel(realServerChannel, channel);
+
+                        // 连接绑定 client-->proxy server 连接获取成功时 将获取到的client-proxy server连接与 client-->real server 连接绑定
+                        // realServerChannel 为被代理客户端连接相对于本地网络的IP及端口所建立的 channel
+                        // channel 为被代理客户端与代理服务之间建立连接的 channel
+                        channel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
+                        realServerChannel.attr(Constants.NEXT_CHANNEL).set(channel);
+                        // 数据连接会被复用 没有配置档案时恢复默认参数
+                        (socketProfile == null ? SocketProfile.defaults() : socketProfile).apply(channel);
 
-                            realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
-                            ClientChannelMannager.addRealServerChannel(userId, realServerChannel);
-                            ClientChannelMannager.setRealServerChannelUserId(realServerChannel, userId);
+                        // 远程绑定
+                        final ProxyMessage proxyMessage = ProxyMessage.newInstance();
+                        proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+                        if (v2) {
+                            // 数据连接跟随控制连接的协商结果
+                            ProtocolVersion.inherit(channel, cmdChannel);
+                            proxyMessage.setSerialNumber(streamId);
+                            proxyMessage.setUri(Config.getInstance().getStringValue("client.key"));
+                        } else {
+                            proxyMessage.setUri(userId + "@" + Config.getInstance().getStringValue("client.key"));
                         }
 
-                        @Override
-                        public void error(Throwable cause) {
-                            logger.warn("connect proxy server error:", cause.getMessage());
-                            ProxyMessage proxyMessage = new ProxyMessage();
-                            proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-                            proxyMessage.setUri(userId);
-                            cmdChannel.writeAndFlush(proxyMessage);
+                        if (raw) {
+                            // 在数据连接的 EventLoop 中发出 CONNECT 并立即切换为透传 保证之后读写的都是原始字节
+                            channel.attr(Constants.RAW_MODE).set(Boolean.TRUE);
+                            proxyMessage.setData(Unpooled.wrappedBuffer(new byte[] { ProtocolVersion.CONNECT_FLAG_RAW }));
+                            channel.eventLoop().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    channel.writeAndFlush(proxyMessage, channel.voidPromise());
+                                    RawRelayHandler.install(channel, MAX_PENDING_FLUSH_BYTES);
+                                }
+                            });
+                        } else {
+                            // 向代理服务器发送连接请求的消息包
+                            channel.writeAndFlush(proxyMessage, channel.voidPromise());
                         }
-                    });
 
-                } else {
-                    ProxyMessage proxyMessage = new ProxyMessage();
-                    proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-                    proxyMessage.setUri(userId);
-                    cmdChannel.writeAndFlush(proxyMessage);
-                }
+                        realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
+                        ClientChannelMannager.addRealServerChannel(userId, realServerChannel);
+                        ClientChannelMannager.setRealServerChannelUserId(realServerChannel, userId);
+                    }
+                });
+            }
+
+            @Override
+            public void error(Throwable cause) {
+                logger.warn("connect proxy server error:", cause.getMessage());
+                cmdChannel.writeAndFlush(newDisconnectMessage(userId, v2), cmdChannel.voidPromise());
             }
         });
     }
 
+    /**
+     * 连接真实服务器的 Bootstrap 开启亲和时注册到对端连接的 EventLoop 上
+     */
+    private Bootstrap realServerBootstrap(Channel peer) {
+        if (!LOOP_AFFINITY) {
+            return bootstrap;
+        }
+
+        EventLoop eventLoop = peer.eventLoop();
+        Bootstrap loopBootstrap = loopBootstraps.get(eventLoop);
+        if (loopBootstrap == null) {
+            loopBootstrap = bootstrap.clone(eventLoop);
+            loopBootstraps.put(eventLoop, loopBootstrap);
+        }
+        return loopBootstrap;
+    }
+
+    private static void initRealServerChannel(Channel realServerChannel, SocketProfile socketProfile, boolean compress, boolean coalesce) {
+        if (socketProfile != null) {
+            socketProfile.apply(realServerChannel);
+        }
+
+        if (compress) {
+            StreamCompressor.open(realServerChannel);
+        }
+        if (coalesce) {
+            ReadCoalescingHandler.install(realServerChannel, COALESCE_SIZE, COALESCE_DELAY_MICROS);
+        }
+    }
+
+    /**
+     * 复用模式下真实服务器连接作为流直接复用控制连接 不需要借用数据连接
+     */
+    private static void openStream(Channel cmdChannel, long streamId, Channel realServerChannel, int priority) {
+        StreamWindow.open(streamId, cmdChannel, realServerChannel).setPriority(priority);
+        realServerChannel.attr(Constants.NEXT_CHANNEL).set(cmdChannel);
+        ClientChannelMannager.addStreamChannel(streamId, realServerChannel);
+
+        // 通知服务端流已建立
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+        proxyMessage.setSerialNumber(streamId);
+        cmdChannel.writeAndFlush(proxyMessage, cmdChannel.voidPromise());
+    }
+
+    /**
+     * 通知服务端断开用户连接 v1 协议用户编号放在 uri 中 v2 协议放在流编号中
+     */
+    private static ProxyMessage newDisconnectMessage(String userId, boolean v2) {
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
+        if (v2) {
+            proxyMessage.setSerialNumber(Long.parseLong(userId));
+        } else {
+            proxyMessage.setUri(userId);
+        }
+        return proxyMessage;
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (realServerChannel != null) {
             realServerChannel.config().setOption(ChannelOption.AUTO_READ, ctx.channel().isWritable());
+        } else if (ProtocolVersion.isMux(ctx.channel())) {
+            // 复用模式下控制连接积压过多 暂停或恢复所有流
+            for (Channel streamChannel : ClientChannelMannager.getStreamChannels()) {
+                StreamWindow window = StreamWindow.get(streamChannel);
+                if (window != null && window.getTunnel() == ctx.channel()) {
+                    window.onTunnelWritabilityChanged();
+                }
+            }
         }
 
         super.channelWritabilityChanged(ctx);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 一轮读取结束 统一 flush 本轮转发的数据
+        flusher.flush();
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flusher.flush();
         // 控制连接
         if (ClientChannelMannager.getCmdChannel() == ctx.channel()) {
+            RttStats rttStats = RttStats.get(ctx.channel());
+            if (rttStats != null) {
+                logger.info("link quality {}, {}", rttStats.snapshot(), ctx.channel());
+            }
+            if (ProtocolVersion.isMux(ctx.channel())) {
+                logger.info("write queues {}, {}", WriteScheduler.stats(ctx.channel()), ctx.channel());
+            }
+            logger.info("loop affinity {}", ClientChannelMannager.getTunnelStats());
             ClientChannelMannager.setCmdChannel(null);
             ClientChannelMannager.clearRealServerChannels();
             channelStatusListener.channelInactive(ctx);
@@ -171,7 +477,12 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             // 数据传输连接
             Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
             if (realServerChannel != null && realServerChannel.isActive()) {
-                realServerChannel.close();
+                if (RawRelayHandler.isRaw(ctx.channel())) {
+                    // 透传模式下数据连接关闭即断开 先把已收到的数据写完
+                    realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                } else {
+                    realServerChannel.close();
+                }
             }
         }
 
@@ -2,12 +2,19 @@ package com.xbrother.lanproxy.client.handlers;
 
 import com.xbrother.lanproxy.client.ClientChannelMannager;
 import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.StreamWindow;
 import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.RawRelayHandler;
+import com.xbrother.lanproxy.protocol.RelayFlusher;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -19,6 +26,8 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
 
     private static Logger logger = LoggerFactory.getLogger(RealServerChannelHandler.class);
 
+    private final RelayFlusher flusher = new RelayFlusher(ClientChannelHandler.MAX_PENDING_FLUSH_BYTES);
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
         Channel realServerChannel = ctx.channel();
@@ -28,21 +37,45 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
             // 代理客户端连接断开
             ctx.channel().close();
             logger.info("channel is null, close it.");
+        } else if (RawRelayHandler.isRaw(channel)) {
+            // 透传模式直接转发
+            flusher.write(channel, buf.retain(), buf.readableBytes());
         } else {
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            String userId = ClientChannelMannager.getRealServerChannelUserId(realServerChannel);
-
-            ProxyMessage proxyMessage = new ProxyMessage();
+            ProxyMessage proxyMessage = ProxyMessage.newInstance();
             proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(bytes);
+            StreamWindow window = StreamWindow.get(realServerChannel);
+            if (window != null) {
+                // 复用模式以流编号区分用户连接
+                proxyMessage.setSerialNumber(window.getId());
+                proxyMessage.setPriority(window.getPriority());
+                window.onDataSent(buf.readableBytes());
+            } else if (!ProtocolVersion.isV2(channel)) {
+                // v2 协议数据连接已与用户连接绑定 不需要携带用户编号
+                proxyMessage.setUri(ClientChannelMannager.getRealServerChannelUserId(realServerChannel));
+            }
+
+            StreamCompressor compressor = StreamCompressor.get(realServerChannel);
+            ByteBuf compressed = compressor == null ? null : compressor.compress(channel.alloc(), buf);
+            if (compressed != null) {
+                proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER_DEFLATE);
+                proxyMessage.setData(compressed);
+            } else {
+                // buf 在 channelRead0 返回后会被自动释放 交给消息后需要 retain
+                proxyMessage.setData(buf.retain());
+            }
             // 将数据发送到代理服务器
-            channel.writeAndFlush(proxyMessage);
+            flusher.write(channel, proxyMessage, proxyMessage.getData().readableBytes());
             logger.debug("write data to proxy server, {}, {}", realServerChannel, channel);
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 一轮读取结束 统一 flush 本轮转发的数据
+        flusher.flush();
+        super.channelReadComplete(ctx);
+    }
+
     // 当一个Channel被激活是调用执行
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -52,17 +85,37 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     // 当一个Channel已经处于非激活的状态且不再连接到远程端的时候被调用执行
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flusher.flush();
+
         Channel realServerChannel = ctx.channel();
+        StreamCompressor compressor = StreamCompressor.get(realServerChannel);
+        if (compressor != null) {
+            compressor.release();
+        }
+
         String userId = ClientChannelMannager.getRealServerChannelUserId(realServerChannel);
-        ClientChannelMannager.removeRealServerChannel(userId);
         Channel channel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
+        StreamWindow window = StreamWindow.get(realServerChannel);
+
+        if (userId != null) {
+            ClientChannelMannager.removeRealServerChannel(userId);
+        }
 
-        if (channel != null) {
+        if (window != null) {
+            // 复用模式 通知服务端关闭流
+            ClientChannelMannager.removeStreamChannel(window.getId());
+            window.sendDisconnect();
+        } else if (channel != null && RawRelayHandler.isRaw(channel)) {
+            // 透传的数据连接不再复用 数据发送完成后直接关闭
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        } else if (channel != null) {
             logger.debug("channelInactive, {}", realServerChannel);
-            ProxyMessage proxyMessage = new ProxyMessage();
+            ProxyMessage proxyMessage = ProxyMessage.newInstance();
             proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-            proxyMessage.setUri(userId);
-            channel.writeAndFlush(proxyMessage);
+            if (!ProtocolVersion.isV2(channel)) {
+                proxyMessage.setUri(userId);
+            }
+            channel.writeAndFlush(proxyMessage, channel.voidPromise());
         }
 
         super.channelInactive(ctx);
@@ -72,8 +125,14 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel();
         Channel proxyChannel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
+        StreamWindow window = StreamWindow.get(realServerChannel);
 
-        if (proxyChannel != null) {
+        if (window != null) {
+            // 复用模式不能暂停控制连接 改为延迟归还流的接收窗口
+            if (realServerChannel.isWritable()) {
+                window.onEndpointWritable();
+            }
+        } else if (proxyChannel != null) {
             proxyChannel.config().setOption(ChannelOption.AUTO_READ, realServerChannel.isWritable());
         }
 
@@ -0,0 +1,214 @@
+package com.xbrother.lanproxy.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以正整数为键的并发哈希表（开放寻址、线性探测）
+ *
+ * 键和值分别保存在两个数组中，没有每个条目的节点对象和装箱的键，适合大量以递增编号为键、频繁查找的场景。
+ * 查找不加锁：写入时先写值再写键，删除时先把键改为删除标记再清空值，查找在读到值之后再确认一次键没有变化。
+ * 写入和删除在表的锁内进行，扩容或者清理删除标记时重建数组，通过 volatile 字段发布。
+ *
+ * 键必须大于 0，查找和删除不大于 0 的键直接返回 null
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final long EMPTY = 0;
+
+    private static final long DELETED = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table;
+
+    /** 有效条目数 只在锁内修改 */
+    private volatile int size;
+
+    /** 删除标记的数量 只在锁内修改 */
+    private int deleted;
+
+    public ConcurrentLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 预计的条目数
+     */
+    public ConcurrentLongMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    public V get(long key) {
+        if (key <= 0) {
+            return null;
+        }
+
+        Table table = this.table;
+        int mask = table.keys.length() - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = table.keys.get(i);
+            if (k == key) {
+                V value = table.values.get(i);
+                // 读取值期间被删除
+                return table.keys.get(i) == key ? value : null;
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return 之前的值
+     */
+    public synchronized V put(long key, V value) {
+        checkKey(key);
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        Table table = this.table;
+        int mask = table.keys.length() - 1;
+        int free = -1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = table.keys.get(i);
+            if (k == key) {
+                return table.values.getAndSet(i, value);
+            }
+            if (k == DELETED && free < 0) {
+                free = i;
+            } else if (k == EMPTY) {
+                if (free < 0) {
+                    free = i;
+                }
+                break;
+            }
+        }
+
+        if (table.keys.get(free) == DELETED) {
+            deleted--;
+        }
+        table.values.set(free, value);
+        table.keys.set(free, key);
+        size++;
+        if ((size + deleted) * 4 >= table.keys.length() * 3) {
+            rehash(capacityFor(size + 1));
+        }
+        return null;
+    }
+
+    /**
+     * @return 删除的值 不存在时返回 null
+     */
+    public synchronized V remove(long key) {
+        if (key <= 0) {
+            return null;
+        }
+
+        Table table = this.table;
+        int mask = table.keys.length() - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = table.keys.get(i);
+            if (k == key) {
+                table.keys.set(i, DELETED);
+                V value = table.values.getAndSet(i, null);
+                size--;
+                deleted++;
+                // 大量连接断开后缩小 删除标记过多时清理
+                int capacity = capacityFor(size);
+                if (capacity < table.keys.length() / 2 || deleted * 2 >= table.keys.length()) {
+                    rehash(capacity);
+                }
+                return value;
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 当前所有值的快照
+     */
+    public List<V> values() {
+        Table table = this.table;
+        List<V> values = new ArrayList<V>(size);
+        for (int i = 0; i < table.keys.length(); i++) {
+            long k = table.keys.get(i);
+            if (k > 0) {
+                V value = table.values.get(i);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        Table old = this.table;
+        Table table = new Table(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < old.keys.length(); i++) {
+            long k = old.keys.get(i);
+            if (k > 0) {
+                int j = hash(k) & mask;
+                while (table.keys.get(j) != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                table.values.set(j, old.values.get(i));
+                table.keys.set(j, k);
+            }
+        }
+        deleted = 0;
+        this.table = table;
+    }
+
+    /**
+     * 装载率不超过 1/2 的 2 的幂
+     */
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static void checkKey(long key) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("key must be positive: " + key);
+        }
+    }
+
+    /**
+     * 递增的编号打散到整个表中
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final class Table {
+
+        private final AtomicLongArray keys;
+
+        private final AtomicReferenceArray<V> values;
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<V>(capacity);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.xbrother.lanproxy.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentLongMapTest {
+
+    /** 与 ConcurrentLongMap 相同的哈希 用于构造落在同一个槽的键 */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 在初始容量（16）的表中落在同一个槽的若干个键
+     */
+    private static long[] collidingKeys(int count) {
+        long[] keys = new long[count];
+        int slot = hash(1) & 15;
+        keys[0] = 1;
+        int found = 1;
+        for (long key = 2; found < count; key++) {
+            if ((hash(key) & 15) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void putGetRemoveAcrossResize() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+        int count = 10000;
+        for (long key = 1; key <= count; key++) {
+            assertNull(map.put(key, "v" + key));
+        }
+        assertEquals(count, map.size());
+        for (long key = 1; key <= count; key++) {
+            assertEquals("v" + key, map.get(key));
+        }
+        assertNull(map.get(count + 1));
+
+        assertEquals("v1", map.put(1, "new"));
+        assertEquals("new", map.get(1));
+        assertEquals(count, map.size());
+
+        // 删除大部分条目 表会缩小
+        for (long key = 1; key <= count; key++) {
+            if (key % 10 != 0) {
+                assertEquals(key == 1 ? "new" : "v" + key, map.remove(key));
+            }
+        }
+        assertEquals(count / 10, map.size());
+        for (long key = 1; key <= count; key++) {
+            if (key % 10 == 0) {
+                assertEquals("v" + key, map.get(key));
+            } else {
+                assertNull(map.get(key));
+            }
+        }
+        assertEquals(count / 10, map.values().size());
+        assertNull(map.remove(1));
+    }
+
+    @Test
+    public void removeInMiddleOfProbeChain() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+        long[] keys = collidingKeys(4);
+        for (long key : keys) {
+            map.put(key, "v" + key);
+        }
+
+        // 删除链中间的键后 后面的键仍然可以找到
+        assertEquals("v" + keys[1], map.remove(keys[1]));
+        assertNull(map.get(keys[1]));
+        assertEquals("v" + keys[2], map.get(keys[2]));
+        assertEquals("v" + keys[3], map.get(keys[3]));
+
+        // 删除链头
+        assertEquals("v" + keys[0], map.remove(keys[0]));
+        assertEquals("v" + keys[3], map.get(keys[3]));
+
+        // 再次写入已经存在的键不能因为删除标记产生重复条目
+        assertEquals("v" + keys[3], map.put(keys[3], "x"));
+        assertEquals(2, map.size());
+        assertEquals("x", map.get(keys[3]));
+        map.remove(keys[3]);
+        assertNull(map.get(keys[3]));
+        assertEquals(1, map.size());
+
+        // 重新写入复用删除标记的位置
+        map.put(keys[1], "y");
+        map.put(keys[0], "z");
+        assertEquals("y", map.get(keys[1]));
+        assertEquals("z", map.get(keys[0]));
+        assertEquals("v" + keys[2], map.get(keys[2]));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void randomOperationsMatchHashMap() {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(1);
+        // 键范围小 反复写入删除 产生大量删除标记和重建
+        for (int i = 0; i < 200000; i++) {
+            long key = 1 + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 1; key <= 500; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(new HashSet<Long>(expected.values()), new HashSet<Long>(map.values()));
+    }
+
+    @Test
+    public void nonPositiveKeys() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+        assertNull(map.get(0));
+        assertNull(map.get(-1));
+        assertNull(map.remove(0));
+        assertNull(map.remove(-1));
+        try {
+            map.put(0, "v");
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("put with key 0 should fail");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValue() {
+        new ConcurrentLongMap<String>().put(1, null);
+    }
+
+    @Test
+    public void concurrentReadsDuringResize() throws Exception {
+        final ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+        // 稳定的键在整个测试中不变 其他键反复写入删除使表扩容、缩小和清理删除标记
+        final int stableKeys = 1000;
+        for (long key = 1; key <= stableKeys; key++) {
+            map.put(key, key * 7);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        Random random = new Random();
+                        while (running.get()) {
+                            long key = 1 + random.nextInt(stableKeys);
+                            Long value = map.get(key);
+                            if (value == null || value != key * 7) {
+                                throw new AssertionError("key " + key + " read " + value);
+                            }
+                            // 正在写入删除的键 读到的值只能是空或者自己的值
+                            long churnKey = stableKeys + 1 + random.nextInt(100000);
+                            Long churnValue = map.get(churnKey);
+                            if (churnValue != null && churnValue != -churnKey) {
+                                throw new AssertionError("key " + churnKey + " read " + churnValue);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        started.await();
+
+        for (int round = 0; round < 20; round++) {
+            for (long key = stableKeys + 1; key <= stableKeys + 100000; key++) {
+                map.put(key, -key);
+            }
+            for (long key = stableKeys + 1; key <= stableKeys + 100000; key++) {
+                map.remove(key);
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(stableKeys, map.size());
+        assertTrue(map.values().size() == stableKeys);
+    }
+}
@@ -10,4 +10,18 @@ public interface Constants {
     public static final AttributeKey<String> USER_ID = AttributeKey.newInstance("user_id");
 
     public static final AttributeKey<String> CLIENT_KEY = AttributeKey.newInstance("client_key");
+
+    public static final AttributeKey<Integer> PROTOCOL_VERSION = AttributeKey.newInstance("protocol_version"); // 本端编码使用的协议版本
+
+    public static final AttributeKey<Boolean> RAW_MODE = AttributeKey.newInstance("raw_mode"); // 数据连接已切换为透传
+
+    public static final AttributeKey<StreamWindow> STREAM_WINDOW = AttributeKey.newInstance("stream_window"); // 复用模式下流的流量控制窗口
+
+    public static final AttributeKey<StreamCompressor> STREAM_COMPRESSOR = AttributeKey.newInstance("stream_compressor"); // 流的压缩上下文
+
+    public static final AttributeKey<Integer> FEATURES = AttributeKey.newInstance("features"); // 双方协商后的特性 数据连接跟随控制连接
+
+    public static final AttributeKey<Integer> MAX_FRAME_LENGTH = AttributeKey.newInstance("max_frame_length"); // 双方协商后的单包最大长度
+
+    public static final AttributeKey<RttStats> RTT_STATS = AttributeKey.newInstance("rtt_stats"); // 控制连接的往返时延统计
 }
@@ -0,0 +1,321 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+/**
+ * 大消息分片与重组（v2，双方都支持 {@link ProtocolVersion#FEATURE_FRAGMENT} 时启用）
+ *
+ * 数据超过分片大小的消息拆成多个 {@link ProxyMessage#TYPE_FRAGMENT} 帧，帧的 id 与原消息相同，
+ * 数据的第一个字节为原消息类型，最后一个分片再加上 {@link #LAST_FRAGMENT} 标识，之后是这一片的数据。
+ * 带 uri 的消息不分片。
+ *
+ * 每轮事件循环每个流只写出一个分片，其他流的消息和心跳可以穿插在分片之间，不会被一个大消息堵住；
+ * 同一个流在分片写完之前的后续消息排在分片之后，保证顺序。
+ * 只有流的数据和断开消息按流编号排队，其他控制消息（映射表、认证应答等）的编号不是流编号，按消息类型单独排队，
+ * 不会排在编号相同的流后面。
+ *
+ * 放在编码器之后（出站方向在编码器之前），接收方向把分片重组为原消息交给后面的处理器。
+ * 单个消息重组后不超过最大长度，一个连接上同时重组的所有消息合计不超过最大长度的 {@link #MAX_REASSEMBLY_MESSAGES} 倍
+ */
+public class FragmentHandler extends ChannelDuplexHandler {
+
+    /** 默认的分片大小 不超过一次读取的最大值 正常转发的数据不会被分片 */
+    public static final int DEFAULT_FRAGMENT_SIZE = 64 * 1024;
+
+    /** 默认的重组后消息最大长度 */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    /** 分片数据首字节中表示最后一个分片的标识位 */
+    static final int LAST_FRAGMENT = 0x80;
+
+    /** 同时重组的消息合计最多占用几个最大消息长度 */
+    static final int MAX_REASSEMBLY_MESSAGES = 4;
+
+    /** 分片帧头的最大长度：v2 帧头 + 原消息类型 */
+    private static final int MAX_FRAGMENT_OVERHEAD = 1 + 5 + 10 + 1;
+
+    private final int fragmentSize;
+
+    private final int maxMessageLength;
+
+    /** 有分片尚未写完的流 按加入的顺序轮流写出 键见 {@link #queueKey} */
+    private final Map<Long, ArrayDeque<PendingWrite>> pendingStreams = new LinkedHashMap<Long, ArrayDeque<PendingWrite>>();
+
+    /** 正在重组的消息 键与发送方排队的键相同 */
+    private final Map<Long, ProxyMessage> reassemblies = new HashMap<Long, ProxyMessage>();
+
+    /** 正在重组的消息合计的字节数 */
+    private long reassemblyBytes;
+
+    private boolean drainScheduled;
+
+    private ChannelHandlerContext ctx;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled = false;
+            drain(ctx);
+        }
+    };
+
+    public FragmentHandler() {
+        this(DEFAULT_FRAGMENT_SIZE, DEFAULT_MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * @param fragmentSize 单个分片的最大数据长度 实际不超过协商后的单包最大长度
+     * @param maxMessageLength 重组后消息的最大长度
+     */
+    public FragmentHandler(int fragmentSize, int maxMessageLength) {
+        this.fragmentSize = fragmentSize;
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof ProxyMessage)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        ProxyMessage proxyMessage = (ProxyMessage) msg;
+        long key = queueKey(proxyMessage.getType(), proxyMessage.getSerialNumber());
+        ArrayDeque<PendingWrite> queue = pendingStreams.get(key);
+        if (queue == null) {
+            if (!isFragmentable(ctx, proxyMessage)) {
+                ctx.write(msg, promise);
+                return;
+            }
+
+            queue = new ArrayDeque<PendingWrite>();
+            pendingStreams.put(key, queue);
+        }
+
+        // 同一个流还有分片没有写完 排在后面
+        queue.add(new PendingWrite(proxyMessage, promise));
+        if (!drainScheduled) {
+            drainScheduled = true;
+            ctx.executor().execute(drainTask);
+        }
+    }
+
+    /**
+     * 每个流写出一个分片，还有剩余时放到下一轮事件循环
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        if (pendingStreams.isEmpty()) {
+            return;
+        }
+
+        Iterator<ArrayDeque<PendingWrite>> iterator = pendingStreams.values().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<PendingWrite> queue = iterator.next();
+            boolean fragmentWritten = false;
+            while (!queue.isEmpty()) {
+                // 分片写完之后 排在后面的普通消息直接写出 遇到下一个需要分片的消息留到下一轮
+                PendingWrite pendingWrite = queue.peek();
+                boolean fragment = pendingWrite.fragmented || isFragmentable(ctx, pendingWrite.msg);
+                if (fragment && fragmentWritten) {
+                    break;
+                }
+                fragmentWritten |= fragment;
+
+                if (!writeNext(ctx, pendingWrite)) {
+                    break;
+                }
+                queue.poll();
+            }
+
+            if (queue.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        ctx.flush();
+
+        if (!pendingStreams.isEmpty() && !drainScheduled) {
+            drainScheduled = true;
+            ctx.executor().execute(drainTask);
+        }
+    }
+
+    /**
+     * 写出消息的下一个分片
+     *
+     * @return 消息是否已经全部写出
+     */
+    private boolean writeNext(ChannelHandlerContext ctx, PendingWrite pendingWrite) {
+        ProxyMessage proxyMessage = pendingWrite.msg;
+        if (!pendingWrite.fragmented && !isFragmentable(ctx, proxyMessage)) {
+            ctx.write(proxyMessage, pendingWrite.promise);
+            return true;
+        }
+
+        pendingWrite.fragmented = true;
+        ByteBuf data = proxyMessage.getData();
+        int length = Math.min(fragmentSize(ctx), data.readableBytes());
+        boolean last = length == data.readableBytes();
+
+        ByteBuf header = ctx.alloc().buffer(1);
+        header.writeByte(proxyMessage.getType() | (last ? LAST_FRAGMENT : 0));
+        ProxyMessage fragment = ProxyMessage.newInstance();
+        fragment.setType(ProxyMessage.TYPE_FRAGMENT);
+        fragment.setSerialNumber(proxyMessage.getSerialNumber());
+        fragment.setPriority(proxyMessage.getPriority());
+        fragment.setData(Unpooled.wrappedBuffer(header, data.readSlice(length).retain()));
+
+        if (!last) {
+            ctx.write(fragment, ctx.voidPromise());
+            return false;
+        }
+
+        ctx.write(fragment, pendingWrite.promise);
+        proxyMessage.release();
+        return true;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ProxyMessage) || ((ProxyMessage) msg).getType() != ProxyMessage.TYPE_FRAGMENT) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ProxyMessage fragment = (ProxyMessage) msg;
+        ProxyMessage proxyMessage;
+        try {
+            ByteBuf data = fragment.getData();
+            if (!data.isReadable()) {
+                throw new CorruptedFrameException("fragment without flags, id " + fragment.getSerialNumber());
+            }
+            int flags = data.readUnsignedByte();
+            long id = fragment.getSerialNumber();
+            byte type = (byte) (flags & ProtocolVersion.V2_TYPE_MASK);
+            if (type == ProxyMessage.TYPE_FRAGMENT || type == ProxyMessage.TYPE_BATCH) {
+                throw new CorruptedFrameException("illegal fragmented message type " + type + ", id " + id);
+            }
+            long key = queueKey(type, id);
+            proxyMessage = reassemblies.get(key);
+            if (proxyMessage == null) {
+                proxyMessage = ProxyMessage.newInstance();
+                proxyMessage.setType(type);
+                proxyMessage.setSerialNumber(id);
+                proxyMessage.setData(ctx.alloc().compositeBuffer(Integer.MAX_VALUE));
+                reassemblies.put(key, proxyMessage);
+            }
+
+            CompositeByteBuf composite = (CompositeByteBuf) proxyMessage.getData();
+            if (composite.readableBytes() + data.readableBytes() > maxMessageLength) {
+                removeReassembly(key).release();
+                throw new TooLongFrameException("fragmented message exceeds " + maxMessageLength + ", id " + id);
+            }
+            if (reassemblyBytes + data.readableBytes() > (long) maxMessageLength * MAX_REASSEMBLY_MESSAGES) {
+                removeReassembly(key).release();
+                throw new TooLongFrameException("fragmented messages exceed " + (long) maxMessageLength * MAX_REASSEMBLY_MESSAGES + " in total");
+            }
+
+            reassemblyBytes += data.readableBytes();
+            composite.addComponent(data.retain());
+            composite.writerIndex(composite.writerIndex() + data.readableBytes());
+            if ((flags & LAST_FRAGMENT) == 0) {
+                return;
+            }
+
+            removeReassembly(key);
+        } finally {
+            fragment.release();
+        }
+
+        ctx.fireChannelRead(proxyMessage);
+    }
+
+    private ProxyMessage removeReassembly(long key) {
+        ProxyMessage proxyMessage = reassemblies.remove(key);
+        reassemblyBytes -= proxyMessage.getData().readableBytes();
+        return proxyMessage;
+    }
+
+    /**
+     * 排队和重组的键 流的数据和断开消息为流编号（大于 0），其他消息按类型取负数，与流编号不会冲突
+     */
+    private static long queueKey(byte type, long serialNumber) {
+        if (type == ProxyMessage.P_TYPE_TRANSFER || type == ProxyMessage.P_TYPE_TRANSFER_DEFLATE || type == ProxyMessage.TYPE_DISCONNECT) {
+            return serialNumber;
+        }
+        return -1 - type;
+    }
+
+    private boolean isFragmentable(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        ByteBuf data = proxyMessage.getData();
+        return proxyMessage.getUri() == null && data != null && data.readableBytes() > fragmentSize(ctx) && ProtocolVersion.isV2(ctx.channel())
+                && ProtocolVersion.hasFeature(ctx.channel(), ProtocolVersion.FEATURE_FRAGMENT);
+    }
+
+    private int fragmentSize(ChannelHandlerContext ctx) {
+        return Math.min(fragmentSize, ProtocolVersion.getMaxFrameLength(ctx.channel()) - MAX_FRAGMENT_OVERHEAD);
+    }
+
+    private void releaseAll() {
+        ChannelPromise voidPromise = ctx.voidPromise();
+        for (ArrayDeque<PendingWrite> queue : pendingStreams.values()) {
+            for (PendingWrite pendingWrite : queue) {
+                pendingWrite.msg.release();
+                if (pendingWrite.promise != voidPromise) {
+                    pendingWrite.promise.tryFailure(new ClosedChannelException());
+                }
+            }
+        }
+        pendingStreams.clear();
+
+        for (ProxyMessage proxyMessage : reassemblies.values()) {
+            proxyMessage.release();
+        }
+        reassemblies.clear();
+        reassemblyBytes = 0;
+    }
+
+    private static final class PendingWrite {
+
+        private final ProxyMessage msg;
+
+        private final ChannelPromise promise;
+
+        /** 是否已经开始分片写出 */
+        private boolean fragmented;
+
+        private PendingWrite(ProxyMessage msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
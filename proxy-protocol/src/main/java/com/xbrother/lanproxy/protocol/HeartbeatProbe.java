@@ -0,0 +1,90 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * 带时间戳的心跳探测（双方都支持 {@link ProtocolVersion#FEATURE_RTT} 时启用）
+ *
+ * 开启了 {@link RttStats} 的控制连接发出的心跳以发送时间（微秒）作为 serialNumber，
+ * 对端原样放在 {@link ProxyMessage#TYPE_HEARTBEAT_ACK} 中返回，收到应答时记录往返时延。
+ * 旧版本的对端仍然使用 serialNumber 为 0 的共享心跳帧，不返回应答。
+ *
+ * 心跳只在写空闲时发出，转发繁忙的连接上没有时延样本，所以控制连接还会按固定间隔主动探测
+ */
+public final class HeartbeatProbe {
+
+    private HeartbeatProbe() {
+    }
+
+    /**
+     * 为控制连接开启时延统计，并按固定间隔发出探测
+     *
+     * @param channel 控制连接
+     * @param intervalSeconds 探测间隔，不大于 0 时只在写空闲时探测
+     */
+    public static void start(final Channel channel, int intervalSeconds) {
+        RttStats.attach(channel);
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        final ScheduledFuture<?> future = channel.eventLoop().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                channel.writeAndFlush(newHeartbeat(channel), channel.voidPromise());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                future.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * 新建一个心跳，开启了时延统计的连接带上发送时间，否则为共享的心跳帧
+     */
+    public static Object newHeartbeat(Channel channel) {
+        if (RttStats.get(channel) == null) {
+            return ProxyMessageEncoder.heartbeat(channel);
+        }
+
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_HEARTBEAT);
+        proxyMessage.setSerialNumber(RttStats.nowMicros());
+        return proxyMessage;
+    }
+
+    /**
+     * 对端发来的心跳是否需要应答
+     */
+    public static boolean isProbe(Channel channel, ProxyMessage heartbeat) {
+        return heartbeat.getSerialNumber() != 0 && ProtocolVersion.hasFeature(channel, ProtocolVersion.FEATURE_RTT);
+    }
+
+    /**
+     * 应答对端的探测 原样返回发送时间
+     */
+    public static ProxyMessage newAck(ProxyMessage heartbeat) {
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_HEARTBEAT_ACK);
+        proxyMessage.setSerialNumber(heartbeat.getSerialNumber());
+        return proxyMessage;
+    }
+
+    /**
+     * 收到探测的应答 记录往返时延
+     */
+    public static void onAck(Channel channel, ProxyMessage ack) {
+        RttStats stats = RttStats.get(channel);
+        if (stats != null && ack.getSerialNumber() > 0) {
+            stats.record(RttStats.nowMicros() - ack.getSerialNumber());
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package com.xbrother.lanproxy.protocol;
 
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoop;
 
 /**
  * check idle chanel.
  *
+ * 只记录最后读写的时间，由共用的 {@link IdleDetector} 统一检查，不再为每个连接调度超时任务。
+ * 控制连接读空闲时关闭，写空闲时发送心跳；数据连接不发心跳，未绑定（在连接池中）超过空闲时间后关闭，
+ * 绑定中的数据连接跟随用户连接或者控制连接关闭。
+ * 写出时间按数据实际写入 socket 记录：flush 后写缓冲已经清空，或者积压的数据写出后连接恢复可写，
+ * 对端不可写导致数据积压的控制连接仍然视为写空闲
  */
-public class IdleCheckHandler extends IdleStateHandler {
+public class IdleCheckHandler extends ChannelDuplexHandler {
 
     public static final int USER_CHANNEL_READ_IDLE_TIME = 1200;
 
@@ -19,24 +28,157 @@ public class IdleCheckHandler extends IdleStateHandler {
 
     public static final int WRITE_IDLE_TIME = 40;
 
+    public static final int DATA_CHANNEL_IDLE_TIME = 120;
+
     private static Logger logger = LoggerFactory.getLogger(IdleCheckHandler.class);
 
-    public IdleCheckHandler(int readerIdleTimeSeconds, int writerIdleTimeSeconds, int allIdleTimeSeconds) {
-        super(readerIdleTimeSeconds, writerIdleTimeSeconds, allIdleTimeSeconds);
+    private final long readerIdleNanos;
+
+    private final long writerIdleNanos;
+
+    private final long dataChannelIdleNanos;
+
+    private volatile long lastReadTime;
+
+    private volatile long lastWriteTime;
+
+    private volatile boolean cmdChannel;
+
+    private volatile boolean removed;
+
+    private boolean started;
+
+    private Channel channel;
+
+    /**
+     * @param readerIdleTimeSeconds 控制连接读空闲时间
+     * @param writerIdleTimeSeconds 控制连接写空闲时间
+     * @param dataChannelIdleTimeSeconds 未绑定的数据连接空闲时间
+     */
+    public IdleCheckHandler(int readerIdleTimeSeconds, int writerIdleTimeSeconds, int dataChannelIdleTimeSeconds) {
+        this.readerIdleNanos = TimeUnit.SECONDS.toNanos(readerIdleTimeSeconds);
+        this.writerIdleNanos = TimeUnit.SECONDS.toNanos(writerIdleTimeSeconds);
+        this.dataChannelIdleNanos = TimeUnit.SECONDS.toNanos(dataChannelIdleTimeSeconds);
+    }
+
+    /**
+     * 标记为控制连接 之后按读写空闲检测并发送心跳
+     */
+    public static void setCmdChannel(Channel channel) {
+        IdleCheckHandler handler = channel.pipeline().get(IdleCheckHandler.class);
+        if (handler != null) {
+            handler.cmdChannel = true;
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            start(ctx);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        removed = true;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        start(ctx);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        removed = true;
+        ctx.fireChannelInactive();
     }
 
     @Override
-    protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
-
-        if (IdleStateEvent.FIRST_WRITER_IDLE_STATE_EVENT == evt) {
-            logger.debug("channel write timeout {}", ctx.channel());
-            ProxyMessage proxyMessage = new ProxyMessage();
-            proxyMessage.setType(ProxyMessage.TYPE_HEARTBEAT);
-            ctx.channel().writeAndFlush(proxyMessage);
-        } else if (IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT == evt) {
-            logger.warn("channel read timeout {}", ctx.channel());
-            ctx.channel().close();
-        }
-        super.channelIdle(ctx, evt);
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        lastReadTime = System.nanoTime();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        if (buffer != null && buffer.isEmpty()) {
+            lastWriteTime = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // 积压的数据已经写出
+            lastWriteTime = System.nanoTime();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void start(ChannelHandlerContext ctx) {
+        if (started) {
+            return;
+        }
+
+        started = true;
+        channel = ctx.channel();
+        lastReadTime = lastWriteTime = System.nanoTime();
+        IdleDetector.INSTANCE.register(this);
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    EventLoop eventLoop() {
+        return channel.eventLoop();
+    }
+
+    /**
+     * 按最后读写时间计算下次需要检查的时间 在检测线程中调用
+     */
+    long nextCheckTime() {
+        if (cmdChannel) {
+            return Math.min(lastReadTime + readerIdleNanos, lastWriteTime + writerIdleNanos);
+        }
+        return Math.max(lastReadTime, lastWriteTime) + dataChannelIdleNanos;
+    }
+
+    /**
+     * 到期处理后再次检查的间隔 绑定中的数据连接不会关闭 按空闲时间检查即可
+     */
+    long recheckInterval() {
+        return cmdChannel ? IdleDetector.TICK_NANOS : dataChannelIdleNanos;
+    }
+
+    /**
+     * 到期后在连接的 EventLoop 中调用
+     */
+    void onIdle() {
+        if (removed) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (cmdChannel) {
+            if (now - lastReadTime >= readerIdleNanos) {
+                logger.warn("channel read timeout {}", channel);
+                channel.close();
+            } else if (now - lastWriteTime >= writerIdleNanos) {
+                logger.debug("channel write timeout {}", channel);
+                channel.writeAndFlush(HeartbeatProbe.newHeartbeat(channel), channel.voidPromise());
+            }
+        } else if (now - Math.max(lastReadTime, lastWriteTime) >= dataChannelIdleNanos) {
+            // 对端失去响应时 另一端的连接已经关闭但可能收不到断开消息 同样视为未绑定
+            Channel nextChannel = channel.attr(Constants.NEXT_CHANNEL).get();
+            if (nextChannel == null || !nextChannel.isActive()) {
+                logger.debug("idle data channel timeout {}", channel);
+                channel.close();
+            }
+        }
     }
 }
@@ -0,0 +1,133 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 所有连接共用的空闲检测时间轮
+ *
+ * 每个 tick（1 秒）检查一个槽中的连接：按连接记录的最后读写时间计算下次检查的时间，未到期的放回对应的槽，
+ * 读写时只更新时间戳，不需要重新调度。到期的连接按 EventLoop 分组，每组提交一个任务处理。
+ * 超过一圈的检查时间先放在最后一个槽，到时重新计算
+ */
+final class IdleDetector implements Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(IdleDetector.class);
+
+    static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int WHEEL_SIZE = 128;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    static final IdleDetector INSTANCE = new IdleDetector();
+
+    private final List<IdleCheckHandler>[] wheel;
+
+    /** 每个 tick 与当前槽交换 避免重复创建列表 */
+    private List<IdleCheckHandler> spare = new ArrayList<IdleCheckHandler>();
+
+    /** 新加入的连接 在下一个 tick 放入时间轮 */
+    private final Queue<IdleCheckHandler> registrations = new ConcurrentLinkedQueue<IdleCheckHandler>();
+
+    private final long startTime = System.nanoTime();
+
+    /** 当前 tick 只在检测线程中访问 */
+    private long tick;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private IdleDetector() {
+        wheel = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayList<IdleCheckHandler>();
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("idle-detector", true));
+        executor.scheduleAtFixedRate(this, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    void register(IdleCheckHandler handler) {
+        registrations.add(handler);
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.nanoTime();
+            for (IdleCheckHandler handler = registrations.poll(); handler != null; handler = registrations.poll()) {
+                schedule(handler, handler.nextCheckTime());
+            }
+
+            int index = (int) (tick & WHEEL_MASK);
+            List<IdleCheckHandler> bucket = wheel[index];
+            wheel[index] = spare;
+            spare = bucket;
+
+            Map<EventLoop, List<IdleCheckHandler>> expired = null;
+            for (IdleCheckHandler handler : bucket) {
+                if (handler.isRemoved()) {
+                    continue;
+                }
+
+                long deadline = handler.nextCheckTime();
+                if (deadline - now > 0) {
+                    schedule(handler, deadline);
+                    continue;
+                }
+
+                if (expired == null) {
+                    expired = new IdentityHashMap<EventLoop, List<IdleCheckHandler>>();
+                }
+                List<IdleCheckHandler> handlers = expired.get(handler.eventLoop());
+                if (handlers == null) {
+                    handlers = new ArrayList<IdleCheckHandler>();
+                    expired.put(handler.eventLoop(), handlers);
+                }
+                handlers.add(handler);
+                schedule(handler, now + handler.recheckInterval());
+            }
+            bucket.clear();
+
+            if (expired != null) {
+                for (Map.Entry<EventLoop, List<IdleCheckHandler>> entry : expired.entrySet()) {
+                    final List<IdleCheckHandler> handlers = entry.getValue();
+                    entry.getKey().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (IdleCheckHandler handler : handlers) {
+                                handler.onIdle();
+                            }
+                        }
+                    });
+                }
+            }
+        } catch (Throwable t) {
+            logger.warn("idle detection failed", t);
+        } finally {
+            tick++;
+        }
+    }
+
+    /**
+     * 放入检查时间所在的槽 至少是下一个 tick
+     */
+    private void schedule(IdleCheckHandler handler, long deadline) {
+        long target = (deadline - startTime + TICK_NANOS - 1) / TICK_NANOS - 1;
+        target = Math.max(target, tick + 1);
+        target = Math.min(target, tick + WHEEL_SIZE - 1);
+        wheel[(int) (target & WHEEL_MASK)].add(handler);
+    }
+}
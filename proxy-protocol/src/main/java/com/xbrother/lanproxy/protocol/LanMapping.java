@@ -0,0 +1,229 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 服务端在认证时下发给客户端的代理映射（v2 协议）
+ *
+ * 映射编号即服务端对外端口，v2 的连接消息只携带映射编号，不再携带 ip:port 字符串。
+ *
+ * 映射表编码：varint 映射数量，之后每个映射依次为 varint 编号、varint lan 长度、lan、varint 扩展参数长度、扩展参数。
+ * 扩展参数为映射级配置，每个参数为 varint 参数编号、varint 值长度、值，不认识的参数直接跳过。
+ */
+public class LanMapping {
+
+    /** 映射编号 */
+    private int id;
+
+    /** 扩展参数：是否压缩数据 */
+    private static final int OPTION_COMPRESS = 1;
+
+    /** 扩展参数：是否合并小块读取 */
+    private static final int OPTION_COALESCE = 2;
+
+    /** 扩展参数：复用模式下的写出优先级，普通优先级不下发 */
+    private static final int OPTION_PRIORITY = 3;
+
+    /** 扩展参数：socket 参数，未配置时不下发 */
+    private static final int OPTION_SOCKET_PROFILE = 4;
+
+    /** 被代理的网络信息 192.168.1.99:80 */
+    private String lan;
+
+    /** 是否压缩该映射的数据 */
+    private boolean compress;
+
+    /** 是否合并该映射的小块读取，见 {@link ReadCoalescingHandler} */
+    private boolean coalesce;
+
+    /** 复用模式下该映射的数据在控制连接上的写出优先级，见 {@link WriteScheduler} */
+    private int priority = WriteScheduler.PRIORITY_NORMAL;
+
+    /** 该映射连接的 socket 参数，为空时使用默认值 */
+    private SocketProfile socketProfile;
+
+    public LanMapping() {
+    }
+
+    public LanMapping(int id, String lan) {
+        this.id = id;
+        this.lan = lan;
+    }
+
+    public LanMapping(int id, String lan, boolean compress) {
+        this.id = id;
+        this.lan = lan;
+        this.compress = compress;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getLan() {
+        return lan;
+    }
+
+    public void setLan(String lan) {
+        this.lan = lan;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public SocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * 编码映射表
+     *
+     * @param alloc
+     * @param mappings
+     * @return
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, List<LanMapping> mappings) {
+        ByteBuf out = alloc.buffer();
+        Varints.writeVarint(out, mappings.size());
+        for (LanMapping mapping : mappings) {
+            Varints.writeVarint(out, mapping.getId());
+            byte[] lanBytes = mapping.getLan().getBytes(CharsetUtil.UTF_8);
+            Varints.writeVarint(out, lanBytes.length);
+            out.writeBytes(lanBytes);
+            ByteBuf options = alloc.buffer();
+            try {
+                if (mapping.isCompress()) {
+                    writeFlagOption(options, OPTION_COMPRESS);
+                }
+                if (mapping.isCoalesce()) {
+                    writeFlagOption(options, OPTION_COALESCE);
+                }
+                if (mapping.getPriority() != WriteScheduler.PRIORITY_NORMAL) {
+                    writeByteOption(options, OPTION_PRIORITY, mapping.getPriority());
+                }
+                if (mapping.getSocketProfile() != null) {
+                    ByteBuf value = alloc.buffer();
+                    mapping.getSocketProfile().encode(value);
+                    Varints.writeVarint(options, OPTION_SOCKET_PROFILE);
+                    Varints.writeVarint(options, value.readableBytes());
+                    options.writeBytes(value);
+                    value.release();
+                }
+                Varints.writeVarint(out, options.readableBytes());
+                out.writeBytes(options);
+            } finally {
+                options.release();
+            }
+        }
+
+        return out;
+    }
+
+    private static void writeFlagOption(ByteBuf out, int option) {
+        writeByteOption(out, option, 1);
+    }
+
+    private static void writeByteOption(ByteBuf out, int option, int value) {
+        Varints.writeVarint(out, option);
+        Varints.writeVarint(out, 1);
+        out.writeByte(value);
+    }
+
+    /**
+     * 解码映射表
+     *
+     * @param in
+     * @return 映射编号 -> 映射
+     */
+    public static Map<Integer, LanMapping> decode(ByteBuf in) {
+        Map<Integer, LanMapping> mappings = new HashMap<Integer, LanMapping>();
+        long count = readLength(in);
+        for (long i = 0; i < count; i++) {
+            LanMapping mapping = new LanMapping();
+            mapping.setId((int) readValue(in));
+            int lanLength = readLength(in);
+            mapping.setLan(in.toString(in.readerIndex(), lanLength, CharsetUtil.UTF_8));
+            in.skipBytes(lanLength);
+            readOptions(in.readSlice(readLength(in)), mapping);
+            mappings.put(mapping.getId(), mapping);
+        }
+
+        return mappings;
+    }
+
+    private static void readOptions(ByteBuf options, LanMapping mapping) {
+        while (options.isReadable()) {
+            long option = readValue(options);
+            ByteBuf value = options.readSlice(readLength(options));
+            if (option == OPTION_COMPRESS) {
+                mapping.setCompress(value.isReadable() && value.readByte() != 0);
+            } else if (option == OPTION_COALESCE) {
+                mapping.setCoalesce(value.isReadable() && value.readByte() != 0);
+            } else if (option == OPTION_PRIORITY && value.isReadable()) {
+                mapping.setPriority(WriteScheduler.normalize((int) value.readByte()));
+            } else if (option == OPTION_SOCKET_PROFILE) {
+                mapping.setSocketProfile(SocketProfile.decode(value));
+            }
+        }
+    }
+
+    private static long readValue(ByteBuf in) {
+        long value = Varints.readVarint(in);
+        if (value < 0) {
+            throw new CorruptedFrameException("malformed lan mapping table");
+        }
+        return value;
+    }
+
+    /**
+     * 读取长度或数量 不可能超过剩余的字节数
+     */
+    private static int readLength(ByteBuf in) {
+        long value = readValue(in);
+        if (value > in.readableBytes()) {
+            throw new CorruptedFrameException("malformed lan mapping table, length " + value);
+        }
+        return (int) value;
+    }
+
+    @Override
+    public String toString() {
+        return "LanMapping [id=" + id + ", lan=" + lan + ", compress=" + compress + ", coalesce=" + coalesce + ", priority=" + priority + ", socketProfile=" + socketProfile + "]";
+    }
+}
@@ -0,0 +1,137 @@
+package com.xbrother.lanproxy.protocol;
+
+import io.netty.channel.Channel;
+
+/**
+ * 协议版本
+ *
+ * v1 帧格式：4 字节长度 + 1 字节类型 + 8 字节流水号 + 1 字节 uri 长度 + uri + 数据
+ *
+ * v2 帧格式：
+ * <pre>
+ * +-----------+-----------+------------+---------------------+--------+
+ * | type      | length    | id         | uri (可选)           | data   |
+ * | 1 byte    | varint    | varint     | 1 byte len + bytes  |        |
+ * +-----------+-----------+------------+---------------------+--------+
+ * </pre>
+ * type 最高位固定为 1，用于与 v1 帧区分（v1 帧首字节是长度的最高字节，总为 0）；次高位表示是否带 uri；
+ * length 为 length 字段之后的字节数；id 对应消息的 serialNumber，流相关的消息中即为数值型的用户连接编号。
+ *
+ * v3 使用 v2 的帧格式，用户连接不再占用单独的数据连接，而是作为流复用控制连接：
+ * 连接、断开、数据消息都在控制连接上传输并以 id 区分，每个流有独立的接收窗口，见 {@link StreamWindow}。
+ *
+ * 连接建立时都使用 v1，客户端在认证消息中声明支持的版本，服务端取双方都支持的最高版本，
+ * 通过下发映射表消息的 serialNumber 告知客户端。
+ * 解码器同时支持两种格式，本端的编码只由协商结果决定：控制连接在认证（认证应答、映射表消息）时切换，
+ * 数据连接在连接消息中跟随所属的控制连接，收到的帧格式不会改变本端的编码。
+ *
+ * 认证消息的数据：
+ * <pre>
+ * +-----------+-----------+------------------+
+ * | version   | features  | max frame length |
+ * | 1 byte    | varint    | varint           |
+ * +-----------+-----------+------------------+
+ * </pre>
+ * 旧版本客户端不带数据或者只带前两项（features 为单字节，与小于 0x80 的 varint 相同）。
+ * 带有单包最大长度的客户端会收到 {@link ProxyMessage#TYPE_AUTH_ACK}，数据格式相同，
+ * 为协商后的版本、双方都支持的特性以及双方单包最大长度中较小的一个，之后双方按协商结果启用各项特性。
+ * 数据连接跟随所属控制连接的协商结果。
+ */
+public final class ProtocolVersion {
+
+    public static final int V1 = 1;
+
+    public static final int V2 = 2;
+
+    public static final int V3 = 3;
+
+    /** 默认的单包最大长度，对端没有声明时使用 */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    /** 特性：支持按映射压缩数据 */
+    public static final int FEATURE_COMPRESS = 0x01;
+
+    /** 特性：能够解码批量帧 {@link ProxyMessage#TYPE_BATCH} */
+    public static final int FEATURE_BATCH = 0x02;
+
+    /** 特性：数据连接可以切换为透传 */
+    public static final int FEATURE_RAW = 0x04;
+
+    /** 特性：超过单包大小的消息分片传输，见 {@link FragmentHandler} */
+    public static final int FEATURE_FRAGMENT = 0x08;
+
+    /** 特性：心跳带发送时间并返回应答，用于统计往返时延，见 {@link HeartbeatProbe} */
+    public static final int FEATURE_RTT = 0x10;
+
+    /** v2 连接消息的标识：数据连接绑定后切换为透传，见 {@link RawRelayHandler} */
+    public static final int CONNECT_FLAG_RAW = 0x01;
+
+    /** v2 帧类型字节的标识位 */
+    static final int V2_FLAG = 0x80;
+
+    /** v2 帧是否带 uri */
+    static final int V2_URI_FLAG = 0x40;
+
+    /** v2 帧类型字节中消息类型所占的位 */
+    static final int V2_TYPE_MASK = 0x3F;
+
+    private ProtocolVersion() {
+    }
+
+    public static int get(Channel channel) {
+        Integer version = channel.attr(Constants.PROTOCOL_VERSION).get();
+        return version == null ? V1 : version;
+    }
+
+    public static void set(Channel channel, int version) {
+        channel.attr(Constants.PROTOCOL_VERSION).set(version);
+    }
+
+    public static boolean isV2(Channel channel) {
+        return get(channel) >= V2;
+    }
+
+    public static int getFeatures(Channel channel) {
+        Integer features = channel.attr(Constants.FEATURES).get();
+        return features == null ? 0 : features;
+    }
+
+    public static void setFeatures(Channel channel, int features) {
+        channel.attr(Constants.FEATURES).set(features);
+    }
+
+    /**
+     * 双方是否都支持该特性
+     */
+    public static boolean hasFeature(Channel channel, int feature) {
+        return (getFeatures(channel) & feature) != 0;
+    }
+
+    /**
+     * 对端能够接收的单包最大长度
+     */
+    public static int getMaxFrameLength(Channel channel) {
+        Integer maxFrameLength = channel.attr(Constants.MAX_FRAME_LENGTH).get();
+        return maxFrameLength == null ? DEFAULT_MAX_FRAME_LENGTH : maxFrameLength;
+    }
+
+    public static void setMaxFrameLength(Channel channel, int maxFrameLength) {
+        channel.attr(Constants.MAX_FRAME_LENGTH).set(maxFrameLength);
+    }
+
+    /**
+     * 数据连接跟随控制连接的协商结果，数据连接不复用，最高使用 v2
+     */
+    public static void inherit(Channel dataChannel, Channel cmdChannel) {
+        set(dataChannel, Math.min(get(cmdChannel), V2));
+        setFeatures(dataChannel, getFeatures(cmdChannel));
+        setMaxFrameLength(dataChannel, getMaxFrameLength(cmdChannel));
+    }
+
+    /**
+     * 用户连接是否以流的方式复用控制连接
+     */
+    public static boolean isMux(Channel channel) {
+        return get(channel) >= V3;
+    }
+}
@@ -1,12 +1,18 @@
 package com.xbrother.lanproxy.protocol;
 
-import java.util.Arrays;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.Recycler;
 
 /**
  * 代理客户端与代理服务器消息交换协议
  *
+ * 消息数据为引用计数的 ByteBuf，消息释放时一并释放数据，转发时需要先 retain 数据
+ *
+ * 通过 {@link #newInstance()} 取得的消息来自对象池，由编码器或最终处理消息的入站处理器释放后自动回收，
+ * 释放后不能再访问
  */
-public class ProxyMessage {
+public class ProxyMessage extends AbstractReferenceCounted {
 
     /** 认证消息，检测clientKey是否正确 */
     public static final byte C_TYPE_AUTH = 0x01;
@@ -29,6 +35,36 @@ public class ProxyMessage {
     /** 心跳消息 */
     public static final byte TYPE_HEARTBEAT = 0x07;
 
+    /** 服务端下发代理映射表（v2） */
+    public static final byte TYPE_MAPPING = 0x08;
+
+    /** 复用模式下归还流的接收窗口（v3） */
+    public static final byte TYPE_WINDOW_UPDATE = 0x09;
+
+    /** 压缩后的代理数据传输（v2），见 {@link StreamCompressor} */
+    public static final byte P_TYPE_TRANSFER_DEFLATE = 0x0A;
+
+    /** 多个 v2 帧合并而成的批量帧（v2），数据为依次排列的完整 v2 帧，不允许嵌套 */
+    public static final byte TYPE_BATCH = 0x0B;
+
+    /** 服务端对认证消息的应答，数据为协商后的协议版本、特性与单包最大长度 */
+    public static final byte TYPE_AUTH_ACK = 0x0C;
+
+    /** 大消息的一个分片（v2），见 {@link FragmentHandler} */
+    public static final byte TYPE_FRAGMENT = 0x0D;
+
+    /** 心跳探测的应答，serialNumber 为探测中的发送时间，见 {@link HeartbeatProbe} */
+    public static final byte TYPE_HEARTBEAT_ACK = 0x0E;
+
+    private static final Recycler<ProxyMessage> RECYCLER = new Recycler<ProxyMessage>() {
+        @Override
+        protected ProxyMessage newObject(Recycler.Handle handle) {
+            return new ProxyMessage(handle);
+        }
+    };
+
+    private final Recycler.Handle handle;
+
     /** 消息类型 */
     private byte type;
 
@@ -39,7 +75,27 @@ public class ProxyMessage {
     private String uri;
 
     /** 消息传输数据 */
-    private byte[] data;
+    private ByteBuf data;
+
+    /** 写出时的调度优先级 只在本端使用不参与编码，见 {@link WriteScheduler} */
+    private int priority;
+
+    public ProxyMessage() {
+        this(null);
+    }
+
+    private ProxyMessage(Recycler.Handle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * 从对象池中取出一个消息
+     */
+    public static ProxyMessage newInstance() {
+        ProxyMessage proxyMessage = RECYCLER.get();
+        proxyMessage.setRefCnt(1);
+        return proxyMessage;
+    }
 
     public void setUri(String uri) {
         this.uri = uri;
@@ -49,11 +105,11 @@ public class ProxyMessage {
         return uri;
     }
 
-    public byte[] getData() {
+    public ByteBuf getData() {
         return data;
     }
 
-    public void setData(byte[] data) {
+    public void setData(ByteBuf data) {
         this.data = data;
     }
 
@@ -73,9 +129,33 @@ public class ProxyMessage {
         this.serialNumber = serialNumber;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    @Override
+    protected void deallocate() {
+        if (data != null) {
+            data.release();
+            data = null;
+        }
+
+        if (handle != null) {
+            type = 0;
+            serialNumber = 0;
+            uri = null;
+            priority = 0;
+            RECYCLER.recycle(this, handle);
+        }
+    }
+
     @Override
     public String toString() {
-        return "ProxyMessage [type=" + type + ", serialNumber=" + serialNumber + ", uri=" + uri + ", data=" + Arrays.toString(data) + "]";
+        return "ProxyMessage [type=" + type + ", serialNumber=" + serialNumber + ", uri=" + uri + ", data=" + (data == null ? 0 : data.readableBytes()) + "]";
     }
 
 }
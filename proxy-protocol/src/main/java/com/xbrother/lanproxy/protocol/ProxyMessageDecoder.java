@@ -1,9 +1,16 @@
 package com.xbrother.lanproxy.protocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
 
+/**
+ * 消息解码，同时支持 v1 和 v2 两种帧格式，见 {@link ProtocolVersion}
+ */
 public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final byte HEADER_SIZE = 4;
@@ -14,6 +21,14 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final int URI_LENGTH_SIZE = 1;
 
+    /** 不超过该大小的数据拷贝到池化的缓冲区中，更大的数据直接引用帧缓冲区 */
+    private static final int COPY_THRESHOLD = 1024;
+
+    private final int maxFrameLength;
+
+    /** 超长的 v2 帧还需要丢弃的字节数 */
+    private long v2BytesToDiscard;
+
     /**
      * @param maxFrameLength
      * @param lengthFieldOffset
@@ -23,6 +38,7 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
      */
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip);
+        this.maxFrameLength = maxFrameLength;
     }
 
     /**
@@ -35,10 +51,26 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
      */
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip, boolean failFast) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip, failFast);
+        this.maxFrameLength = maxFrameLength;
     }
 
     @Override
-    protected ProxyMessage decode(ChannelHandlerContext ctx, ByteBuf in2) throws Exception {
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in2) throws Exception {
+        if (v2BytesToDiscard > 0) {
+            int discard = (int) Math.min(v2BytesToDiscard, in2.readableBytes());
+            in2.skipBytes(discard);
+            v2BytesToDiscard -= discard;
+            return null;
+        }
+
+        if (!in2.isReadable()) {
+            return null;
+        }
+
+        if ((in2.getByte(in2.readerIndex()) & ProtocolVersion.V2_FLAG) != 0) {
+            return decodeV2(ctx, in2);
+        }
+
         ByteBuf in = (ByteBuf) super.decode(ctx, in2);
         if (in == null) {
             return null;
@@ -52,7 +84,7 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
         if (in.readableBytes() < frameLength) {
             return null;
         }
-        ProxyMessage proxyMessage = new ProxyMessage();
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
         byte type = in.readByte();
         long sn = in.readLong();
 
@@ -60,24 +92,153 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
         proxyMessage.setType(type);
 
-        byte uriLength = in.readByte();
-        byte[] uriBytes = new byte[uriLength];
-        in.readBytes(uriBytes);
-        proxyMessage.setUri(new String(uriBytes));
+        int uriLength = in.readUnsignedByte();
+        proxyMessage.setUri(in.toString(in.readerIndex(), uriLength, CharsetUtil.UTF_8));
+        in.skipBytes(uriLength);
 
-        byte[] data = new byte[frameLength - TYPE_SIZE - SERIAL_NUMBER_SIZE - URI_LENGTH_SIZE - uriLength];
-        in.readBytes(data);
+        // 数据由消息的使用者负责释放
+        int dataLength = frameLength - TYPE_SIZE - SERIAL_NUMBER_SIZE - URI_LENGTH_SIZE - uriLength;
+        proxyMessage.setData(readData(in, dataLength));
 
-        // 解压缩
-//        byte[] newData = Compress.gzipDeCompress(data);
+        in.release();
 
-        proxyMessage.setData(data);
-//        proxyMessage.setData(newData);
+        return proxyMessage;
+    }
 
-        in.release();
+    private ProxyMessage decodeV2(ChannelHandlerContext ctx, ByteBuf in) {
+        int start = in.readerIndex();
+        int typeByte = in.readUnsignedByte();
+        long frameLength = Varints.readVarint(in);
+        if (frameLength < 0) {
+            in.readerIndex(start);
+            return null;
+        }
+
+        if (frameLength > maxFrameLength) {
+            long discard = Math.min(frameLength, in.readableBytes());
+            in.skipBytes((int) discard);
+            v2BytesToDiscard = frameLength - discard;
+            throw new TooLongFrameException("Adjusted frame length exceeds " + maxFrameLength + ": " + frameLength + " - discarded");
+        }
+
+        if (in.readableBytes() < frameLength) {
+            in.readerIndex(start);
+            return null;
+        }
+
+        // 本端的编码格式只由认证时的协商结果决定 不随收到的帧切换
+        in.readerIndex(start);
+        ProxyMessage proxyMessage = readV2Frame(in);
+        if (proxyMessage.getType() == ProxyMessage.TYPE_BATCH) {
+            return unbatch(ctx, proxyMessage);
+        }
+
+        return proxyMessage;
+    }
+
+    /**
+     * 读取一个完整的 v2 帧，数据部分为 in 的切片
+     */
+    private static ProxyMessage readV2Frame(ByteBuf in) {
+        int typeByte = in.readUnsignedByte();
+        long frameLength = Varints.readVarint(in);
+        if (frameLength < 0 || frameLength > in.readableBytes()) {
+            throw new CorruptedFrameException("truncated v2 frame, type " + typeByte);
+        }
+
+        int frameEnd = in.readerIndex() + (int) frameLength;
+        long serialNumber = Varints.readVarint(in);
+        boolean hasUri = (typeByte & ProtocolVersion.V2_URI_FLAG) != 0;
+
+        // 先校验头部 再取消息对象
+        boolean malformed = serialNumber < 0 || in.readerIndex() > frameEnd || (hasUri && in.readerIndex() == frameEnd);
+        int uriLength = 0;
+        if (!malformed && hasUri) {
+            uriLength = in.readUnsignedByte();
+            malformed = in.readerIndex() + uriLength > frameEnd;
+        }
+        if (malformed) {
+            in.readerIndex(frameEnd);
+            throw new CorruptedFrameException("malformed v2 frame, type " + typeByte);
+        }
+
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType((byte) (typeByte & ProtocolVersion.V2_TYPE_MASK));
+        proxyMessage.setSerialNumber(serialNumber);
+        if (hasUri) {
+            proxyMessage.setUri(in.toString(in.readerIndex(), uriLength, CharsetUtil.UTF_8));
+            in.skipBytes(uriLength);
+        }
+
+        proxyMessage.setData(readData(in, frameEnd - in.readerIndex()));
 
         return proxyMessage;
     }
+
+    /**
+     * 读取消息数据
+     *
+     * 小块数据拷贝到池化的缓冲区中，缓冲区对象会被回收复用，避免每帧创建一个切片对象，也不会因为一小块数据占住整个读缓冲区；
+     * 大块数据直接引用帧缓冲区，不做拷贝
+     */
+    private static ByteBuf readData(ByteBuf in, int length) {
+        if (length == 0) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+
+        if (length <= COPY_THRESHOLD) {
+            ByteBuf data = in.alloc().buffer(length);
+            data.writeBytes(in, length);
+            return data;
+        }
+
+        return in.readSlice(length).retain();
+    }
+
+    /**
+     * 拆开批量帧，除最后一个消息外直接交给后面的处理器，最后一个作为解码结果返回
+     *
+     * 父类每次解码前都会先把上一次的解码结果交给后面的处理器，所以这里直接传递不会打乱顺序
+     */
+    private static ProxyMessage unbatch(ChannelHandlerContext ctx, ProxyMessage batch) {
+        ByteBuf frames = batch.getData();
+        ProxyMessage last = null;
+        try {
+            while (frames.isReadable()) {
+                if ((frames.getByte(frames.readerIndex()) & ProtocolVersion.V2_FLAG) == 0) {
+                    throw new CorruptedFrameException("malformed batch frame");
+                }
+
+                ProxyMessage proxyMessage = readV2Frame(frames);
+                if (proxyMessage.getType() == ProxyMessage.TYPE_BATCH) {
+                    proxyMessage.release();
+                    throw new CorruptedFrameException("nested batch frame");
+                }
+
+                if (last != null) {
+                    ctx.fireChannelRead(last);
+                }
+                last = proxyMessage;
+            }
+        } catch (RuntimeException e) {
+            if (last != null) {
+                last.release();
+            }
+            throw e;
+        } finally {
+            batch.release();
+        }
+
+        return last;
+    }
+
+    /**
+     * 父类默认会把帧拷贝到新分配的缓冲区中，这里改为返回共享同一块内存的切片
+     */
+    @Override
+    protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        return buffer.slice(index, length).retain();
+    }
 }
 
 //
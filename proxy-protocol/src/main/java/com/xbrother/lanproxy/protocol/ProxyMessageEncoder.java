@@ -1,12 +1,31 @@
 package com.xbrother.lanproxy.protocol;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+/**
+ * 消息编码
+ *
+ * 只把 14 字节的消息头和 uri 写入一个从池中分配的小缓冲区，消息数据作为单独的一次 write 紧随其后，
+ * 数据本身不做任何拷贝，由底层的 gathering write 一并发出
+ *
+ * 对端支持批量帧的 v2 连接上（见 {@link ProtocolVersion#FEATURE_BATCH}），同一轮事件循环中写入的小消息会合并为一个 {@link ProxyMessage#TYPE_BATCH} 帧，
+ * 期间的 flush 推迟到本轮事件循环结束时执行，多个小数据包只产生一次系统调用
+ */
+public class ProxyMessageEncoder extends MessageToMessageEncoder<ProxyMessage> {
 
-public class ProxyMessageEncoder extends MessageToByteEncoder<ProxyMessage> {
+    private static final int HEADER_SIZE = 4;
 
     private static final int TYPE_SIZE = 1;
 
@@ -14,46 +33,328 @@ public class ProxyMessageEncoder extends MessageToByteEncoder<ProxyMessage> {
 
     private static final int URI_LENGTH_SIZE = 1;
 
-    private static Logger logger = LoggerFactory.getLogger(ProxyMessageEncoder.class);
+    /** uri 长度字段只有一个字节 */
+    private static final int MAX_URI_LENGTH = 0xFF;
+
+    /** UTF-8 编码下单个 char 最多占用的字节数 */
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    /** v2 帧头最大长度：类型 + 长度 + 编号 + uri 长度 */
+    private static final int MAX_V2_HEADER_SIZE = 1 + 5 + 10 + 1;
+
+    /** 数据不超过该大小的消息才参与合并 */
+    private static final int MAX_BATCHED_DATA_SIZE = 1024;
+
+    /** 合并的消息累计超过该大小时立即写出 */
+    private static final int MAX_BATCH_SIZE = 16 * 1024;
+
+    /** 预先编码好的 v1 心跳帧，所有连接共用 */
+    private static final ByteBuf HEARTBEAT_V1 = Unpooled.unreleasableBuffer(Unpooled.directBuffer(HEADER_SIZE + TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE)
+            .writeInt(TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE).writeByte(ProxyMessage.TYPE_HEARTBEAT).writeLong(0).writeByte(0));
+
+    /** 预先编码好的 v2 心跳帧，所有连接共用 */
+    private static final ByteBuf HEARTBEAT_V2;
+
+    static {
+        ProxyMessage heartbeat = new ProxyMessage();
+        heartbeat.setType(ProxyMessage.TYPE_HEARTBEAT);
+        ByteBuf frame = Unpooled.directBuffer(MAX_V2_HEADER_SIZE);
+        writeV2Header(frame, heartbeat);
+        HEARTBEAT_V2 = Unpooled.unreleasableBuffer(frame);
+    }
+
+    private final boolean batchEnable;
+
+    /** 本轮事件循环中等待合并的消息 */
+    private final List<ProxyMessage> batch = new ArrayList<ProxyMessage>();
+
+    private final List<ChannelPromise> batchPromises = new ArrayList<ChannelPromise>();
+
+    private int batchSize;
+
+    private boolean writeScheduled;
+
+    private boolean flushPending;
+
+    private ChannelHandlerContext ctx;
+
+    private final Runnable writeBatchTask = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled = false;
+            writeBatchAndFlush(ctx);
+        }
+    };
+
+    public ProxyMessageEncoder() {
+        this(true);
+    }
+
+    /**
+     * @param batchEnable 是否合并同一轮事件循环中的小消息
+     */
+    public ProxyMessageEncoder(boolean batchEnable) {
+        this.batchEnable = batchEnable;
+    }
+
+    /**
+     * 取得该连接使用的心跳帧，直接写出即可，不需要释放
+     */
+    public static ByteBuf heartbeat(Channel channel) {
+        return (ProtocolVersion.isV2(channel) ? HEARTBEAT_V2 : HEARTBEAT_V1).duplicate();
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, ByteBuf out) throws Exception {
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
 
-        int bodyLength = TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE;
-        byte[] uriBytes = null;
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // 切换为透传等场景下移除编码器前 先写出已合并的消息
+        writeBatchAndFlush(ctx);
+    }
 
-        if (msg.getUri() != null) {
-            uriBytes = msg.getUri().getBytes();
-            bodyLength += uriBytes.length;
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (batchEnable && msg instanceof ProxyMessage && isBatchable(ctx, (ProxyMessage) msg)) {
+            addToBatch(ctx, (ProxyMessage) msg, promise);
+            return;
         }
 
-        // 处理 msg data  压缩问题
-//        byte[] oldMsgData = msg.getData();
-//        byte[] newMsgData = Compress.gzipCompress(oldMsgData);
-//        byte[] newMsgData = Compress.zlibCompress(oldMsgData);
-//        msg.setData(newMsgData);
-//        logger.debug("oldMsgData length: " + oldMsgData.length+ oldMsgData.toString() + ", newMsgData length: " +  newMsgData.length + newMsgData.toString());
+        // 保证顺序 先写出已合并的消息
+        writeBatch(ctx);
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (!batch.isEmpty()) {
+            // 推迟到本轮事件循环结束时与合并的消息一起 flush
+            flushPending = true;
+            return;
+        }
 
+        ctx.flush();
+    }
 
-        if (msg.getData() != null) {
-            bodyLength += msg.getData().length;
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, List<Object> out) throws Exception {
+        if (ProtocolVersion.isV2(ctx.channel())) {
+            encodeV2(ctx, msg, out);
+            return;
         }
 
-        // write the total packet length but without length field's length.
-        out.writeInt(bodyLength);
+        String uri = msg.getUri();
+        ByteBuf data = msg.getData();
+        int uriCapacity = uri == null ? 0 : uri.length() * MAX_BYTES_PER_CHAR;
 
-        out.writeByte(msg.getType());
-        out.writeLong(msg.getSerialNumber());
+        ByteBuf header = ctx.alloc().ioBuffer(HEADER_SIZE + TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE + uriCapacity);
+        try {
+            // 长度与 uri 长度先占位 写完 uri 后回填
+            header.writeInt(0);
+            header.writeByte(msg.getType());
+            header.writeLong(msg.getSerialNumber());
+            header.writeByte(0);
 
-        if (uriBytes != null) {
-            out.writeByte((byte) uriBytes.length);
-            out.writeBytes(uriBytes);
-        } else {
-            out.writeByte((byte) 0x00);
+            int uriLength = 0;
+            if (uri != null) {
+                uriLength = ByteBufUtil.writeUtf8(header, uri);
+                if (uriLength > MAX_URI_LENGTH) {
+                    throw new EncoderException("uri too long: " + uriLength);
+                }
+                header.setByte(HEADER_SIZE + TYPE_SIZE + SERIAL_NUMBER_SIZE, uriLength);
+            }
+
+            int dataLength = data == null ? 0 : data.readableBytes();
+
+            // write the total packet length but without length field's length.
+            header.setInt(0, TYPE_SIZE + SERIAL_NUMBER_SIZE + URI_LENGTH_SIZE + uriLength + dataLength);
+        } catch (Exception e) {
+            header.release();
+            throw e;
         }
 
-        if (msg.getData() != null) {
-            out.writeBytes(msg.getData());
+        addData(header, data, out);
+    }
+
+    private void encodeV2(ChannelHandlerContext ctx, ProxyMessage msg, List<Object> out) throws Exception {
+        String uri = msg.getUri();
+        ByteBuf header = ctx.alloc().ioBuffer(MAX_V2_HEADER_SIZE + (uri == null ? 0 : uri.length() * MAX_BYTES_PER_CHAR));
+        try {
+            writeV2Header(header, msg);
+        } catch (Exception e) {
+            header.release();
+            throw e;
+        }
+
+        addData(header, msg.getData(), out);
+    }
+
+    /**
+     * 写入 v2 帧头（不含数据）
+     */
+    private static void writeV2Header(ByteBuf out, ProxyMessage msg) {
+        String uri = msg.getUri();
+        ByteBuf data = msg.getData();
+        int uriLength = uri == null ? 0 : utf8Length(uri);
+        if (uriLength > MAX_URI_LENGTH) {
+            throw new EncoderException("uri too long: " + uriLength);
+        }
+
+        int typeByte = ProtocolVersion.V2_FLAG | (msg.getType() & ProtocolVersion.V2_TYPE_MASK);
+        int frameLength = Varints.varintSize(msg.getSerialNumber()) + (data == null ? 0 : data.readableBytes());
+        if (uri != null) {
+            typeByte |= ProtocolVersion.V2_URI_FLAG;
+            frameLength += URI_LENGTH_SIZE + uriLength;
+        }
+
+        out.writeByte(typeByte);
+        Varints.writeVarint(out, frameLength);
+        Varints.writeVarint(out, msg.getSerialNumber());
+        if (uri != null) {
+            out.writeByte(uriLength);
+            ByteBufUtil.writeUtf8(out, uri);
+        }
+    }
+
+    private static boolean isBatchable(ChannelHandlerContext ctx, ProxyMessage msg) {
+        ByteBuf data = msg.getData();
+        return ProtocolVersion.isV2(ctx.channel()) && ProtocolVersion.hasFeature(ctx.channel(), ProtocolVersion.FEATURE_BATCH) && msg.getType() != ProxyMessage.TYPE_BATCH && (data == null || data.readableBytes() <= MAX_BATCHED_DATA_SIZE);
+    }
+
+    private void addToBatch(ChannelHandlerContext ctx, ProxyMessage msg, ChannelPromise promise) {
+        batch.add(msg);
+        if (promise != ctx.voidPromise()) {
+            batchPromises.add(promise);
+        }
+
+        String uri = msg.getUri();
+        batchSize += MAX_V2_HEADER_SIZE + (uri == null ? 0 : uri.length() * MAX_BYTES_PER_CHAR) + (msg.getData() == null ? 0 : msg.getData().readableBytes());
+        if (batchSize >= MAX_BATCH_SIZE) {
+            writeBatch(ctx);
+        }
+
+        if (!writeScheduled) {
+            // 同一轮事件循环中之后写入的消息都会排在这个任务之前
+            writeScheduled = true;
+            ctx.executor().execute(writeBatchTask);
+        }
+    }
+
+    private void writeBatchAndFlush(ChannelHandlerContext ctx) {
+        // 写出过程中可能重入 先取出 flush 标记
+        boolean flush = flushPending;
+        flushPending = false;
+        writeBatch(ctx);
+        if (flush) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * 写出已合并的消息，只有一个消息时按普通帧编码
+     */
+    private void writeBatch(ChannelHandlerContext ctx) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        ChannelPromise promise = newBatchPromise(ctx);
+        if (batch.size() == 1) {
+            ProxyMessage msg = batch.get(0);
+            batch.clear();
+            batchSize = 0;
+            try {
+                super.write(ctx, msg, promise);
+            } catch (Exception e) {
+                promise.tryFailure(e);
+            }
+            return;
+        }
+
+        ByteBuf frames = ctx.alloc().ioBuffer(batchSize);
+        try {
+            for (ProxyMessage msg : batch) {
+                writeV2Header(frames, msg);
+                if (msg.getData() != null) {
+                    frames.writeBytes(msg.getData(), msg.getData().readerIndex(), msg.getData().readableBytes());
+                }
+            }
+        } catch (RuntimeException e) {
+            frames.release();
+            promise.tryFailure(e);
+            return;
+        } finally {
+            for (ProxyMessage msg : batch) {
+                msg.release();
+            }
+            batch.clear();
+            batchSize = 0;
+        }
+
+        // 批量帧本身的 id 为 0 没有 uri
+        ByteBuf header = ctx.alloc().ioBuffer(MAX_V2_HEADER_SIZE);
+        header.writeByte(ProtocolVersion.V2_FLAG | ProxyMessage.TYPE_BATCH);
+        Varints.writeVarint(header, Varints.varintSize(0) + frames.readableBytes());
+        Varints.writeVarint(header, 0);
+        ctx.write(header, ctx.voidPromise());
+        ctx.write(frames, promise);
+    }
+
+    private ChannelPromise newBatchPromise(ChannelHandlerContext ctx) {
+        if (batchPromises.isEmpty()) {
+            return ctx.voidPromise();
+        }
+
+        if (batchPromises.size() == 1) {
+            ChannelPromise promise = batchPromises.get(0);
+            batchPromises.clear();
+            return promise;
+        }
+
+        final ChannelPromise[] promises = batchPromises.toArray(new ChannelPromise[batchPromises.size()]);
+        batchPromises.clear();
+        ChannelPromise promise = ctx.newPromise();
+        promise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelPromise p : promises) {
+                    if (future.isSuccess()) {
+                        p.trySuccess();
+                    } else {
+                        p.tryFailure(future.cause());
+                    }
+                }
+            }
+        });
+        return promise;
+    }
+
+    private static void addData(ByteBuf header, ByteBuf data, List<Object> out) {
+        out.add(header);
+        if (data != null && data.isReadable()) {
+            // 编码完成后父类会释放消息（连同数据），这里需要先 retain 数据
+            out.add(data.retain());
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // 代理对编码为 4 个字节
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
         }
+        return length;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package com.xbrother.lanproxy.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelConfig;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 透传模式（v2 数据连接）
+ *
+ * 数据连接与用户连接绑定后只承载这一个用户连接的数据，CONNECT 消息之后两端都去掉消息编解码器，
+ * 字节不再封装为 TRANSFER 消息，直接在两个连接之间转发。透传的数据连接不再复用，任意一端关闭即关闭整条链路。
+ *
+ * 两端都是 epoll 连接且在同一个 EventLoop 上、没有 SSL 时，直接用 splice 在内核中转发。
+ */
+public class RawRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static Logger logger = LoggerFactory.getLogger(RawRelayHandler.class);
+
+    private final RelayFlusher flusher;
+
+    public RawRelayHandler(int maxPendingFlushBytes) {
+        this.flusher = new RelayFlusher(maxPendingFlushBytes);
+    }
+
+    /**
+     * 把数据连接切换为透传模式，必须在数据连接的 EventLoop 中调用
+     *
+     * 解码器中尚未解析的字节会在解码器移除时交给透传处理器
+     *
+     * @param channel 已绑定 {@link Constants#NEXT_CHANNEL} 的数据连接
+     * @param maxPendingFlushBytes 转发时未 flush 数据的上限，见 {@link RelayFlusher}
+     */
+    public static void install(Channel channel, int maxPendingFlushBytes) {
+        channel.attr(Constants.RAW_MODE).set(Boolean.TRUE);
+
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.remove(ProxyMessageEncoder.class);
+        if (pipeline.get(FragmentHandler.class) != null) {
+            pipeline.remove(FragmentHandler.class);
+        }
+        if (pipeline.get(WriteScheduler.class) != null) {
+            pipeline.remove(WriteScheduler.class);
+        }
+        if (pipeline.get(IdleCheckHandler.class) != null) {
+            // 透传后不再有心跳消息
+            pipeline.remove(IdleCheckHandler.class);
+        }
+        pipeline.replace(ProxyMessageDecoder.class, "raw", new RawRelayHandler(maxPendingFlushBytes));
+    }
+
+    public static boolean isRaw(Channel channel) {
+        return channel.attr(Constants.RAW_MODE).get() != null;
+    }
+
+    /**
+     * 条件满足时在两个连接之间用 splice 双向转发
+     *
+     * @return 是否启用了 splice
+     */
+    public static boolean trySplice(Channel channel, Channel peer) {
+        if (!(channel instanceof AbstractEpollStreamChannel) || !(peer instanceof AbstractEpollStreamChannel)) {
+            return false;
+        }
+
+        // splice 要求两个连接在同一个 EventLoop 上，且数据不能经过 SslHandler
+        if (channel.eventLoop() != peer.eventLoop() || channel.pipeline().get(SslHandler.class) != null || peer.pipeline().get(SslHandler.class) != null) {
+            return false;
+        }
+
+        // 还要求两个连接都是水平触发 注册之后不能再修改 只能在创建连接时指定
+        if (((EpollChannelConfig) channel.config()).getEpollMode() != EpollMode.LEVEL_TRIGGERED || ((EpollChannelConfig) peer.config()).getEpollMode() != EpollMode.LEVEL_TRIGGERED) {
+            return false;
+        }
+
+        splice((AbstractEpollStreamChannel) channel, (AbstractEpollStreamChannel) peer);
+        splice((AbstractEpollStreamChannel) peer, (AbstractEpollStreamChannel) channel);
+        logger.debug("splice {} <-> {}", channel, peer);
+        return true;
+    }
+
+    private static void splice(final AbstractEpollStreamChannel from, final AbstractEpollStreamChannel to) {
+        from.spliceTo(to, Integer.MAX_VALUE).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    from.close();
+                    to.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Channel peer = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        if (peer == null) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            return;
+        }
+
+        flusher.write(peer, msg, msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : 0);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flusher.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flusher.flush();
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,148 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * 合并本端连接的小块读取（服务端为用户连接，客户端为真实服务器连接）
+ *
+ * 同一个流的读取先累积起来，累积到指定大小、本轮读取结束（channelReadComplete）或者超过指定的等待时间时
+ * 才作为一次读取交给后面的处理器，后面的处理器只封装一个数据包、flush 一次。
+ * 等待时间为 0 时每轮读取结束即交出；大于 0 时可以跨越多轮读取累积，从第一个字节开始计时。
+ *
+ * 适合文件同步、数据库导出等更关注吞吐的映射，会增加交互式流量的延迟
+ */
+public class ReadCoalescingHandler extends ChannelInboundHandlerAdapter {
+
+    public static final String NAME = "coalesce";
+
+    /** 累积的最大字节数 */
+    private final int maxSize;
+
+    /** 累积的最长等待时间 微秒 */
+    private final long delayMicros;
+
+    private volatile ByteBuf pending;
+
+    private volatile ScheduledFuture<?> deadline;
+
+    private ChannelHandlerContext ctx;
+
+    private final Runnable deadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            deadline = null;
+            if (pending != null) {
+                emit(ctx);
+                ctx.fireChannelReadComplete();
+            }
+        }
+    };
+
+    public ReadCoalescingHandler(int maxSize, long delayMicros) {
+        this.maxSize = maxSize;
+        this.delayMicros = delayMicros;
+    }
+
+    /**
+     * 在本端连接的处理器之前加入合并处理器
+     *
+     * @param endpoint 本端连接
+     * @param maxSize
+     * @param delayMicros
+     */
+    public static void install(Channel endpoint, int maxSize, long delayMicros) {
+        if (endpoint.pipeline().get(NAME) == null) {
+            endpoint.pipeline().addFirst(NAME, new ReadCoalescingHandler(maxSize, delayMicros));
+        }
+    }
+
+    /**
+     * 连接上是否有累积中的数据或者等待交出的定时任务
+     */
+    public static boolean hasPending(Channel endpoint) {
+        ReadCoalescingHandler handler = (ReadCoalescingHandler) endpoint.pipeline().get(NAME);
+        return handler != null && (handler.pending != null || handler.deadline != null);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (pending != null) {
+            emit(ctx);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf buf = (ByteBuf) msg;
+        if (pending != null && pending.readableBytes() + buf.readableBytes() > maxSize) {
+            emit(ctx);
+        }
+
+        if (pending == null && buf.readableBytes() >= maxSize) {
+            // 本身已经足够大 直接交出
+            ctx.fireChannelRead(buf);
+            return;
+        }
+
+        if (pending == null) {
+            pending = ctx.alloc().buffer(maxSize);
+            if (delayMicros > 0) {
+                deadline = ctx.executor().schedule(deadlineTask, delayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        try {
+            pending.writeBytes(buf);
+        } finally {
+            buf.release();
+        }
+
+        if (pending.readableBytes() >= maxSize) {
+            emit(ctx);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (pending != null && delayMicros <= 0) {
+            emit(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // 连接关闭前交出剩余的数据
+        if (pending != null) {
+            emit(ctx);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    private void emit(ChannelHandlerContext ctx) {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+
+        ByteBuf buf = pending;
+        pending = null;
+        ctx.fireChannelRead(buf);
+    }
+}
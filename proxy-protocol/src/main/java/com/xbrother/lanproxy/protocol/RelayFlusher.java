@@ -0,0 +1,80 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.Arrays;
+
+import io.netty.channel.Channel;
+
+/**
+ * 转发时合并 flush
+ *
+ * 转发处理器在一轮读取中只 write 不 flush，记下写过的连接，在 channelReadComplete 时统一 flush，
+ * 一轮读取中的多个数据包只产生一次系统调用。未 flush 的数据超过上限时提前 flush，避免积压过多。
+ *
+ * 写出使用 voidPromise，写过的连接记在复用的数组中，转发每个数据包不再创建 promise 和集合节点。
+ *
+ * 每个连接的处理器各自持有一个，只在该连接的 EventLoop 中使用
+ */
+public class RelayFlusher {
+
+    /** 默认的未 flush 数据上限 */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 64 * 1024;
+
+    private final int maxPendingBytes;
+
+    /** 本轮读取中写过的连接 通常只有一个，复用模式下为本轮涉及的各个流 */
+    private Channel[] channels = new Channel[4];
+
+    private int channelCount;
+
+    private int pendingBytes;
+
+    public RelayFlusher(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * 写出但暂不 flush
+     *
+     * @param channel 目标连接
+     * @param msg
+     * @param bytes 消息的数据大小
+     */
+    public void write(Channel channel, Object msg, int bytes) {
+        channel.write(msg, channel.voidPromise());
+        add(channel);
+        pendingBytes += bytes;
+        if (pendingBytes >= maxPendingBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * flush 本轮读取中写过的连接
+     */
+    public void flush() {
+        if (channelCount == 0) {
+            return;
+        }
+
+        for (int i = 0; i < channelCount; i++) {
+            channels[i].flush();
+            channels[i] = null;
+        }
+        channelCount = 0;
+        pendingBytes = 0;
+    }
+
+    private void add(Channel channel) {
+        // 连续写同一个连接最常见 先比较最后一个
+        for (int i = channelCount - 1; i >= 0; i--) {
+            if (channels[i] == channel) {
+                return;
+            }
+        }
+
+        if (channelCount == channels.length) {
+            channels = Arrays.copyOf(channels, channelCount * 2);
+        }
+        channels[channelCount++] = channel;
+    }
+}
@@ -0,0 +1,181 @@
+package com.xbrother.lanproxy.protocol;
+
+import io.netty.channel.Channel;
+
+/**
+ * 控制连接的往返时延统计
+ *
+ * 心跳探测的应答到达时记录一次往返时延，单位为微秒。分布记录在对数分桶的直方图中（每个 2 的幂次再分 8 个桶，误差约 12%），
+ * 抖动按 RFC 3550 的方式估计：相邻两次时延之差的绝对值的指数平均。
+ *
+ * 在控制连接的 EventLoop 中记录，在管理接口的线程中读取
+ */
+public class RttStats {
+
+    /** 小于该值的时延每个值一个桶 */
+    private static final int LINEAR_BUCKETS = 16;
+
+    /** 每个 2 的幂次分成的桶数 */
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private final long[] buckets = new long[BUCKETS];
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    private long last = -1;
+
+    private double jitter;
+
+    /**
+     * 当前时间 微秒，从进程启动开始计算，不会是负数或者 0，可以直接作为心跳的 serialNumber
+     */
+    public static long nowMicros() {
+        return (System.nanoTime() - BASE_NANOS) / 1000 + 1;
+    }
+
+    /**
+     * 为控制连接开启统计
+     */
+    public static RttStats attach(Channel channel) {
+        RttStats stats = new RttStats();
+        channel.attr(Constants.RTT_STATS).set(stats);
+        return stats;
+    }
+
+    /**
+     * @return 没有开启统计时返回 null
+     */
+    public static RttStats get(Channel channel) {
+        return channel.attr(Constants.RTT_STATS).get();
+    }
+
+    public synchronized void record(long rttMicros) {
+        if (rttMicros < 0) {
+            return;
+        }
+
+        buckets[bucketIndex(rttMicros)]++;
+        count++;
+        sum += rttMicros;
+        min = Math.min(min, rttMicros);
+        max = Math.max(max, rttMicros);
+        if (last >= 0) {
+            jitter += (Math.abs(rttMicros - last) - jitter) / 16;
+        }
+        last = rttMicros;
+    }
+
+    public synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.samples = count;
+        if (count == 0) {
+            return snapshot;
+        }
+
+        snapshot.minUs = min;
+        snapshot.maxUs = max;
+        snapshot.avgUs = sum / count;
+        snapshot.p99Us = Math.min(percentile(0.99), max);
+        snapshot.lastUs = last;
+        snapshot.jitterUs = (long) jitter;
+        return snapshot;
+    }
+
+    private long percentile(double percentile) {
+        long target = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return bucketUpperBound(i);
+            }
+        }
+        return max;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * 统计结果，时延单位为微秒
+     */
+    public static class Snapshot {
+
+        private long samples;
+
+        private long minUs;
+
+        private long avgUs;
+
+        private long p99Us;
+
+        private long maxUs;
+
+        private long lastUs;
+
+        private long jitterUs;
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getMinUs() {
+            return minUs;
+        }
+
+        public long getAvgUs() {
+            return avgUs;
+        }
+
+        public long getP99Us() {
+            return p99Us;
+        }
+
+        public long getMaxUs() {
+            return maxUs;
+        }
+
+        public long getLastUs() {
+            return lastUs;
+        }
+
+        public long getJitterUs() {
+            return jitterUs;
+        }
+
+        @Override
+        public String toString() {
+            return "samples=" + samples + ", min=" + minUs + "us, avg=" + avgUs + "us, p99=" + p99Us + "us, max=" + maxUs + "us, jitter=" + jitterUs + "us";
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.xbrother.lanproxy.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannelConfig;
+
+/**
+ * 映射级的 socket 参数（发送、接收缓冲，写缓冲高低水位，TCP_NODELAY）
+ *
+ * 服务端按映射配置的档案名称解析出参数，用于用户连接，并随映射表下发给客户端用于真实服务器连接，
+ * 非复用模式下两端的数据连接也使用同样的参数，保证隧道两侧的调优一致。
+ * 数值为 0 时保持系统或 netty 的默认值
+ *
+ * 编码：varint 标志位（bit0 TCP_NODELAY）、varint 发送缓冲、varint 接收缓冲、varint 高水位、varint 低水位
+ */
+public class SocketProfile {
+
+    private static final int FLAG_TCP_NODELAY = 1;
+
+    private String name;
+
+    private boolean tcpNoDelay = true;
+
+    private int sendBufferSize;
+
+    private int receiveBufferSize;
+
+    private int writeBufferHighWaterMark;
+
+    private int writeBufferLowWaterMark;
+
+    public SocketProfile() {
+    }
+
+    public SocketProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * netty 的默认参数 复用池中的数据连接绑定到没有配置档案的映射时用于恢复，socket 缓冲一经设置无法恢复为系统自动调整
+     */
+    public static SocketProfile defaults() {
+        SocketProfile profile = new SocketProfile("default");
+        profile.setWriteBufferHighWaterMark(64 * 1024);
+        profile.setWriteBufferLowWaterMark(32 * 1024);
+        return profile;
+    }
+
+    /**
+     * 交互类 关闭 Nagle，小缓冲、低水位让积压尽早反压到对端，减少排队时延
+     */
+    public static SocketProfile interactive() {
+        SocketProfile profile = new SocketProfile("interactive");
+        profile.setTcpNoDelay(true);
+        profile.setSendBufferSize(32 * 1024);
+        profile.setReceiveBufferSize(32 * 1024);
+        profile.setWriteBufferHighWaterMark(32 * 1024);
+        profile.setWriteBufferLowWaterMark(16 * 1024);
+        return profile;
+    }
+
+    /**
+     * 批量类 大缓冲、高水位，减少暂停读取的次数，提高高时延链路上的吞吐
+     */
+    public static SocketProfile bulk() {
+        SocketProfile profile = new SocketProfile("bulk");
+        profile.setTcpNoDelay(false);
+        profile.setSendBufferSize(1024 * 1024);
+        profile.setReceiveBufferSize(1024 * 1024);
+        profile.setWriteBufferHighWaterMark(1024 * 1024);
+        profile.setWriteBufferLowWaterMark(512 * 1024);
+        return profile;
+    }
+
+    /**
+     * 设置到连接上 可以在连接建立后调用，接收缓冲超过 64K 时在连接建立后设置不能扩大握手时的窗口缩放
+     */
+    public void apply(Channel channel) {
+        ChannelConfig config = channel.config();
+        if (config instanceof SocketChannelConfig) {
+            SocketChannelConfig socketConfig = (SocketChannelConfig) config;
+            socketConfig.setTcpNoDelay(tcpNoDelay);
+            if (sendBufferSize > 0) {
+                socketConfig.setSendBufferSize(sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                socketConfig.setReceiveBufferSize(receiveBufferSize);
+            }
+        }
+
+        // 先调整会被另一个值限制的一侧 高水位不能低于低水位
+        if (writeBufferHighWaterMark > 0 && writeBufferHighWaterMark >= config.getWriteBufferLowWaterMark()) {
+            config.setOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+        }
+        if (writeBufferLowWaterMark > 0 && writeBufferLowWaterMark <= config.getWriteBufferHighWaterMark()) {
+            config.setOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+        }
+        if (writeBufferHighWaterMark > 0 && writeBufferHighWaterMark != config.getWriteBufferHighWaterMark()) {
+            config.setOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+        }
+    }
+
+    public void encode(ByteBuf out) {
+        Varints.writeVarint(out, tcpNoDelay ? FLAG_TCP_NODELAY : 0);
+        Varints.writeVarint(out, sendBufferSize);
+        Varints.writeVarint(out, receiveBufferSize);
+        Varints.writeVarint(out, writeBufferHighWaterMark);
+        Varints.writeVarint(out, writeBufferLowWaterMark);
+    }
+
+    /**
+     * 解码 缺少的字段保持默认值，以后增加的字段直接忽略
+     */
+    public static SocketProfile decode(ByteBuf in) {
+        SocketProfile profile = new SocketProfile();
+        if (in.isReadable()) {
+            profile.setTcpNoDelay((Varints.readVarint(in) & FLAG_TCP_NODELAY) != 0);
+        }
+        profile.setSendBufferSize(readSize(in));
+        profile.setReceiveBufferSize(readSize(in));
+        profile.setWriteBufferHighWaterMark(readSize(in));
+        profile.setWriteBufferLowWaterMark(readSize(in));
+        return profile;
+    }
+
+    private static int readSize(ByteBuf in) {
+        if (!in.isReadable()) {
+            return 0;
+        }
+        long value = Varints.readVarint(in);
+        return value < 0 || value > Integer.MAX_VALUE ? 0 : (int) value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    @Override
+    public String toString() {
+        return "SocketProfile [name=" + name + ", tcpNoDelay=" + tcpNoDelay + ", sndbuf=" + sendBufferSize + ", rcvbuf=" + receiveBufferSize + ", water=" + writeBufferLowWaterMark + "/"
+                + writeBufferHighWaterMark + "]";
+    }
+}
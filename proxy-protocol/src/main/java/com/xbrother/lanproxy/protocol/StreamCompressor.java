@@ -0,0 +1,281 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * 单个流的流式压缩上下文（v2 及以上），挂在流对应的本端连接上（服务端为用户连接，客户端为真实服务器连接）
+ *
+ * 两个方向各用一个 Deflater/Inflater，每个数据包以 SYNC_FLUSH 结束，压缩字典在整个流中延续，
+ * 压缩后的数据包使用 {@link ProxyMessage#P_TYPE_TRANSFER_DEFLATE} 类型，未压缩的数据包不经过压缩上下文，
+ * 所以发送方可以随时对某个数据包不压缩，不需要通知接收方。
+ *
+ * 发送方把流开头的一段数据作为样本，样本压缩率太低（TLS、图片视频等）时之后的数据包都不再压缩。
+ * Deflater/Inflater 在流关闭后放回池中复用。
+ */
+public class StreamCompressor {
+
+    private static Logger logger = LoggerFactory.getLogger(StreamCompressor.class);
+
+    /** 小于该大小的数据包不压缩 */
+    private static final int MIN_COMPRESS_SIZE = 64;
+
+    /** 用于判断是否值得压缩的样本大小 */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /** 样本压缩后仍不小于原大小的该百分比时放弃压缩 */
+    private static final int INCOMPRESSIBLE_PERCENT = 90;
+
+    /** 一个数据包解压后的最大长度 与未压缩消息的上限相同，超过时视为数据损坏（解压炸弹） */
+    private static final int MAX_DECOMPRESSED_LENGTH = FragmentHandler.DEFAULT_MAX_MESSAGE_LENGTH;
+
+    private static final int MAX_POOL_SIZE = 256;
+
+    /** 每个线程缓存的拷贝数组的最大大小 */
+    private static final int MAX_CACHED_ARRAY_SIZE = 1024 * 1024;
+
+    private static final Queue<Deflater> deflaterPool = new ConcurrentLinkedQueue<Deflater>();
+
+    private static final Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<Inflater>();
+
+    private static final AtomicInteger deflaterPoolSize = new AtomicInteger();
+
+    private static final AtomicInteger inflaterPoolSize = new AtomicInteger();
+
+    /** 直接内存中的数据需要先拷贝到数组中才能交给 Deflater/Inflater */
+    private static final FastThreadLocal<byte[]> inputArray = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SAMPLE_SIZE];
+        }
+    };
+
+    /** 发送方向，只在本端连接的 EventLoop 中使用 */
+    private Deflater deflater;
+
+    /** 接收方向，在控制连接或数据连接的 EventLoop 中使用，与关闭之间需要加锁 */
+    private Inflater inflater;
+
+    private final Object inflaterLock = new Object();
+
+    private long sampleIn;
+
+    private long sampleOut;
+
+    private boolean bypass;
+
+    private boolean closed;
+
+    /**
+     * 创建流的压缩上下文并绑定到本端连接
+     */
+    public static StreamCompressor open(Channel endpoint) {
+        StreamCompressor compressor = new StreamCompressor();
+        endpoint.attr(Constants.STREAM_COMPRESSOR).set(compressor);
+        return compressor;
+    }
+
+    public static StreamCompressor get(Channel endpoint) {
+        return endpoint.attr(Constants.STREAM_COMPRESSOR).get();
+    }
+
+    /**
+     * 取出数据消息中要写给本端连接的数据，压缩的数据包先解压
+     *
+     * @param endpoint 本端连接
+     * @param proxyMessage 数据消息
+     * @return 交给调用方写出或释放，数据损坏时返回 null 并关闭本端连接
+     */
+    public static ByteBuf readData(Channel endpoint, ProxyMessage proxyMessage) {
+        if (proxyMessage.getType() != ProxyMessage.P_TYPE_TRANSFER_DEFLATE) {
+            return proxyMessage.getData().retain();
+        }
+
+        StreamCompressor compressor = get(endpoint);
+        try {
+            if (compressor == null) {
+                throw new DataFormatException("stream is not compressed");
+            }
+            return compressor.decompress(endpoint.alloc(), proxyMessage.getData());
+        } catch (DataFormatException e) {
+            logger.warn("decompress error, {}, {}", endpoint, e.getMessage());
+            endpoint.close();
+            return null;
+        }
+    }
+
+    /**
+     * 压缩要发给对端的数据，不改变 in 的读索引
+     *
+     * @return 压缩后的数据，不需要压缩时返回 null，调用方按原样发送
+     */
+    public ByteBuf compress(ByteBufAllocator alloc, ByteBuf in) {
+        int length = in.readableBytes();
+        if (bypass || closed || length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+
+        if (deflater == null) {
+            deflater = pollDeflater();
+        }
+        setInput(deflater, in);
+
+        ByteBuf out = alloc.heapBuffer(length / 2 + MIN_COMPRESS_SIZE);
+        for (;;) {
+            int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes(), Deflater.SYNC_FLUSH);
+            out.writerIndex(out.writerIndex() + n);
+            if (out.isWritable()) {
+                // 输出缓冲没有写满 说明已经全部输出
+                break;
+            }
+            out.ensureWritable(out.capacity());
+        }
+
+        if (sampleIn < SAMPLE_SIZE) {
+            sampleIn += length;
+            sampleOut += out.readableBytes();
+            if (sampleIn >= SAMPLE_SIZE && sampleOut * 100 >= sampleIn * INCOMPRESSIBLE_PERCENT) {
+                // 本次的数据包已经进入压缩字典 仍需压缩发送 之后的数据包不再压缩
+                logger.debug("incompressible stream, sample {} -> {}", sampleIn, sampleOut);
+                bypass = true;
+                releaseDeflater();
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * 解压对端发来的数据
+     */
+    public ByteBuf decompress(ByteBufAllocator alloc, ByteBuf in) throws DataFormatException {
+        synchronized (inflaterLock) {
+            if (closed) {
+                return alloc.heapBuffer(0);
+            }
+
+            if (inflater == null) {
+                inflater = pollInflater();
+            }
+            setInput(inflater, in);
+
+            ByteBuf out = alloc.heapBuffer((int) Math.min((long) in.readableBytes() * 3, MAX_DECOMPRESSED_LENGTH));
+            try {
+                for (;;) {
+                    if (!out.isWritable()) {
+                        if (out.writerIndex() >= MAX_DECOMPRESSED_LENGTH) {
+                            throw new DataFormatException("decompressed data exceeds " + MAX_DECOMPRESSED_LENGTH + " bytes");
+                        }
+                        out.ensureWritable(Math.min(Math.max(out.capacity(), MIN_COMPRESS_SIZE), MAX_DECOMPRESSED_LENGTH - out.writerIndex()));
+                    }
+
+                    int n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                    out.writerIndex(out.writerIndex() + n);
+                    if (n == 0) {
+                        if (inflater.needsInput()) {
+                            break;
+                        }
+                        throw new DataFormatException("unexpected end of compressed stream");
+                    }
+                }
+            } catch (DataFormatException e) {
+                out.release();
+                throw e;
+            }
+
+            return out;
+        }
+    }
+
+    /**
+     * 本端连接关闭时释放压缩上下文，只能在本端连接的 EventLoop 中调用
+     */
+    public void release() {
+        releaseDeflater();
+        synchronized (inflaterLock) {
+            closed = true;
+            if (inflater != null) {
+                inflater.reset();
+                if (inflaterPoolSize.incrementAndGet() <= MAX_POOL_SIZE) {
+                    inflaterPool.offer(inflater);
+                } else {
+                    inflaterPoolSize.decrementAndGet();
+                    inflater.end();
+                }
+                inflater = null;
+            }
+        }
+    }
+
+    private void releaseDeflater() {
+        if (deflater != null) {
+            deflater.reset();
+            if (deflaterPoolSize.incrementAndGet() <= MAX_POOL_SIZE) {
+                deflaterPool.offer(deflater);
+            } else {
+                deflaterPoolSize.decrementAndGet();
+                deflater.end();
+            }
+            deflater = null;
+        }
+    }
+
+    private static Deflater pollDeflater() {
+        Deflater deflater = deflaterPool.poll();
+        if (deflater == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+        deflaterPoolSize.decrementAndGet();
+        return deflater;
+    }
+
+    private static Inflater pollInflater() {
+        Inflater inflater = inflaterPool.poll();
+        if (inflater == null) {
+            return new Inflater();
+        }
+        inflaterPoolSize.decrementAndGet();
+        return inflater;
+    }
+
+    private static void setInput(Deflater deflater, ByteBuf in) {
+        if (in.hasArray()) {
+            deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+        } else {
+            deflater.setInput(toArray(in), 0, in.readableBytes());
+        }
+    }
+
+    private static void setInput(Inflater inflater, ByteBuf in) {
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+        } else {
+            inflater.setInput(toArray(in), 0, in.readableBytes());
+        }
+    }
+
+    private static byte[] toArray(ByteBuf in) {
+        int length = in.readableBytes();
+        byte[] array = inputArray.get();
+        if (array.length < length) {
+            array = new byte[length];
+            if (length <= MAX_CACHED_ARRAY_SIZE) {
+                inputArray.set(array);
+            }
+        }
+        in.getBytes(in.readerIndex(), array, 0, length);
+        return array;
+    }
+}
@@ -0,0 +1,194 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * 复用模式（v3）下单个流的流量控制窗口，挂在流对应的本端连接上（服务端为用户连接，客户端为真实服务器连接）
+ *
+ * 发送方每发出一个数据包扣减发送窗口，窗口用完时暂停读取本端连接，收到 WINDOW_UPDATE 后恢复；
+ * 接收方把数据写入本端连接后，只在本端连接可写时归还窗口，累计超过窗口一半时发送 WINDOW_UPDATE。
+ * 接收方同时记录授予对端还没有用完的窗口，对端不遵守窗口、超出一个窗口的余量时重置这个流，
+ * 不会因为一个对端在一条复用连接上无限制地积压数据。
+ * 某个流的接收方处理不过来时只会停掉这一个流，同一控制连接上的其他流不受影响。
+ * 控制连接本身不可写时（见 {@link WriteScheduler}）所有流都暂停读取，窗口和控制连接都允许时才恢复。
+ */
+public class StreamWindow {
+
+    /** 流的初始窗口大小，两端相同 */
+    public static final int INITIAL_WINDOW_SIZE = 256 * 1024;
+
+    private static final int UPDATE_THRESHOLD = INITIAL_WINDOW_SIZE / 2;
+
+    /** 发送方在窗口用完的那次读取仍会整块发出 接收方允许超出的余量 */
+    private static final int MAX_OVERRUN = INITIAL_WINDOW_SIZE;
+
+    private final long id;
+
+    /** 复用的控制连接 */
+    private final Channel tunnel;
+
+    /** 本端连接 */
+    private final Channel endpoint;
+
+    /** 还可以发给对端的字节数 */
+    private final AtomicInteger sendWindow = new AtomicInteger(INITIAL_WINDOW_SIZE);
+
+    /** 已写入本端连接但还没有归还给对端的字节数 */
+    private final AtomicInteger unackedBytes = new AtomicInteger();
+
+    /** 授予对端 对端还可以发来的字节数 */
+    private final AtomicInteger receiveWindow = new AtomicInteger(INITIAL_WINDOW_SIZE);
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** 流的数据在控制连接上的写出优先级，见 {@link WriteScheduler} */
+    private volatile int priority = WriteScheduler.PRIORITY_NORMAL;
+
+    private StreamWindow(long id, Channel tunnel, Channel endpoint) {
+        this.id = id;
+        this.tunnel = tunnel;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * 创建流的窗口并绑定到本端连接
+     *
+     * @param id 流编号，即用户编号
+     * @param tunnel 复用的控制连接
+     * @param endpoint 本端连接
+     * @return
+     */
+    public static StreamWindow open(long id, Channel tunnel, Channel endpoint) {
+        StreamWindow window = new StreamWindow(id, tunnel, endpoint);
+        endpoint.attr(Constants.STREAM_WINDOW).set(window);
+        return window;
+    }
+
+    public static StreamWindow get(Channel endpoint) {
+        return endpoint.attr(Constants.STREAM_WINDOW).get();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Channel getTunnel() {
+        return tunnel;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 从本端连接读到的数据发给对端前调用
+     */
+    public void onDataSent(int bytes) {
+        if (sendWindow.addAndGet(-bytes) <= 0) {
+            endpoint.config().setAutoRead(false);
+
+            // 窗口更新可能在暂停读取之前已经到达
+            if (canSend()) {
+                endpoint.config().setAutoRead(true);
+            }
+        }
+    }
+
+    /**
+     * 收到对端的 WINDOW_UPDATE
+     */
+    public void onWindowUpdate(int increment) {
+        int window = sendWindow.addAndGet(increment);
+        if (window > 0 && window - increment <= 0 && tunnel.isWritable()) {
+            endpoint.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * 控制连接的可写状态变化 不可写时暂停读取本端连接
+     */
+    public void onTunnelWritabilityChanged() {
+        endpoint.config().setAutoRead(canSend());
+    }
+
+    private boolean canSend() {
+        return sendWindow.get() > 0 && tunnel.isWritable();
+    }
+
+    /**
+     * 对端发来数据 写入本端连接之前调用，扣减授予对端的窗口
+     *
+     * @return 对端是否遵守窗口，返回 false 时调用方丢弃数据并关闭本端连接重置流
+     */
+    public boolean tryReceive(int bytes) {
+        return receiveWindow.addAndGet(-bytes) >= -MAX_OVERRUN;
+    }
+
+    /**
+     * 对端发来的数据已经写入本端连接
+     */
+    public void onDataReceived(int bytes) {
+        if (unackedBytes.addAndGet(bytes) >= UPDATE_THRESHOLD && endpoint.isWritable()) {
+            sendWindowUpdate();
+        }
+    }
+
+    /**
+     * 本端连接恢复可写时归还积压的窗口
+     */
+    public void onEndpointWritable() {
+        if (unackedBytes.get() >= UPDATE_THRESHOLD) {
+            sendWindowUpdate();
+        }
+    }
+
+    /**
+     * 标记流已关闭
+     *
+     * @return 第一次关闭时返回 true，用于避免两端互相重复发送断开消息
+     */
+    public boolean close() {
+        return closed.compareAndSet(false, true);
+    }
+
+    /**
+     * 本端连接断开时通知对端关闭流
+     */
+    public void sendDisconnect() {
+        if (!close() || !tunnel.isActive()) {
+            return;
+        }
+
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
+        proxyMessage.setSerialNumber(id);
+        // 与流的数据同类排队 排在已发出的数据之后
+        proxyMessage.setPriority(priority);
+        tunnel.writeAndFlush(proxyMessage, tunnel.voidPromise());
+    }
+
+    private void sendWindowUpdate() {
+        int increment = unackedBytes.getAndSet(0);
+        if (increment <= 0 || !tunnel.isActive()) {
+            return;
+        }
+
+        receiveWindow.addAndGet(increment);
+
+        ByteBuf data = tunnel.alloc().buffer(Varints.varintSize(increment));
+        Varints.writeVarint(data, increment);
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_WINDOW_UPDATE);
+        proxyMessage.setSerialNumber(id);
+        proxyMessage.setData(data);
+        tunnel.writeAndFlush(proxyMessage, tunnel.voidPromise());
+    }
+}
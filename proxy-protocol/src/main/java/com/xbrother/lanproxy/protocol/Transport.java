@@ -0,0 +1,197 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.net.BindException;
+import java.net.SocketAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.Errors;
+
+/**
+ * 网络传输实现的选择
+ *
+ * Linux 上默认使用 netty-all 自带的 epoll，不可用时回退到 NIO。
+ * epoll 下还可以开启 TCP_FASTOPEN、TCP_USER_TIMEOUT，以及用 SO_REUSEPORT 把同一个端口绑定到多个 boss 线程上，
+ * 由内核在多个监听 socket 之间分配新连接。
+ * 连接统一使用水平触发：边缘触发下关闭 autoRead 不能及时停止读取，转发时按对端可写状态暂停读取的背压会失效；
+ * 水平触发同时也是透传的数据连接使用 splice 的前提，见 {@link RawRelayHandler#trySplice(Channel, Channel)}
+ */
+public final class Transport {
+
+    /** 可用时使用 epoll */
+    public static final String AUTO = "auto";
+
+    public static final String EPOLL = "epoll";
+
+    public static final String NIO = "nio";
+
+    private static Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    /** epoll 绑定失败时返回的 -errno，Linux 上 EADDRINUSE 为 98 */
+    private static final int ERRNO_EADDRINUSE_NEGATIVE = -98;
+
+    private final boolean epoll;
+
+    private final boolean splice;
+
+    private Transport(boolean epoll, boolean splice) {
+        this.epoll = epoll;
+        this.splice = splice;
+    }
+
+    /**
+     * @param name {@link #AUTO}、{@link #EPOLL} 或者 {@link #NIO}，指定 epoll 但不可用时回退到 NIO
+     */
+    public static Transport select(String name) {
+        return select(name, false);
+    }
+
+    /**
+     * @param name {@link #AUTO}、{@link #EPOLL} 或者 {@link #NIO}，指定 epoll 但不可用时回退到 NIO
+     * @param splice epoll 下透传的数据连接是否使用 splice
+     */
+    public static Transport select(String name, boolean splice) {
+        if (NIO.equalsIgnoreCase(name)) {
+            return new Transport(false, splice);
+        }
+
+        boolean available = Epoll.isAvailable();
+        if (!available && EPOLL.equalsIgnoreCase(name)) {
+            logger.warn("epoll transport is unavailable, fallback to nio", Epoll.unavailabilityCause());
+        }
+        logger.info("use {} transport", available ? EPOLL : NIO);
+        return new Transport(available, splice);
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public boolean isSplice() {
+        return epoll && splice;
+    }
+
+    /**
+     * @param nThreads 线程数 为 0 时使用 netty 的默认值
+     */
+    public EventLoopGroup newEventLoopGroup(int nThreads) {
+        return epoll ? new EpollEventLoopGroup(nThreads) : new NioEventLoopGroup(nThreads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends Channel> socketChannelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * 设置监听端口上 epoll 特有的选项 NIO 下不做处理
+     *
+     * @param acceptors 大于 1 时开启 SO_REUSEPORT，配合 {@link #bind(ServerBootstrap, SocketAddress, int)} 使用
+     * @param fastOpenQueue TCP_FASTOPEN 的队列长度 为 0 时不开启
+     * @param userTimeoutMillis 连接上 TCP_USER_TIMEOUT 的毫秒数 为 0 时使用系统默认值
+     */
+    public void configure(ServerBootstrap bootstrap, int acceptors, int fastOpenQueue, int userTimeoutMillis) {
+        if (!epoll) {
+            return;
+        }
+
+        bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        if (acceptors > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (fastOpenQueue > 0) {
+            bootstrap.option(EpollChannelOption.TCP_FASTOPEN, fastOpenQueue);
+        }
+        if (userTimeoutMillis > 0) {
+            bootstrap.childOption(EpollChannelOption.TCP_USER_TIMEOUT, userTimeoutMillis);
+        }
+    }
+
+    /**
+     * 设置主动连接上 epoll 特有的选项 NIO 下不做处理
+     *
+     * @param userTimeoutMillis TCP_USER_TIMEOUT 的毫秒数 为 0 时使用系统默认值
+     */
+    public void configure(Bootstrap bootstrap, int userTimeoutMillis) {
+        if (!epoll) {
+            return;
+        }
+
+        bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        if (userTimeoutMillis > 0) {
+            bootstrap.option(EpollChannelOption.TCP_USER_TIMEOUT, userTimeoutMillis);
+        }
+    }
+
+    /**
+     * epoll 下限制连接在内核发送缓冲中尚未发出的字节数（TCP_NOTSENT_LOWAT），超过后连接变为不可写，
+     * 待发送的数据留在应用层按需要调度，NIO 下不做处理
+     */
+    public static void limitNotSent(Channel channel, long bytes) {
+        if (channel instanceof EpollSocketChannel && bytes > 0) {
+            ((EpollSocketChannel) channel).config().setTcpNotSentLowAt(bytes);
+        }
+    }
+
+    /**
+     * 绑定失败是否因为端口已被占用 NIO 下为 BindException，epoll 下为带 errno 的 NativeIoException
+     */
+    public static boolean isAddressInUse(Throwable cause) {
+        if (cause instanceof BindException) {
+            return true;
+        }
+        return cause instanceof Errors.NativeIoException && ((Errors.NativeIoException) cause).expectedErr() == ERRNO_EADDRINUSE_NEGATIVE;
+    }
+
+    /**
+     * 绑定监听端口，epoll 下按 acceptors 的数量重复绑定同一个地址，每个监听 socket 注册在不同的 boss 线程上。
+     * 返回第一个绑定的结果，第一个监听 socket 关闭时其他的一起关闭
+     */
+    public ChannelFuture bind(ServerBootstrap bootstrap, SocketAddress address, int acceptors) {
+        ChannelFuture future = bootstrap.bind(address);
+        if (!epoll || acceptors <= 1) {
+            return future;
+        }
+
+        future.awaitUninterruptibly();
+        if (!future.isSuccess()) {
+            return future;
+        }
+
+        for (int i = 1; i < acceptors; i++) {
+            final ChannelFuture acceptor = bootstrap.bind(address).awaitUninterruptibly();
+            if (!acceptor.isSuccess()) {
+                logger.warn("bind acceptor " + i + " on " + address + " failed", acceptor.cause());
+                break;
+            }
+
+            future.channel().closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture f) throws Exception {
+                    acceptor.channel().close();
+                }
+            });
+        }
+        return future;
+    }
+}
@@ -0,0 +1,59 @@
+package com.xbrother.lanproxy.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * 变长整数编解码（每字节 7 位有效数据，最高位表示后面是否还有字节，低位在前）
+ *
+ * 只用于非负数
+ */
+public final class Varints {
+
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private Varints() {
+    }
+
+    public static void writeVarint(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * 读取一个变长整数
+     *
+     * @param in
+     * @return 数据不完整时返回 -1，读索引不变
+     */
+    public static long readVarint(ByteBuf in) {
+        int start = in.readerIndex();
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (!in.isReadable()) {
+                in.readerIndex(start);
+                return -1;
+            }
+
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new CorruptedFrameException("malformed varint");
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,446 @@
+package com.xbrother.lanproxy.protocol;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Recycler;
+
+/**
+ * 复用模式（v3）下控制连接上各个流的加权公平写出调度
+ *
+ * 流的数据消息按所属映射的优先级分为交互、普通、批量三类，各自排队，按权重以字节计算虚拟完成时间（WFQ），
+ * 每次写出完成时间最小的队首消息。交互类的小包只需要等待已经交给连接的数据，不会排在大量下载数据后面。
+ * 已经写入连接但还没有发出的字节（即连接发送缓冲中的字节）不超过 maxInFlightBytes，只在每写出上限的几分之一的最后一个消息上等待完成，
+ * 完成时之前的消息也都已经发出，再从队列中补充；
+ * epoll 下同时用 TCP_NOTSENT_LOWAT 限制内核发送缓冲中排队的字节，否则低速链路上数据都积压在内核中，调度不起作用。
+ *
+ * 没有优先级的消息（心跳、窗口更新、连接等控制消息）不排队直接写出；同一个流的断开消息与数据同类排队，保证顺序。
+ * 各队列排队的字节数合计超过 maxQueuedBytes 时把连接标记为不可写，降到一半以下时恢复，
+ * 由两端的处理器暂停或恢复读取该连接上所有流的本端连接，限制整个连接的积压（单个流的积压由 {@link StreamWindow} 限制）。
+ *
+ * 放在编码器之后、{@link FragmentHandler} 之前（出站方向在分片之后），大消息以分片为单位参与调度
+ */
+public class WriteScheduler extends ChannelDuplexHandler {
+
+    /** 不参与调度 */
+    public static final int PRIORITY_NONE = 0;
+
+    /** 交互类 SSH、远程桌面、数据库查询等 */
+    public static final int PRIORITY_INTERACTIVE = 1;
+
+    /** 普通类 未配置优先级的映射 */
+    public static final int PRIORITY_NORMAL = 2;
+
+    /** 批量类 文件下载、备份等 */
+    public static final int PRIORITY_BULK = 3;
+
+    private static final String[] CLASS_NAMES = { null, "interactive", "normal", "bulk" };
+
+    /** 各类的权重 排队时按权重分配带宽 */
+    private static final int[] WEIGHTS = { 0, 16, 4, 1 };
+
+    /** 默认的已写入未发出字节数上限 */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BYTES = 64 * 1024;
+
+    /** 默认的排队字节数上限 */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    /** 排队超过上限时使用的用户自定义可写状态位 */
+    private static final int QUEUE_WRITABILITY_INDEX = 1;
+
+    /** 上限之内挂监听器的消息数 越多发送缓冲越早得到补充 */
+    private static final int HOOKS_PER_WINDOW = 4;
+
+    /** 消息的帧头开销 避免空消息的完成时间不增长 */
+    private static final int FRAME_OVERHEAD = 8;
+
+    private final int maxInFlightBytes;
+
+    private final int maxQueuedBytes;
+
+    /** 各队列排队的字节数合计 */
+    private long queuedBytes;
+
+    private final ClassQueue[] queues = new ClassQueue[CLASS_NAMES.length];
+
+    /** 最近写出的消息的虚拟完成时间 */
+    private long virtualTime;
+
+    /** 挂了监听器还没有完成的消息数 */
+    private int pendingHooks;
+
+    /** 上一个挂监听器的消息之后写出的字节数 */
+    private int unhookedBytes;
+
+    private final ChannelFutureListener drainListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            onWritten();
+        }
+    };
+
+    /** 是否已经限制了内核发送缓冲 连接上出现第一个需要调度的消息时设置 */
+    private boolean notSentLimited;
+
+    private ChannelHandlerContext ctx;
+
+    public WriteScheduler() {
+        this(DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    /**
+     * @param maxInFlightBytes 已写入连接但还没有发出的字节数上限 越小交互类的排队时延越低
+     */
+    public WriteScheduler(int maxInFlightBytes) {
+        this(maxInFlightBytes, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param maxInFlightBytes 已写入连接但还没有发出的字节数上限 越小交互类的排队时延越低
+     * @param maxQueuedBytes 整个连接排队的字节数上限 超过后连接不可写
+     */
+    public WriteScheduler(int maxInFlightBytes, int maxQueuedBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        for (int i = PRIORITY_INTERACTIVE; i < queues.length; i++) {
+            queues[i] = new ClassQueue(WEIGHTS[i]);
+        }
+    }
+
+    /**
+     * 优先级不合法时按普通处理
+     */
+    public static int normalize(Integer priority) {
+        return priority == null || priority < PRIORITY_INTERACTIVE || priority > PRIORITY_BULK ? PRIORITY_NORMAL : priority;
+    }
+
+    /**
+     * 连接上各类队列的统计 没有调度器时返回 null
+     */
+    public static Map<String, QueueStats> stats(Channel channel) {
+        WriteScheduler scheduler = channel.pipeline().get(WriteScheduler.class);
+        if (scheduler == null) {
+            return null;
+        }
+
+        Map<String, QueueStats> stats = new LinkedHashMap<String, QueueStats>();
+        for (int i = PRIORITY_INTERACTIVE; i < scheduler.queues.length; i++) {
+            stats.put(CLASS_NAMES[i], scheduler.queues[i].stats());
+        }
+        return stats;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof ProxyMessage) || ((ProxyMessage) msg).getPriority() == PRIORITY_NONE) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        if (!notSentLimited) {
+            notSentLimited = true;
+            Transport.limitNotSent(ctx.channel(), maxInFlightBytes);
+        }
+
+        ProxyMessage proxyMessage = (ProxyMessage) msg;
+        ClassQueue queue = queues[normalize(proxyMessage.getPriority())];
+        int size = (proxyMessage.getData() == null ? 0 : proxyMessage.getData().readableBytes()) + FRAME_OVERHEAD;
+
+        // 队列空闲后重新加入时从当前虚拟时间开始 不能用之前空闲的时间抢占
+        long finishTime = Math.max(virtualTime, queue.lastFinishTime) + (long) size * WEIGHTS[PRIORITY_INTERACTIVE] / queue.weight;
+        queue.lastFinishTime = finishTime;
+        queue.add(PendingWrite.newInstance(proxyMessage, promise, size, finishTime));
+        queuedBytes += size;
+        if (queuedBytes > maxQueuedBytes) {
+            setQueueWritable(ctx, false);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        drain(ctx);
+        ctx.flush();
+    }
+
+    /**
+     * 在上限之内按虚拟完成时间写出排队的消息
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        if (buffer == null) {
+            // 连接已经关闭 由 channelInactive 释放排队的消息
+            return;
+        }
+
+        // 没有挂监听器的消息时至少写出一个 保证之后还会继续
+        while (pendingHooks == 0 || buffer.totalPendingWriteBytes() < maxInFlightBytes) {
+            ClassQueue next = null;
+            for (int i = PRIORITY_INTERACTIVE; i < queues.length; i++) {
+                ClassQueue queue = queues[i];
+                if (!queue.isEmpty() && (next == null || queue.peek().finishTime < next.peek().finishTime)) {
+                    next = queue;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+
+            PendingWrite pendingWrite = next.poll();
+            virtualTime = pendingWrite.finishTime;
+            queuedBytes -= pendingWrite.size;
+            if (queuedBytes <= maxQueuedBytes / 2) {
+                setQueueWritable(ctx, true);
+            }
+
+            ChannelPromise promise = pendingWrite.promise;
+            unhookedBytes += pendingWrite.size;
+            if (unhookedBytes >= maxInFlightBytes / HOOKS_PER_WINDOW || buffer.totalPendingWriteBytes() + pendingWrite.size >= maxInFlightBytes) {
+                // 每写出上限的几分之一或者达到上限时在这个消息上等待完成 完成时之前写出的消息也都已经完成
+                pendingHooks++;
+                unhookedBytes = 0;
+                if (promise == ctx.voidPromise()) {
+                    promise = ctx.newPromise();
+                }
+                promise.addListener(drainListener);
+            }
+            ctx.write(pendingWrite.msg, promise);
+            pendingWrite.recycle();
+        }
+    }
+
+    private void onWritten() {
+        pendingHooks--;
+        if (ctx.channel().isActive()) {
+            for (int i = PRIORITY_INTERACTIVE; i < queues.length; i++) {
+                if (!queues[i].isEmpty()) {
+                    drain(ctx);
+                    ctx.flush();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void setQueueWritable(ChannelHandlerContext ctx, boolean writable) {
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        // 状态不变时不会触发 channelWritabilityChanged
+        if (buffer != null) {
+            buffer.setUserDefinedWritability(QUEUE_WRITABILITY_INDEX, writable);
+        }
+    }
+
+    private void releaseAll() {
+        for (int i = PRIORITY_INTERACTIVE; i < queues.length; i++) {
+            for (PendingWrite pendingWrite = queues[i].poll(); pendingWrite != null; pendingWrite = queues[i].poll()) {
+                queuedBytes -= pendingWrite.size;
+                pendingWrite.msg.release();
+                if (pendingWrite.promise != ctx.voidPromise()) {
+                    pendingWrite.promise.tryFailure(new ClosedChannelException());
+                }
+                pendingWrite.recycle();
+            }
+        }
+    }
+
+    /**
+     * 一类消息的队列 统计数据只在 EventLoop 中修改
+     */
+    private static final class ClassQueue {
+
+        private final int weight;
+
+        private final ArrayDeque<PendingWrite> queue = new ArrayDeque<PendingWrite>();
+
+        private long lastFinishTime;
+
+        private volatile int queuedMessages;
+
+        private volatile long queuedBytes;
+
+        private volatile long peakQueuedBytes;
+
+        private volatile long sentMessages;
+
+        private volatile long sentBytes;
+
+        private volatile long maxWaitMicros;
+
+        private ClassQueue(int weight) {
+            this.weight = weight;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        PendingWrite peek() {
+            return queue.peek();
+        }
+
+        void add(PendingWrite pendingWrite) {
+            queue.add(pendingWrite);
+            queuedMessages++;
+            queuedBytes += pendingWrite.size;
+            if (queuedBytes > peakQueuedBytes) {
+                peakQueuedBytes = queuedBytes;
+            }
+        }
+
+        PendingWrite poll() {
+            PendingWrite pendingWrite = queue.poll();
+            if (pendingWrite != null) {
+                queuedMessages--;
+                queuedBytes -= pendingWrite.size;
+                sentMessages++;
+                sentBytes += pendingWrite.size;
+                long waitMicros = (System.nanoTime() - pendingWrite.enqueueTime) / 1000;
+                if (waitMicros > maxWaitMicros) {
+                    maxWaitMicros = waitMicros;
+                }
+            }
+            return pendingWrite;
+        }
+
+        QueueStats stats() {
+            return new QueueStats(weight, queuedMessages, queuedBytes, peakQueuedBytes, sentMessages, sentBytes, maxWaitMicros);
+        }
+    }
+
+    /**
+     * 排队的消息 取出写出后回收
+     */
+    private static final class PendingWrite {
+
+        private static final Recycler<PendingWrite> RECYCLER = new Recycler<PendingWrite>() {
+            @Override
+            protected PendingWrite newObject(Recycler.Handle handle) {
+                return new PendingWrite(handle);
+            }
+        };
+
+        private final Recycler.Handle handle;
+
+        private ProxyMessage msg;
+
+        private ChannelPromise promise;
+
+        private int size;
+
+        private long finishTime;
+
+        private long enqueueTime;
+
+        private PendingWrite(Recycler.Handle handle) {
+            this.handle = handle;
+        }
+
+        static PendingWrite newInstance(ProxyMessage msg, ChannelPromise promise, int size, long finishTime) {
+            PendingWrite pendingWrite = RECYCLER.get();
+            pendingWrite.msg = msg;
+            pendingWrite.promise = promise;
+            pendingWrite.size = size;
+            pendingWrite.finishTime = finishTime;
+            pendingWrite.enqueueTime = System.nanoTime();
+            return pendingWrite;
+        }
+
+        void recycle() {
+            msg = null;
+            promise = null;
+            RECYCLER.recycle(this, handle);
+        }
+    }
+
+    /**
+     * 一类队列的统计快照
+     */
+    public static final class QueueStats {
+
+        private final int weight;
+
+        /** 当前排队的消息数 */
+        private final int queuedMessages;
+
+        /** 当前排队的字节数 */
+        private final long queuedBytes;
+
+        /** 排队字节数的峰值 */
+        private final long peakQueuedBytes;
+
+        private final long sentMessages;
+
+        private final long sentBytes;
+
+        /** 消息排队的最长时间 */
+        private final long maxWaitMicros;
+
+        private QueueStats(int weight, int queuedMessages, long queuedBytes, long peakQueuedBytes, long sentMessages, long sentBytes, long maxWaitMicros) {
+            this.weight = weight;
+            this.queuedMessages = queuedMessages;
+            this.queuedBytes = queuedBytes;
+            this.peakQueuedBytes = peakQueuedBytes;
+            this.sentMessages = sentMessages;
+            this.sentBytes = sentBytes;
+            this.maxWaitMicros = maxWaitMicros;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getQueuedMessages() {
+            return queuedMessages;
+        }
+
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        public long getPeakQueuedBytes() {
+            return peakQueuedBytes;
+        }
+
+        public long getSentMessages() {
+            return sentMessages;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        public long getMaxWaitMicros() {
+            return maxWaitMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "weight=" + weight + " queued=" + queuedMessages + "/" + queuedBytes + "B peak=" + peakQueuedBytes + "B sent=" + sentMessages + "/" + sentBytes + "B maxWait="
+                    + maxWaitMicros + "us";
+        }
+    }
+}
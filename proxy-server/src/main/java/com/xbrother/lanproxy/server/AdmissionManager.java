@@ -0,0 +1,376 @@
+package com.xbrother.lanproxy.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent;
+import com.xbrother.lanproxy.server.config.ProxyConfig;
+import com.xbrother.lanproxy.server.config.ProxyConfig.Client;
+import com.xbrother.lanproxy.server.config.ProxyConfig.ClientProxyMapping;
+import com.xbrother.lanproxy.server.config.ProxyConfig.ConfigChangedListener;
+import com.xbrother.lanproxy.server.metrics.MetricsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 用户连接的并发数限制（每个代理端口 + 每个客户端）
+ *
+ * 每个放行的用户连接都会让客户端去连接内网服务，突发的大量连接可能压垮客户端背后的小设备。
+ * 超过限制的用户连接先不通知客户端，在客户端的有界队列中按到达顺序等待，有连接断开时放行；
+ * 等待超时或者队列已满时直接关闭。限制来自 config.json，修改后对新的连接和正在等待的连接生效
+ */
+public class AdmissionManager {
+
+    private static Logger logger = LoggerFactory.getLogger(AdmissionManager.class);
+
+    /** 每个客户端等待中的用户连接数上限 */
+    private static final int QUEUE_SIZE = Config.getInstance().getIntValue("server.admission.queue.size", 128);
+
+    /** 用户连接等待的最长时间 毫秒 */
+    private static final long QUEUE_TIMEOUT = Config.getInstance().getIntValue("server.admission.queue.timeout", 10000);
+
+    private static final AttributeKey<Ticket> TICKET = AttributeKey.newInstance("admission_ticket");
+
+    private static Map<String, ClientAdmission> clientAdmissions = new ConcurrentHashMap<String, ClientAdmission>();
+
+    /** 代理端口所属的客户端 */
+    private static volatile Map<Integer, String> portClientKeys = new HashMap<Integer, String>();
+
+    /** 配置了并发数限制的代理端口 */
+    private static volatile Map<Integer, Integer> portLimits = new HashMap<Integer, Integer>();
+
+    static {
+        update();
+        ProxyConfig.getInstance().addConfigChangedListener(new ConfigChangedListener() {
+            @Override
+            public void onChanged(ConfigChangeEvent event) {
+                update();
+            }
+        });
+    }
+
+    /**
+     * 用户连接建立后调用，未超过限制时立即执行 connectTask，否则排队，放行后在用户连接的 EventLoop 中执行
+     *
+     * @param port 用户连接的代理端口
+     * @param connectTask 通知客户端建立后端连接
+     */
+    public static void admit(final Channel userChannel, int port, final Runnable connectTask) {
+        String clientKey = portClientKeys.get(port);
+        ClientAdmission admission = clientKey == null ? null : clientAdmissions.get(clientKey);
+        if (admission == null) {
+            // 配置已经删除 端口即将解绑
+            connectTask.run();
+            return;
+        }
+
+        final Ticket ticket = new Ticket(admission, userChannel, port, connectTask);
+        userChannel.attr(TICKET).set(ticket);
+        switch (admission.acquire(ticket)) {
+        case Ticket.ADMITTED:
+            connectTask.run();
+            break;
+        case Ticket.WAITING:
+            logger.debug("user channel queued on port {}, {}", port, userChannel);
+            ticket.timeout = userChannel.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (ticket.owner.expire(ticket)) {
+                        logger.info("user channel rejected on port {} after waiting {}ms, {}", ticket.port, QUEUE_TIMEOUT, userChannel);
+                        userChannel.close();
+                    }
+                }
+            }, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!ticket.owner.isWaiting(ticket)) {
+                // 设置之前已经被其他线程放行
+                ticket.cancelTimeout();
+            }
+            break;
+        default:
+            logger.info("user channel rejected on port {}, queue is full, {}", port, userChannel);
+            userChannel.close();
+        }
+    }
+
+    /**
+     * 用户连接断开时调用，释放占用的名额或者退出等待
+     *
+     * @return 用户连接是否已经放行，即客户端是否已经收到连接消息
+     */
+    public static boolean release(Channel userChannel) {
+        Ticket ticket = userChannel.attr(TICKET).get();
+        if (ticket == null) {
+            return true;
+        }
+        return ticket.owner.release(ticket);
+    }
+
+    /**
+     * 用户连接是否还有没有结束的排队超时任务
+     */
+    public static boolean hasPendingTimeout(Channel userChannel) {
+        Ticket ticket = userChannel.attr(TICKET).get();
+        ScheduledFuture<?> timeout = ticket == null ? null : ticket.timeout;
+        return timeout != null && !timeout.isDone();
+    }
+
+    /**
+     * 按最新的配置调整限制 配置放宽后立即放行等待中的连接
+     */
+    private static synchronized void update() {
+        Map<Integer, String> newPortClientKeys = new HashMap<Integer, String>();
+        Map<Integer, Integer> newPortLimits = new HashMap<Integer, Integer>();
+        Map<String, Integer> clientLimits = new HashMap<String, Integer>();
+
+        List<Client> clients = ProxyConfig.getInstance().getClients();
+        if (clients != null) {
+            for (Client client : clients) {
+                clientLimits.put(client.getClientKey(), toLimit(client.getMaxConnections()));
+                if (client.getProxyMappings() == null) {
+                    continue;
+                }
+                for (ClientProxyMapping mapping : client.getProxyMappings()) {
+                    newPortClientKeys.put(mapping.getInetPort(), client.getClientKey());
+                    if (toLimit(mapping.getMaxConnections()) > 0) {
+                        newPortLimits.put(mapping.getInetPort(), mapping.getMaxConnections());
+                    }
+                }
+            }
+        }
+
+        portClientKeys = newPortClientKeys;
+        portLimits = newPortLimits;
+
+        for (Map.Entry<String, Integer> entry : clientLimits.entrySet()) {
+            ClientAdmission admission = clientAdmissions.get(entry.getKey());
+            if (admission == null) {
+                clientAdmissions.put(entry.getKey(), new ClientAdmission(entry.getValue()));
+            } else {
+                admission.setLimit(entry.getValue());
+            }
+        }
+
+        // 删除的客户端 已放行的连接随端口解绑关闭 不再限制
+        Iterator<Map.Entry<String, ClientAdmission>> ite = clientAdmissions.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry<String, ClientAdmission> entry = ite.next();
+            if (!clientLimits.containsKey(entry.getKey())) {
+                ite.remove();
+                entry.getValue().setLimit(0);
+            }
+        }
+    }
+
+    private static int toLimit(Integer maxConnections) {
+        return maxConnections == null || maxConnections < 0 ? 0 : maxConnections;
+    }
+
+    /**
+     * 一个客户端的名额和等待队列
+     */
+    private static final class ClientAdmission {
+
+        /** 客户端的并发数上限 为 0 时不限制 */
+        private int limit;
+
+        private int count;
+
+        private final Map<Integer, Integer> portCounts = new HashMap<Integer, Integer>();
+
+        private final ArrayDeque<Ticket> waiters = new ArrayDeque<Ticket>();
+
+        private ClientAdmission(int limit) {
+            this.limit = limit;
+        }
+
+        void setLimit(int limit) {
+            List<Ticket> admitted;
+            synchronized (this) {
+                this.limit = limit;
+                admitted = admitWaiters();
+            }
+            dispatch(admitted);
+        }
+
+        synchronized int acquire(Ticket ticket) {
+            // 客户端还有名额时等待中的连接都是受端口限制 只需要排在同一端口更早到达的连接之后
+            if (!hasWaiter(ticket.port) && tryAcquire(ticket)) {
+                return ticket.state;
+            }
+
+            if (waiters.size() >= QUEUE_SIZE) {
+                ticket.state = Ticket.DONE;
+                MetricsCollector.getCollector(ticket.port).incrementRejectedChannels();
+                return Ticket.REJECTED;
+            }
+
+            ticket.state = Ticket.WAITING;
+            waiters.add(ticket);
+            MetricsCollector.getCollector(ticket.port).getQueuedChannels().incrementAndGet();
+            return Ticket.WAITING;
+        }
+
+        synchronized boolean isWaiting(Ticket ticket) {
+            return ticket.state == Ticket.WAITING;
+        }
+
+        /**
+         * @return 是否需要关闭用户连接
+         */
+        synchronized boolean expire(Ticket ticket) {
+            if (ticket.state != Ticket.WAITING) {
+                return false;
+            }
+
+            waiters.remove(ticket);
+            ticket.state = Ticket.DONE;
+            MetricsCollector collector = MetricsCollector.getCollector(ticket.port);
+            collector.getQueuedChannels().decrementAndGet();
+            collector.incrementRejectedChannels();
+            return true;
+        }
+
+        boolean release(Ticket ticket) {
+            List<Ticket> admitted;
+            synchronized (this) {
+                int state = ticket.state;
+                ticket.state = Ticket.DONE;
+                if (state == Ticket.WAITING) {
+                    waiters.remove(ticket);
+                    MetricsCollector.getCollector(ticket.port).getQueuedChannels().decrementAndGet();
+                    ticket.cancelTimeout();
+                    return false;
+                }
+                if (state != Ticket.ADMITTED) {
+                    return false;
+                }
+
+                count--;
+                Integer portCount = portCounts.get(ticket.port);
+                if (portCount == null || portCount <= 1) {
+                    portCounts.remove(ticket.port);
+                } else {
+                    portCounts.put(ticket.port, portCount - 1);
+                }
+                admitted = admitWaiters();
+            }
+            dispatch(admitted);
+            return true;
+        }
+
+        /**
+         * 按到达顺序放行等待中的连接 端口已满的跳过，客户端已满时停止
+         */
+        private List<Ticket> admitWaiters() {
+            List<Ticket> admitted = null;
+            Iterator<Ticket> ite = waiters.iterator();
+            while (ite.hasNext() && (limit <= 0 || count < limit)) {
+                Ticket ticket = ite.next();
+                if (tryAcquire(ticket)) {
+                    ite.remove();
+                    MetricsCollector.getCollector(ticket.port).getQueuedChannels().decrementAndGet();
+                    if (admitted == null) {
+                        admitted = new ArrayList<Ticket>();
+                    }
+                    admitted.add(ticket);
+                }
+            }
+            return admitted;
+        }
+
+        private boolean hasWaiter(int port) {
+            for (Ticket waiter : waiters) {
+                if (waiter.port == port) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean tryAcquire(Ticket ticket) {
+            Integer portLimit = portLimits.get(ticket.port);
+            Integer portCount = portCounts.get(ticket.port);
+            int current = portCount == null ? 0 : portCount;
+            if ((limit > 0 && count >= limit) || (portLimit != null && current >= portLimit)) {
+                return false;
+            }
+
+            count++;
+            portCounts.put(ticket.port, current + 1);
+            ticket.state = Ticket.ADMITTED;
+            return true;
+        }
+
+        private static void dispatch(List<Ticket> admitted) {
+            if (admitted == null) {
+                return;
+            }
+
+            for (final Ticket ticket : admitted) {
+                ticket.cancelTimeout();
+                ticket.channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // 等待期间断开的连接在 channelInactive 中释放名额
+                        if (ticket.channel.isActive()) {
+                            ticket.connectTask.run();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * 用户连接的排队状态 由所属客户端的锁保护
+     */
+    private static final class Ticket {
+
+        static final int ADMITTED = 1;
+
+        static final int WAITING = 2;
+
+        static final int REJECTED = 3;
+
+        /** 已释放或者已拒绝 */
+        static final int DONE = 4;
+
+        private final ClientAdmission owner;
+
+        private final Channel channel;
+
+        private final int port;
+
+        private final Runnable connectTask;
+
+        private int state;
+
+        /** 等待超时的定时任务 可能在设置之前就已经被其他线程放行 */
+        private volatile ScheduledFuture<?> timeout;
+
+        private Ticket(ClientAdmission owner, Channel channel, int port, Runnable connectTask) {
+            this.owner = owner;
+            this.channel = channel;
+            this.port = port;
+            this.connectTask = connectTask;
+        }
+
+        void cancelTimeout() {
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.xbrother.lanproxy.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.protocol.ReadCoalescingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoop;
+
+/**
+ * 隧道两端连接的 EventLoop 亲和
+ *
+ * 用户连接和代理客户端的数据连接分别在 accept 时分配 EventLoop，通常不是同一个，转发时每次写出对端都要跨线程提交任务。
+ * 非复用模式下数据连接绑定后，把还没有开始读取的用户连接迁移到数据连接的 EventLoop 上，之后两端的读写在同一个线程中完成，
+ * 透传模式下还可以使用 splice。
+ *
+ * 迁移在数据连接本轮读取结束后进行：先暂停数据连接的读取，在用户连接原来的 EventLoop 中注销（之前提交的写出已经排在前面），
+ * 再注册到数据连接的 EventLoop，flush 剩余的数据后恢复两端读取。注册失败时关闭用户连接，由 channelInactive 正常清理。
+ * 在原来的 EventLoop 上还有定时任务（合并读取的等待、排队超时、限速的延迟读写）的用户连接不迁移。
+ * 复用模式下一个客户端的所有流共用控制连接，不迁移，只计入统计
+ */
+public class LoopAffinity {
+
+    private static Logger logger = LoggerFactory.getLogger(LoopAffinity.class);
+
+    private static final boolean ENABLE = Config.getInstance().getBooleanValue("server.loop.affinity", true);
+
+    /** 绑定时已经在同一个 EventLoop 上 */
+    private static final AtomicLong local = new AtomicLong();
+
+    /** 迁移后在同一个 EventLoop 上 */
+    private static final AtomicLong migrated = new AtomicLong();
+
+    /** 迁移失败 */
+    private static final AtomicLong failed = new AtomicLong();
+
+    /** 没有迁移 在不同的 EventLoop 上（关闭亲和或者复用模式） */
+    private static final AtomicLong remote = new AtomicLong();
+
+    /**
+     * 数据连接绑定时调用 需要迁移时返回 true，否则记入统计
+     *
+     * @param userChannel
+     * @param peer 数据连接，复用模式为控制连接
+     * @param movable 用户连接是否可以迁移
+     */
+    public static boolean needsMigration(Channel userChannel, Channel peer, boolean movable) {
+        if (userChannel.eventLoop() == peer.eventLoop()) {
+            local.incrementAndGet();
+            return false;
+        }
+
+        if (!ENABLE || !movable || hasScheduledTask(userChannel)) {
+            remote.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 用户连接在原来的 EventLoop 上是否还有定时任务 迁移后这些任务会在另一个线程中操作连接
+     */
+    private static boolean hasScheduledTask(Channel userChannel) {
+        // 有限速的连接随时可能在原来的 EventLoop 上安排延迟读写
+        return ReadCoalescingHandler.hasPending(userChannel) || AdmissionManager.hasPendingTimeout(userChannel) || TrafficShapingManager.isLimited(userChannel);
+    }
+
+    /**
+     * 把用户连接迁移到数据连接的 EventLoop 上，必须在数据连接的 EventLoop 中调用
+     *
+     * @param userChannel 尚未开始读取的用户连接
+     * @param dataChannel
+     * @param done 迁移结束后（无论成功与否）在数据连接的 EventLoop 中执行
+     */
+    public static void migrate(final Channel userChannel, final Channel dataChannel, final Runnable done) {
+        final EventLoop target = dataChannel.eventLoop();
+        final EventLoop origin = userChannel.eventLoop();
+        dataChannel.config().setAutoRead(false);
+
+        userChannel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!userChannel.isOpen() || !userChannel.isRegistered()) {
+                    finish(dataChannel, done);
+                    return;
+                }
+
+                userChannel.deregister().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            failed.incrementAndGet();
+                            logger.warn("deregister user channel failed, {}", userChannel, future.cause());
+                            target.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    finish(dataChannel, done);
+                                }
+                            });
+                            return;
+                        }
+
+                        target.register(userChannel).addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                if (future.isSuccess()) {
+                                    migrated.incrementAndGet();
+                                    // 注销前没有写完的数据
+                                    userChannel.flush();
+                                    finish(dataChannel, done);
+                                    return;
+                                }
+
+                                failed.incrementAndGet();
+                                logger.warn("register user channel failed, {}", userChannel, future.cause());
+                                // 回到原来的 EventLoop 正常关闭 由 channelInactive 释放名额、通知客户端
+                                origin.register(userChannel).addListener(new ChannelFutureListener() {
+                                    @Override
+                                    public void operationComplete(ChannelFuture future) throws Exception {
+                                        if (!future.isSuccess()) {
+                                            // 原来的 EventLoop 已经关闭 服务端正在停止
+                                            logger.warn("register user channel back failed, {}", userChannel, future.cause());
+                                        }
+                                        userChannel.close();
+                                        target.execute(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                finish(dataChannel, done);
+                                            }
+                                        });
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private static void finish(Channel dataChannel, Runnable done) {
+        dataChannel.config().setAutoRead(true);
+        done.run();
+    }
+
+    /**
+     * 连接的写缓冲中是否没有待发送的数据 splice 会绕过写缓冲直接写入 socket
+     */
+    public static boolean isOutboundEmpty(Channel channel) {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer != null && buffer.isEmpty();
+    }
+
+    public static Stats getStats() {
+        return new Stats(ENABLE, local.get(), migrated.get(), failed.get(), remote.get());
+    }
+
+    /**
+     * 隧道 EventLoop 亲和的统计
+     */
+    public static final class Stats {
+
+        private final boolean enable;
+
+        private final long local;
+
+        private final long migrated;
+
+        private final long failed;
+
+        private final long remote;
+
+        /** 两端在同一个 EventLoop 上的比例 */
+        private final double localRatio;
+
+        private Stats(boolean enable, long local, long migrated, long failed, long remote) {
+            this.enable = enable;
+            this.local = local;
+            this.migrated = migrated;
+            this.failed = failed;
+            this.remote = remote;
+            long total = local + migrated + failed + remote;
+            this.localRatio = total == 0 ? 0 : (double) (local + migrated) / total;
+        }
+
+        public boolean isEnable() {
+            return enable;
+        }
+
+        public long getLocal() {
+            return local;
+        }
+
+        public long getMigrated() {
+            return migrated;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getRemote() {
+            return remote;
+        }
+
+        public double getLocalRatio() {
+            return localRatio;
+        }
+    }
+}
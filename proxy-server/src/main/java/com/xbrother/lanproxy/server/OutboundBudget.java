@@ -0,0 +1,313 @@
+package com.xbrother.lanproxy.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.server.config.ProxyConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * 所有连接待发送字节数的总预算（全局 + 每个客户端）
+ *
+ * 每个连接只靠自己的高低水位暂停对端读取，连接数量多、对端都很慢时积压的总量没有上限，可能耗尽直接内存。
+ * 定时统计所有用户连接和隧道连接写缓冲中的字节数，超过预算时把积压最多的连接标记为不可写，
+ * 由已有的 channelWritabilityChanged 处理暂停对端的读取（复用模式下为延迟归还流的接收窗口），
+ * 降到预算的 3/4 以下后恢复。
+ *
+ * 复用模式的控制连接不能暂停，其上的积压由每个流的发送窗口限制，只计入总量；每个客户端的预算只统计用户连接
+ */
+public class OutboundBudget {
+
+    private static Logger logger = LoggerFactory.getLogger(OutboundBudget.class);
+
+    private static final long MB = 1024 * 1024;
+
+    /** 全局预算 默认为直接内存上限的一半 */
+    private static final long GLOBAL_BUDGET = Config.getInstance().getIntValue("server.outbound.budget.mb", 0) > 0
+            ? Config.getInstance().getIntValue("server.outbound.budget.mb", 0) * MB : PlatformDependent.maxDirectMemory() / 2;
+
+    /** 每个客户端的预算 为 0 时不限制 */
+    private static final long CLIENT_BUDGET = Config.getInstance().getIntValue("server.outbound.client.budget.mb", 0) * MB;
+
+    /** 统计周期 毫秒 */
+    private static final long CHECK_INTERVAL = Config.getInstance().getIntValue("server.outbound.check.interval", 100);
+
+    /** 不可写标记使用的位 netty 的限速处理器占用了 1~3 */
+    private static final int WRITABILITY_INDEX = 8;
+
+    private static final int GLOBAL = 1;
+
+    private static final int CLIENT = 2;
+
+    private static final Comparator<Tracked> HEAVIEST_FIRST = new Comparator<Tracked>() {
+        @Override
+        public int compare(Tracked o1, Tracked o2) {
+            return o1.pending < o2.pending ? 1 : (o1.pending == o2.pending ? 0 : -1);
+        }
+    };
+
+    private static Map<Channel, Tracked> trackedChannels = new ConcurrentHashMap<Channel, Tracked>();
+
+    private static boolean globalPressure;
+
+    private static Map<String, Boolean> clientPressures = new HashMap<String, Boolean>();
+
+    private static volatile Usage usage = new Usage(GLOBAL_BUDGET, CLIENT_BUDGET, 0, 0, 0, Collections.<String, Long> emptyMap());
+
+    private static long peak;
+
+    static {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("outbound-budget", true));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (Throwable t) {
+                    logger.error("check outbound budget error", t);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        logger.info("outbound budget {}B, client budget {}B", GLOBAL_BUDGET, CLIENT_BUDGET);
+    }
+
+    /**
+     * 统计用户连接 计入所属客户端的预算
+     */
+    public static void trackUserChannel(Channel userChannel) {
+        int port = ((InetSocketAddress) userChannel.localAddress()).getPort();
+        track(userChannel, ProxyConfig.getInstance().getClientKey(port), true);
+    }
+
+    /**
+     * 统计与代理客户端之间的连接
+     */
+    public static void trackTunnelChannel(Channel channel) {
+        track(channel, null, false);
+    }
+
+    public static Usage getUsage() {
+        return usage;
+    }
+
+    private static void track(Channel channel, String clientKey, boolean user) {
+        trackedChannels.put(channel, new Tracked(channel, clientKey, user));
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                trackedChannels.remove(future.channel());
+            }
+        });
+    }
+
+    private static void check() {
+        long total = 0;
+        int throttled = 0;
+        Map<String, Long> clientUsed = new HashMap<String, Long>();
+        Map<String, List<Tracked>> clientChannels = new HashMap<String, List<Tracked>>();
+        List<Tracked> all = new ArrayList<Tracked>(trackedChannels.values());
+        for (Tracked tracked : all) {
+            ChannelOutboundBuffer buffer = tracked.channel.unsafe().outboundBuffer();
+            tracked.pending = buffer == null ? 0 : buffer.totalPendingWriteBytes();
+            total += tracked.pending;
+            if (tracked.clientKey != null) {
+                Long used = clientUsed.get(tracked.clientKey);
+                clientUsed.put(tracked.clientKey, used == null ? tracked.pending : used + tracked.pending);
+                List<Tracked> channels = clientChannels.get(tracked.clientKey);
+                if (channels == null) {
+                    channels = new ArrayList<Tracked>();
+                    clientChannels.put(tracked.clientKey, channels);
+                }
+                channels.add(tracked);
+            }
+        }
+
+        globalPressure = shed(all, total, GLOBAL_BUDGET, globalPressure, GLOBAL);
+        if (CLIENT_BUDGET > 0) {
+            for (Map.Entry<String, List<Tracked>> entry : clientChannels.entrySet()) {
+                Boolean pressure = clientPressures.get(entry.getKey());
+                pressure = shed(entry.getValue(), clientUsed.get(entry.getKey()), CLIENT_BUDGET, pressure != null && pressure, CLIENT);
+                if (pressure) {
+                    clientPressures.put(entry.getKey(), true);
+                } else {
+                    clientPressures.remove(entry.getKey());
+                }
+            }
+            clientPressures.keySet().retainAll(clientChannels.keySet());
+        }
+
+        for (Tracked tracked : all) {
+            tracked.apply();
+            if (tracked.reasons != 0) {
+                throttled++;
+            }
+        }
+
+        peak = Math.max(peak, total);
+        usage = new Usage(GLOBAL_BUDGET, CLIENT_BUDGET, total, peak, throttled, clientUsed);
+    }
+
+    /**
+     * 超过预算后把积压最多的连接标记为不可写，直到已标记连接的积压足以把总量降到预算的 3/4 以下；降到 3/4 以下后全部恢复
+     *
+     * @return 是否仍然处于超预算状态
+     */
+    private static boolean shed(List<Tracked> channels, long used, long budget, boolean pressure, int reason) {
+        long low = budget / 4 * 3;
+        if (!pressure && used <= budget) {
+            return false;
+        }
+        if (used <= low) {
+            for (Tracked tracked : channels) {
+                tracked.reasons &= ~reason;
+            }
+            logger.info("outbound usage {}B is below {}B, resume reading", used, low);
+            return false;
+        }
+        if (!pressure) {
+            logger.warn("outbound usage {}B exceeds budget {}B, pause reading on the heaviest producers", used, budget);
+        }
+
+        long shedding = 0;
+        for (Tracked tracked : channels) {
+            if ((tracked.reasons & reason) != 0) {
+                shedding += tracked.pending;
+            }
+        }
+
+        List<Tracked> sorted = new ArrayList<Tracked>(channels);
+        Collections.sort(sorted, HEAVIEST_FIRST);
+        for (Tracked tracked : sorted) {
+            if (shedding >= used - low || tracked.pending == 0) {
+                break;
+            }
+            if ((tracked.reasons & reason) == 0 && tracked.isThrottleable()) {
+                tracked.reasons |= reason;
+                shedding += tracked.pending;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 统计中的连接 只在统计线程中修改
+     */
+    private static final class Tracked {
+
+        private final Channel channel;
+
+        private final String clientKey;
+
+        private final boolean user;
+
+        private long pending;
+
+        /** 被标记为不可写的原因 */
+        private int reasons;
+
+        private boolean writable = true;
+
+        private Tracked(Channel channel, String clientKey, boolean user) {
+            this.channel = channel;
+            this.clientKey = clientKey;
+            this.user = user;
+        }
+
+        /**
+         * 复用模式的控制连接没有对应的对端可以暂停
+         */
+        boolean isThrottleable() {
+            return user || !ProtocolVersion.isMux(channel);
+        }
+
+        void apply() {
+            final boolean writable = reasons == 0;
+            if (writable == this.writable) {
+                return;
+            }
+
+            this.writable = writable;
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+                    if (buffer != null) {
+                        buffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 待发送字节数的统计快照
+     */
+    public static final class Usage {
+
+        private final long budget;
+
+        private final long clientBudget;
+
+        private final long used;
+
+        private final long peak;
+
+        /** 当前被暂停的连接数 */
+        private final int throttledChannels;
+
+        /** 每个客户端用户连接的待发送字节数 */
+        private final Map<String, Long> clients;
+
+        private Usage(long budget, long clientBudget, long used, long peak, int throttledChannels, Map<String, Long> clients) {
+            this.budget = budget;
+            this.clientBudget = clientBudget;
+            this.used = used;
+            this.peak = peak;
+            this.throttledChannels = throttledChannels;
+            this.clients = clients;
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        public long getClientBudget() {
+            return clientBudget;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public long getPeak() {
+            return peak;
+        }
+
+        public int getThrottledChannels() {
+            return throttledChannels;
+        }
+
+        public Map<String, Long> getClients() {
+            return clients;
+        }
+    }
+}
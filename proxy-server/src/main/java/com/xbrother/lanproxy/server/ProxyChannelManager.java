@@ -1,16 +1,21 @@
 package com.xbrother.lanproxy.server;
 
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import com.xbrother.lanproxy.protocol.Constants;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.xbrother.lanproxy.common.ConcurrentLongMap;
+import com.xbrother.lanproxy.protocol.LanMapping;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent.Type;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 import com.xbrother.lanproxy.server.config.ProxyConfig.ConfigChangedListener;
 import org.slf4j.Logger;
@@ -21,118 +26,132 @@ import io.netty.util.AttributeKey;
 
 /**
  * 代理服务连接管理（代理客户端连接 + 用户请求连接）
+ *
+ * 端口到控制连接为按端口索引的数组，用户编号到用户连接为以编号为键的开放寻址表，查找都不加锁。
+ * 控制连接占用的端口保存为只读的快照，配置变化时整体替换
  */
 public class ProxyChannelManager {
 
     private static Logger logger = LoggerFactory.getLogger(ProxyChannelManager.class);
 
-    private static final AttributeKey<Map<String, Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
-
-    private static final AttributeKey<String> REQUEST_LAN_INFO = AttributeKey.newInstance("request_lan_info");
+    private static final AttributeKey<ConcurrentLongMap<Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
 
-    private static final AttributeKey<List<Integer>> CHANNEL_PORT = AttributeKey.newInstance("channel_port");
+    /** 控制连接当前占用的端口 只读的快照，变化时整体替换 */
+    private static final AttributeKey<int[]> CHANNEL_PORT = AttributeKey.newInstance("channel_port");
 
     private static final AttributeKey<String> CHANNEL_CLIENT_KEY = AttributeKey.newInstance("channel_client_key");
 
-    private static Map<Integer, Channel> portCmdChannelMapping = new ConcurrentHashMap<Integer, Channel>();
+    private static final int MAX_PORT = 65535;
+
+    /** 按端口直接索引的控制连接 */
+    private static AtomicReferenceArray<Channel> portCmdChannelMapping = new AtomicReferenceArray<Channel>(MAX_PORT + 1);
 
     private static Map<String, Channel> cmdChannels = new ConcurrentHashMap<String, Channel>();
 
     static {
+        // ProxyConfig 在锁内依次回调监听器 这里不需要再加锁，只处理映射有变化的客户端
         ProxyConfig.getInstance().addConfigChangedListener(new ConfigChangedListener() {
             /**
              * 代理配置发生变化时回调
              */
             @Override
-            public synchronized void onChanged() {
-                Iterator<Entry<String, Channel>> ite = cmdChannels.entrySet().iterator();
-                while (ite.hasNext()) {
-                    Channel proxyChannel = ite.next().getValue();
-                    String clientKey = proxyChannel.attr(CHANNEL_CLIENT_KEY).get();
-
-                    // 去除已经去掉的 clientKey 配置,  client 删除时 channel 同样删除
-                    Set<String> clientKeySet = ProxyConfig.getInstance().getClientKeySet();
-                    if (!clientKeySet.contains(clientKey)) {
+            public void onChanged(ConfigChangeEvent event) {
+                // 删除的客户端 连接同样删除
+                for (String clientKey : event.getClientKeys(Type.CLIENT_REMOVED)) {
+                    Channel proxyChannel = cmdChannels.get(clientKey);
+                    if (proxyChannel != null) {
                         removeCmdChannel(proxyChannel);
                         logger.info("removeCmdChannel clientKey from proxyChannel : " + clientKey);
+                    }
+                }
+
+                // 映射变化的端口上正在运行的用户连接需要检查
+                Set<Integer> ports = new HashSet<Integer>(event.getPorts(Type.MAPPING_CHANGED));
+                ports.addAll(event.getPorts(Type.MAPPING_REMOVED));
+
+                for (String clientKey : event.getMappingClientKeys()) {
+                    Channel proxyChannel = cmdChannels.get(clientKey);
+                    if (proxyChannel == null || !proxyChannel.isActive() || event.getClientKeys(Type.CLIENT_REMOVED).contains(clientKey)) {
                         continue;
                     }
 
-                    if (proxyChannel.isActive()) {
-                        List<Integer> inetPorts = new ArrayList<Integer>(ProxyConfig.getInstance().getClientInetPorts(clientKey));
-                        Set<Integer> inetPortSet = new HashSet<Integer>(inetPorts);
-                        List<Integer> channelInetPorts = new ArrayList<Integer>(proxyChannel.attr(CHANNEL_PORT).get());
-
-                        synchronized (portCmdChannelMapping) {
-                            // 移除旧的连接映射关系
-                            for (int chanelInetPort : channelInetPorts) {
-                                Channel channel = portCmdChannelMapping.get(chanelInetPort);
-                                if (channel == null) {
-                                    continue;
-                                }
-
-                                // 判断是否是同一个连接对象 有可能之前已经更换成其他client的连接了
-                                if (proxyChannel == channel) {
-                                    if (!inetPortSet.contains(chanelInetPort)) {
-                                        // 移除新配置中不包含的端口
-                                        portCmdChannelMapping.remove(chanelInetPort);
-                                        proxyChannel.attr(CHANNEL_PORT).get().remove(new Integer(chanelInetPort));
-                                    } else {
-                                        // 端口已经在该 proxyChannel 中使用了
-                                        inetPorts.remove(new Integer(chanelInetPort));
-                                    }
-                                }
-                            }
-
-                            // 将新配置中增加的外网端口写入到映射配置中
-                            for (int inetPort : inetPorts) {
-                                portCmdChannelMapping.put(inetPort, proxyChannel);
-                                proxyChannel.attr(CHANNEL_PORT).get().add(inetPort);
-                            }
-
-                            checkAndClearUserChannels(proxyChannel);
-                        }
+                    // 先下发新的映射表 保证之后的连接消息能在客户端找到映射
+                    if (ProtocolVersion.isV2(proxyChannel)) {
+                        pushLanMappings(proxyChannel);
                     }
-                }
 
-                ite = cmdChannels.entrySet().iterator();
-                while (ite.hasNext()) {
-                    Entry<String, Channel> entry = ite.next();
-                    Channel proxyChannel = entry.getValue();
-                    logger.info("proxyChannel config, {}, {}, {} ,{}", entry.getKey(), proxyChannel, getUserChannels(proxyChannel).size(), proxyChannel.attr(CHANNEL_PORT).get());
+                    updatePorts(proxyChannel, ProxyConfig.getInstance().getClientInetPorts(clientKey));
+                    if (!ports.isEmpty()) {
+                        checkAndClearUserChannels(proxyChannel, ports);
+                    }
+                    logger.info("proxyChannel config, {}, {}, {} ,{}", clientKey, proxyChannel, getUserChannels(proxyChannel).size(),
+                            Arrays.toString(proxyChannel.attr(CHANNEL_PORT).get()));
                 }
             }
 
             /**
-             * 检测连接配置是否与当前配置一致，不一致则关闭
+             * 检测变化的端口上的连接配置是否与当前配置一致，不一致则关闭
              *
              * @param proxyChannel
+             * @param ports 映射修改或者删除的端口
              */
-            private void checkAndClearUserChannels(Channel proxyChannel) {
-                Map<String, Channel> userChannels = getUserChannels(proxyChannel);
-                Iterator<Entry<String, Channel>> userChannelIte = userChannels.entrySet().iterator();
-
-                while (userChannelIte.hasNext()) {
-                    Entry<String, Channel> entry = userChannelIte.next();
-                    Channel userChannel = entry.getValue();
-
-                    String requestLanInfo = getUserChannelRequestLanInfo(userChannel);
-                    InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-                    String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
+            private void checkAndClearUserChannels(Channel proxyChannel, Set<Integer> ports) {
+                ConcurrentLongMap<Channel> userChannels = getUserChannels(proxyChannel);
+                for (Channel userChannel : userChannels.values()) {
+                    TunnelSession session = TunnelSession.get(userChannel);
+                    if (!ports.contains(session.getPort())) {
+                        continue;
+                    }
+                    String requestLanInfo = session.getLanInfo();
+                    String lanInfo = ProxyConfig.getInstance().getLanInfo(session.getPort());
 
                     logger.info("checkAndClearUserChannels requestLanInfo:{} lanInfo:{}", requestLanInfo, lanInfo);
                     // 判断当前配置中对应外网端口的lan信息是否与正在运行的连接中的lan信息是否一致
                     if (lanInfo == null || !lanInfo.equals(requestLanInfo)) {
                         userChannel.close();
-
-                        // ConcurrentHashMap 不会报 ConcurrentModificationException 异常
-                        userChannels.remove(entry.getKey());
+                        userChannels.remove(session.getId());
                     }
                 }
             }
         });
     }
 
+    /**
+     * 按新配置调整控制连接占用的端口
+     *
+     * 与 {@link #removeCmdChannel(Channel)} 并发时：删除先从 cmdChannels 中移除控制连接再读取端口快照，
+     * 这里先写入端口和快照再检查控制连接是否已经被移除，已经移除时撤销写入，端口不会留在已经断开的控制连接上
+     *
+     * @param proxyChannel
+     * @param inetPorts
+     */
+    static void updatePorts(Channel proxyChannel, List<Integer> inetPorts) {
+        Set<Integer> inetPortSet = inetPorts == null ? new HashSet<Integer>() : new HashSet<Integer>(inetPorts);
+        String clientKey = proxyChannel.attr(CHANNEL_CLIENT_KEY).get();
+
+        // 移除新配置中不包含的端口 有可能之前已经更换成其他client的连接了，只移除自己的
+        for (int port : proxyChannel.attr(CHANNEL_PORT).get()) {
+            if (!inetPortSet.contains(port)) {
+                portCmdChannelMapping.compareAndSet(port, proxyChannel, null);
+            }
+        }
+
+        // 将新配置中的外网端口写入到映射配置中 控制连接已经被替换时不再写入
+        if (cmdChannels.get(clientKey) == proxyChannel) {
+            for (int port : inetPortSet) {
+                portCmdChannelMapping.set(port, proxyChannel);
+            }
+        }
+        proxyChannel.attr(CHANNEL_PORT).set(toArray(inetPortSet));
+
+        if (cmdChannels.get(clientKey) != proxyChannel) {
+            // 写入期间控制连接已经被移除或者替换
+            for (int port : inetPortSet) {
+                portCmdChannelMapping.compareAndSet(port, proxyChannel, null);
+            }
+        }
+    }
+
     /**
      * 增加代理服务器端口与代理控制客户端连接的映射关系
      *
@@ -145,19 +164,16 @@ public class ProxyChannelManager {
             throw new IllegalArgumentException("port can not be null");
         }
         logger.info("addCmdChannel ports:{}, clientKey: {} ", ports, clientKey);
-        // 客户端（proxy-client）相对较少 这里同步的比较重 但可以接受
-        // 保证服务器对外端口与客户端到服务器的连接关系在临界情况时调用removeChannel(Channel channel)时不出问题
-        synchronized (portCmdChannelMapping) {
-            for (int port : ports) {
-                portCmdChannelMapping.put(port, channel);
-            }
-        }
 
-        channel.attr(CHANNEL_PORT).set(ports);
+        // 先设置好连接属性再发布到端口表 用户连接查到控制连接时属性已经可用
+        channel.attr(CHANNEL_PORT).set(toArray(ports));
         channel.attr(CHANNEL_CLIENT_KEY).set(clientKey);
-        channel.attr(USER_CHANNELS).set(new ConcurrentHashMap<String, Channel>());
+        channel.attr(USER_CHANNELS).set(new ConcurrentLongMap<Channel>());
 
         cmdChannels.put(clientKey, channel);
+        for (int port : ports) {
+            portCmdChannelMapping.set(port, channel);
+        }
     }
 
     /**
@@ -167,28 +183,18 @@ public class ProxyChannelManager {
      */
     public static void removeCmdChannel(Channel channel) {
         logger.info("removeCmdChannel channel closed, clear user channels, {}", channel);
-        if (channel.attr(CHANNEL_PORT).get() == null) {
+        String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
+        if (clientKey == null) {
             return;
         }
 
-        String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
         logger.info("removeCmdChannel CHANNEL_CLIENT_KEY:{}", clientKey);
-        Channel channel0 = cmdChannels.remove(clientKey);
-        if (channel != channel0) {
-            cmdChannels.put(clientKey, channel);
-        }
-
-        List<Integer> ports = channel.attr(CHANNEL_PORT).get();
+        // 在执行断连之前新的连接已经连上来了 只移除自己
+        // 先移除控制连接再读取端口快照 并发的 updatePorts 写入的端口要么在快照中，要么由它自己撤销
+        cmdChannels.remove(clientKey, channel);
+        int[] ports = channel.attr(CHANNEL_PORT).get();
         for (int port : ports) {
-            Channel proxyChannel = portCmdChannelMapping.remove(port);
-            if (proxyChannel == null) {
-                continue;
-            }
-
-            // 在执行断连之前新的连接已经连上来了 简直优秀
-            if (proxyChannel != channel) {
-                portCmdChannelMapping.put(port, proxyChannel);
-            }
+            portCmdChannelMapping.compareAndSet(port, channel, null);
         }
 
         if (channel.isActive()) {
@@ -196,10 +202,7 @@ public class ProxyChannelManager {
             channel.close();
         }
 
-        Map<String, Channel> userChannels = getUserChannels(channel);
-        Iterator<String> ite = userChannels.keySet().iterator();
-        while (ite.hasNext()) {
-            Channel userChannel = userChannels.get(ite.next());
+        for (Channel userChannel : getUserChannels(channel).values()) {
             if (userChannel.isActive()) {
                 userChannel.close();
                 logger.info("disconnect user channel {}", userChannel);
@@ -207,8 +210,50 @@ public class ProxyChannelManager {
         }
     }
 
-    public static Channel getCmdChannel(Integer port) {
-        return portCmdChannelMapping.get(port);
+    /**
+     * 向 v2 协议的客户端下发代理映射表
+     *
+     * @param cmdChannel
+     */
+    public static void pushLanMappings(Channel cmdChannel) {
+        String clientKey = cmdChannel.attr(CHANNEL_CLIENT_KEY).get();
+        List<LanMapping> mappings = new ArrayList<LanMapping>();
+        List<Integer> ports = ProxyConfig.getInstance().getClientInetPorts(clientKey);
+        if (ports != null) {
+            for (int port : ports) {
+                String lanInfo = ProxyConfig.getInstance().getLanInfo(port);
+                if (lanInfo != null) {
+                    LanMapping mapping = new LanMapping(port, lanInfo, isCompress(cmdChannel, port));
+                    mapping.setCoalesce(ProxyConfig.getInstance().isCoalesce(port));
+                    mapping.setPriority(ProxyConfig.getInstance().getPriority(port));
+                    mapping.setSocketProfile(SocketProfiles.get(port));
+                    mappings.add(mapping);
+                }
+            }
+        }
+
+        logger.info("push lan mappings, clientKey: {}, mappings: {}", clientKey, mappings);
+        ProxyMessage proxyMessage = ProxyMessage.newInstance();
+        proxyMessage.setType(ProxyMessage.TYPE_MAPPING);
+        // 告知客户端协商后的协议版本
+        proxyMessage.setSerialNumber(ProtocolVersion.get(cmdChannel));
+        proxyMessage.setData(LanMapping.encode(cmdChannel.alloc(), mappings));
+        cmdChannel.writeAndFlush(proxyMessage, cmdChannel.voidPromise());
+    }
+
+    /**
+     * 该端口的用户连接是否压缩数据 需要客户端支持
+     *
+     * @param cmdChannel
+     * @param port
+     * @return
+     */
+    public static boolean isCompress(Channel cmdChannel, int port) {
+        return ProtocolVersion.hasFeature(cmdChannel, ProtocolVersion.FEATURE_COMPRESS) && ProxyConfig.getInstance().isCompress(port);
+    }
+
+    public static Channel getCmdChannel(int port) {
+        return port >= 0 && port <= MAX_PORT ? portCmdChannelMapping.get(port) : null;
     }
 
     public static Channel getCmdChannel(String clientKey) {
@@ -216,17 +261,13 @@ public class ProxyChannelManager {
     }
 
     /**
-     * 增加用户连接与代理客户端连接关系
+     * 增加用户连接与代理客户端连接关系 用户连接的会话已经记录了编号和请求的内网信息
      *
      * @param cmdChannel
      * @param userId
      * @param userChannel
      */
-    public static void addUserChannelToCmdChannel(Channel cmdChannel, String userId, Channel userChannel) {
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
-        userChannel.attr(Constants.USER_ID).set(userId);
-        userChannel.attr(REQUEST_LAN_INFO).set(lanInfo);
+    public static void addUserChannelToCmdChannel(Channel cmdChannel, long userId, Channel userChannel) {
         cmdChannel.attr(USER_CHANNELS).get().put(userId, userChannel);
     }
 
@@ -237,14 +278,9 @@ public class ProxyChannelManager {
      * @param userId
      * @return
      */
-    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, String userId) {
-        if (cmdChannel.attr(USER_CHANNELS).get() == null) {
-            return null;
-        }
-
-        synchronized (cmdChannel) {
-            return cmdChannel.attr(USER_CHANNELS).get().remove(userId);
-        }
+    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, long userId) {
+        ConcurrentLongMap<Channel> userChannels = cmdChannel.attr(USER_CHANNELS).get();
+        return userChannels == null ? null : userChannels.remove(userId);
     }
 
     /**
@@ -254,7 +290,7 @@ public class ProxyChannelManager {
      * @param userId
      * @return
      */
-    public static Channel getUserChannel(Channel cmdChannel, String userId) {
+    public static Channel getUserChannel(Channel cmdChannel, long userId) {
         return cmdChannel.attr(USER_CHANNELS).get().get(userId);
     }
 
@@ -265,7 +301,7 @@ public class ProxyChannelManager {
      * @return
      */
     public static String getUserChannelUserId(Channel userChannel) {
-        return userChannel.attr(Constants.USER_ID).get();
+        return TunnelSession.get(userChannel).getUserId();
     }
 
     /**
@@ -275,7 +311,7 @@ public class ProxyChannelManager {
      * @return
      */
     public static String getUserChannelRequestLanInfo(Channel userChannel) {
-        return userChannel.attr(REQUEST_LAN_INFO).get();
+        return TunnelSession.get(userChannel).getLanInfo();
     }
 
     /**
@@ -284,8 +320,17 @@ public class ProxyChannelManager {
      * @param cmdChannel
      * @return
      */
-    public static Map<String, Channel> getUserChannels(Channel cmdChannel) {
+    public static ConcurrentLongMap<Channel> getUserChannels(Channel cmdChannel) {
         return cmdChannel.attr(USER_CHANNELS).get();
     }
 
+    private static int[] toArray(Collection<Integer> ports) {
+        int[] array = new int[ports.size()];
+        int i = 0;
+        for (int port : ports) {
+            array[i++] = port;
+        }
+        return array;
+    }
+
 }
@@ -1,8 +1,7 @@
 package com.xbrother.lanproxy.server;
 
-import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
-import java.util.List;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -14,22 +13,28 @@ import com.xbrother.lanproxy.server.metrics.handler.BytesMetricsHandler;
 import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.common.container.Container;
 import com.xbrother.lanproxy.common.container.ContainerHelper;
+import com.xbrother.lanproxy.protocol.FragmentHandler;
 import com.xbrother.lanproxy.protocol.IdleCheckHandler;
 import com.xbrother.lanproxy.protocol.ProxyMessageDecoder;
 import com.xbrother.lanproxy.protocol.ProxyMessageEncoder;
+import com.xbrother.lanproxy.protocol.Transport;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent.Type;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 import com.xbrother.lanproxy.server.config.ProxyConfig.ConfigChangedListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.ssl.SslHandler;
 
 public class ProxyServerContainer implements Container, ConfigChangedListener {
@@ -37,7 +42,7 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
     /**
      * max packet is 2M.
      */
-    private static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
+    public static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
 
     private static final int LENGTH_FIELD_OFFSET = 0;
 
@@ -47,16 +52,56 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
 
     private static final int LENGTH_ADJUSTMENT = 0;
 
+    /**
+     * 超过该大小的消息分片传输
+     */
+    private static final int FRAGMENT_SIZE = Config.getInstance().getIntValue("server.fragment.size", FragmentHandler.DEFAULT_FRAGMENT_SIZE);
+
+    /**
+     * 复用模式下控制连接上已写入未发出的字节数上限 超过后按优先级排队
+     */
+    private static final int SCHEDULER_IN_FLIGHT_BYTES = Config.getInstance().getIntValue("server.scheduler.inflight.bytes", WriteScheduler.DEFAULT_MAX_IN_FLIGHT_BYTES);
+
+    /**
+     * 复用模式下控制连接上排队的字节数上限 超过后暂停读取该客户端的所有用户连接
+     */
+    private static final int SCHEDULER_QUEUED_BYTES = Config.getInstance().getIntValue("server.scheduler.queued.bytes", WriteScheduler.DEFAULT_MAX_QUEUED_BYTES);
+
+    /**
+     * 网络传输实现 auto 为 Linux 上使用 epoll 其他系统使用 nio
+     * 开启 splice 时 epoll 下透传的数据连接与用户连接在同一个线程上时直接在内核中转发
+     */
+    public static final Transport TRANSPORT = Transport.select(Config.getInstance().getStringValue("server.transport", Transport.AUTO),
+            Config.getInstance().getBooleanValue("server.splice.enable", false));
+
+    /**
+     * epoll 下客户端连接端口用 SO_REUSEPORT 绑定的监听 socket 数量
+     */
+    private static final int ACCEPTORS = Config.getInstance().getIntValue("server.acceptors", 1);
+
+    /**
+     * epoll 下 TCP_FASTOPEN 的队列长度 为 0 时不开启
+     */
+    private static final int TCP_FASTOPEN = Config.getInstance().getIntValue("server.tcp.fastopen", 0);
+
+    /**
+     * epoll 下客户端连接的 TCP_USER_TIMEOUT 毫秒 为 0 时使用系统默认值
+     */
+    private static final int TCP_USER_TIMEOUT = Config.getInstance().getIntValue("server.tcp.user.timeout", 0);
+
     private static Logger logger = LoggerFactory.getLogger(ProxyServerContainer.class);
 
-    private NioEventLoopGroup serverWorkerGroup;
+    private EventLoopGroup serverWorkerGroup;
+
+    private EventLoopGroup serverBossGroup;
 
-    private NioEventLoopGroup serverBossGroup;
+    /** 用户端口的绑定 所有端口共用一个 ServerBootstrap */
+    private static volatile UserPortBinder userPortBinder;
 
     public ProxyServerContainer() {
 
-        serverBossGroup = new NioEventLoopGroup();
-        serverWorkerGroup = new NioEventLoopGroup();
+        serverBossGroup = TRANSPORT.newEventLoopGroup(0);
+        serverWorkerGroup = TRANSPORT.newEventLoopGroup(0);
 
         ProxyConfig.getInstance().addConfigChangedListener(this);
     }
@@ -64,18 +109,23 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
     @Override
     public void start() {
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+        bootstrap.group(serverBossGroup, serverWorkerGroup).channel(TRANSPORT.serverChannelClass()).childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
                 ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
                 ch.pipeline().addLast(new ProxyMessageEncoder());
-                ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, 0));
+                ch.pipeline().addLast(new WriteScheduler(SCHEDULER_IN_FLIGHT_BYTES, SCHEDULER_QUEUED_BYTES));
+                ch.pipeline().addLast(new FragmentHandler(FRAGMENT_SIZE, FragmentHandler.DEFAULT_MAX_MESSAGE_LENGTH));
+                ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, IdleCheckHandler.DATA_CHANNEL_IDLE_TIME));
                 ch.pipeline().addLast(new ServerChannelHandler());
+                OutboundBudget.trackTunnelChannel(ch);
             }
         });
 
+        TRANSPORT.configure(bootstrap, ACCEPTORS, TCP_FASTOPEN, TCP_USER_TIMEOUT);
+
         try {
-            bootstrap.bind(ProxyConfig.getInstance().getServerBind(), ProxyConfig.getInstance().getServerPort()).get();
+            TRANSPORT.bind(bootstrap, new InetSocketAddress(ProxyConfig.getInstance().getServerBind(), ProxyConfig.getInstance().getServerPort()), ACCEPTORS).get();
             logger.info("proxy server start on port " + ProxyConfig.getInstance().getServerPort());
 
         } catch (Exception ex) {
@@ -96,7 +146,7 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
 
     private void initializeSSLTCPTransport(String host, int port, final SSLContext sslContext) {
         ServerBootstrap b = new ServerBootstrap();
-        b.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+        b.group(serverBossGroup, serverWorkerGroup).channel(TRANSPORT.serverChannelClass()).childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
                 ChannelPipeline pipeline = ch.pipeline();
@@ -104,17 +154,21 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
                     pipeline.addLast("ssl", createSslHandler(sslContext, Config.getInstance().getBooleanValue("server.ssl.needsClientAuth", false)));
                     ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
                     ch.pipeline().addLast(new ProxyMessageEncoder());
-                    ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, 0));
+                    ch.pipeline().addLast(new WriteScheduler(SCHEDULER_IN_FLIGHT_BYTES, SCHEDULER_QUEUED_BYTES));
+                    ch.pipeline().addLast(new FragmentHandler(FRAGMENT_SIZE, FragmentHandler.DEFAULT_MAX_MESSAGE_LENGTH));
+                    ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, IdleCheckHandler.DATA_CHANNEL_IDLE_TIME));
                     ch.pipeline().addLast(new ServerChannelHandler());
+                    OutboundBudget.trackTunnelChannel(ch);
                 } catch (Throwable th) {
                     logger.error("Severe error during pipeline creation", th);
                     throw th;
                 }
             }
         });
+        TRANSPORT.configure(b, ACCEPTORS, TCP_FASTOPEN, TCP_USER_TIMEOUT);
         try {
             // Bind and start to accept incoming connections.
-            ChannelFuture f = b.bind(host, port);
+            ChannelFuture f = TRANSPORT.bind(b, new InetSocketAddress(host, port), ACCEPTORS);
             f.sync();
             logger.info("proxy ssl server start on port {}", port);
         } catch (InterruptedException ex) {
@@ -124,35 +178,46 @@ public class ProxyServerContainer implements Container, ConfigChangedListener {
 
     private void startUserPort() {
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+        bootstrap.group(serverBossGroup, serverWorkerGroup).channel(TRANSPORT.serverChannelClass()).childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addFirst(new BytesMetricsHandler());
-                ch.pipeline().addLast(new UserChannelHandler());
+                TunnelSession session = TunnelSession.open(ch);
+                ch.pipeline().addFirst(new BytesMetricsHandler(session.getMetrics()));
+                ch.pipeline().addLast(new UserChannelHandler(session));
+                TrafficShapingManager.install(ch);
+                OutboundBudget.trackUserChannel(ch);
+                SocketProfiles.applyToUserChannel(ch, session.getPort());
             }
         });
 
-        List<Integer> ports = ProxyConfig.getInstance().getUserPorts();
-        // 被禁用的端口会被过滤掉
-        for (int port : ports) {
-            try {
-                bootstrap.bind(port).get();
-                logger.warn("bind user port " + port);
-            } catch (Exception ex) {
-                // BindException表示该端口已经绑定过
-                if (!(ex.getCause() instanceof BindException)) {
-                    logger.error("程序启动报错:{}", ex);
-                    throw new RuntimeException(ex);
-                }else {
-                    logger.warn("端口已经绑定过了:"+port);
-                }
-            }
-        }
+        // 用户端口不能开启 SO_REUSEPORT 否则端口被其他进程占用时也能绑定成功
+        TRANSPORT.configure(bootstrap, 1, TCP_FASTOPEN, 0);
+
+        // 先发布 启动绑定期间的配置变化在其后按顺序处理
+        userPortBinder = new UserPortBinder(bootstrap);
+        // 被禁用的端口会被过滤掉 只有启动时等待绑定完成
+        userPortBinder.bind(ProxyConfig.getInstance().getUserPorts()).awaitUninterruptibly();
+        userPortBinder.startRetry();
     }
 
     @Override
-    public void onChanged() {
-        startUserPort();
+    public void onChanged(ConfigChangeEvent event) {
+        UserPortBinder binder = userPortBinder;
+        if (binder == null) {
+            // 还没有启动
+            return;
+        }
+
+        // 已经建立的用户连接由连接管理按新配置关闭 之前绑定失败的端口一起重试
+        binder.unbind(event.getPorts(Type.MAPPING_REMOVED));
+        binder.bind(event.getPorts(Type.MAPPING_ADDED));
+    }
+
+    /**
+     * 用户端口的绑定 还没有启动时为 null
+     */
+    public static UserPortBinder getUserPortBinder() {
+        return userPortBinder;
     }
 
     @Override
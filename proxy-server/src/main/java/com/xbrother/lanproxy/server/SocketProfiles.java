@@ -0,0 +1,108 @@
+package com.xbrother.lanproxy.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.protocol.SocketProfile;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent.Type;
+import com.xbrother.lanproxy.server.config.ProxyConfig;
+import com.xbrother.lanproxy.server.config.ProxyConfig.ConfigChangedListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+
+/**
+ * config.properties 中定义的 socket 参数档案，映射在 config.json 中按名称引用
+ *
+ * 档案名称列在 server.socket.profiles 中，每个档案的参数为 server.socket.profile.名称.参数，
+ * 内置的 interactive 和 bulk 可以直接使用，也可以覆盖其中的参数。启动后不变
+ */
+public class SocketProfiles {
+
+    private static Logger logger = LoggerFactory.getLogger(SocketProfiles.class);
+
+    private static final String PREFIX = "server.socket.profile.";
+
+    private static final SocketProfile DEFAULTS = SocketProfile.defaults();
+
+    private static final Map<String, SocketProfile> profiles = new HashMap<String, SocketProfile>();
+
+    static {
+        Config config = Config.getInstance();
+        profiles.put("interactive", SocketProfile.interactive());
+        profiles.put("bulk", SocketProfile.bulk());
+        for (String name : config.getStringValue("server.socket.profiles", "interactive,bulk").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            SocketProfile profile = profiles.get(name);
+            if (profile == null) {
+                profile = new SocketProfile(name);
+                profiles.put(name, profile);
+            }
+            profile.setTcpNoDelay(config.getBooleanValue(PREFIX + name + ".nodelay", profile.isTcpNoDelay()));
+            profile.setSendBufferSize(config.getIntValue(PREFIX + name + ".sndbuf", profile.getSendBufferSize()));
+            profile.setReceiveBufferSize(config.getIntValue(PREFIX + name + ".rcvbuf", profile.getReceiveBufferSize()));
+            profile.setWriteBufferHighWaterMark(config.getIntValue(PREFIX + name + ".water.high", profile.getWriteBufferHighWaterMark()));
+            profile.setWriteBufferLowWaterMark(config.getIntValue(PREFIX + name + ".water.low", profile.getWriteBufferLowWaterMark()));
+        }
+        logger.info("socket profiles {}", profiles.values());
+
+        checkNames(ProxyConfig.getInstance().getUserPorts());
+        ProxyConfig.getInstance().addConfigChangedListener(new ConfigChangedListener() {
+            @Override
+            public void onChanged(ConfigChangeEvent event) {
+                checkNames(event.getPorts(Type.MAPPING_ADDED));
+                checkNames(event.getPorts(Type.MAPPING_CHANGED));
+            }
+        });
+    }
+
+    /**
+     * 代理端口配置的档案 未配置或者名称不存在时返回 null
+     */
+    public static SocketProfile get(int port) {
+        String name = ProxyConfig.getInstance().getSocketProfile(port);
+        if (name == null) {
+            return null;
+        }
+
+        return profiles.get(name);
+    }
+
+    /**
+     * 用户连接建立时调用
+     */
+    public static void applyToUserChannel(Channel userChannel, int port) {
+        SocketProfile profile = get(port);
+        if (profile != null) {
+            profile.apply(userChannel);
+        }
+    }
+
+    /**
+     * 配置变化时提示不存在的档案名称 这些映射使用默认参数
+     */
+    private static void checkNames(Collection<Integer> ports) {
+        for (int port : ports) {
+            String name = ProxyConfig.getInstance().getSocketProfile(port);
+            if (name != null && !profiles.containsKey(name)) {
+                logger.warn("unknown socket profile {} on port {}, use defaults", name, port);
+            }
+        }
+    }
+
+    /**
+     * 非复用模式下数据连接绑定到用户连接时调用 数据连接会被客户端复用，没有配置档案时恢复默认参数
+     */
+    public static void applyToDataChannel(Channel dataChannel, int port) {
+        SocketProfile profile = get(port);
+        (profile == null ? DEFAULTS : profile).apply(dataChannel);
+    }
+}
@@ -0,0 +1,234 @@
+package com.xbrother.lanproxy.server;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.server.config.ConfigChangeEvent;
+import com.xbrother.lanproxy.server.config.ProxyConfig;
+import com.xbrother.lanproxy.server.config.ProxyConfig.Client;
+import com.xbrother.lanproxy.server.config.ProxyConfig.ClientProxyMapping;
+import com.xbrother.lanproxy.server.config.ProxyConfig.ConfigChangedListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 用户连接的限速管理（全局 + 每个客户端 + 每个代理端口）
+ *
+ * 限速作用在公网端口的用户连接上：read 为用户上传到内网服务的速率，write 为内网服务返回给用户的速率，
+ * 后者受限时用户连接变为不可写，数据连接随之暂停读取（复用模式下延迟归还窗口），从而限制代理客户端的上行带宽。
+ * 全局和客户端两级使用 {@link GlobalChannelTrafficShapingHandler}，在各个连接之间平衡速率，避免一个大流量连接占满带宽。
+ *
+ * 客户端和端口的限速来自 config.json，只为配置了限速的客户端和端口创建限速器，未限速的连接 pipeline 中没有限速器。
+ * 配置变化时修改已有限速器的速率，对已经建立的连接立即生效；限速改为 0 时删除限速器，已经建立的连接随之取消限速；
+ * 新配置的限速创建新的限速器，只对之后建立的用户连接生效。
+ * 全局限速来自 config.properties，启动后不变
+ */
+public class TrafficShapingManager {
+
+    private static Logger logger = LoggerFactory.getLogger(TrafficShapingManager.class);
+
+    private static final long KB = 1024;
+
+    /** 计算速率的周期 毫秒 */
+    private static final long CHECK_INTERVAL = Config.getInstance().getIntValue("server.traffic.check.interval", 1000);
+
+    /** 全局限速 KB/s 为 0 时不限速 */
+    private static final long GLOBAL_READ_LIMIT = Config.getInstance().getIntValue("server.traffic.read.limit", 0) * KB;
+
+    private static final long GLOBAL_WRITE_LIMIT = Config.getInstance().getIntValue("server.traffic.write.limit", 0) * KB;
+
+    /** 写出排队超过该时间后用户连接变为不可写 毫秒 越小修改限速后越快生效 */
+    private static final long MAX_WRITE_DELAY = 1000;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("traffic-shaping", true));
+
+    /** 未配置全局限速时为 null 不加入 pipeline */
+    private static final GlobalChannelTrafficShapingHandler globalShaper;
+
+    private static Map<String, GlobalChannelTrafficShapingHandler> clientShapers = new ConcurrentHashMap<String, GlobalChannelTrafficShapingHandler>();
+
+    private static Map<Integer, GlobalTrafficShapingHandler> portShapers = new ConcurrentHashMap<Integer, GlobalTrafficShapingHandler>();
+
+    /** 代理端口所属的客户端 */
+    private static volatile Map<Integer, String> portClientKeys = new HashMap<Integer, String>();
+
+    static {
+        if (GLOBAL_READ_LIMIT > 0 || GLOBAL_WRITE_LIMIT > 0) {
+            globalShaper = new GlobalChannelTrafficShapingHandler(executor, GLOBAL_WRITE_LIMIT, GLOBAL_READ_LIMIT, 0, 0, CHECK_INTERVAL);
+            globalShaper.setMaxWriteDelay(MAX_WRITE_DELAY);
+            logger.info("global traffic limit read {}B/s write {}B/s", GLOBAL_READ_LIMIT, GLOBAL_WRITE_LIMIT);
+        } else {
+            globalShaper = null;
+        }
+
+        update();
+        ProxyConfig.getInstance().addConfigChangedListener(new ConfigChangedListener() {
+            @Override
+            public void onChanged(ConfigChangeEvent event) {
+                update();
+            }
+        });
+    }
+
+    /**
+     * 为新建立的用户连接加入限速器 按全局、客户端、代理端口的顺序排在 pipeline 最前面
+     */
+    public static void install(Channel userChannel) {
+        int port = ((InetSocketAddress) userChannel.localAddress()).getPort();
+        ChannelPipeline pipeline = userChannel.pipeline();
+
+        GlobalTrafficShapingHandler portShaper = portShapers.get(port);
+        if (portShaper != null) {
+            pipeline.addFirst(portShaper);
+        }
+
+        String clientKey = portClientKeys.get(port);
+        GlobalChannelTrafficShapingHandler clientShaper = clientKey == null ? null : clientShapers.get(clientKey);
+        if (clientShaper != null) {
+            pipeline.addFirst(clientShaper);
+        }
+
+        if (globalShaper != null) {
+            pipeline.addFirst(globalShaper);
+        }
+    }
+
+    /**
+     * 用户连接当前是否有限速 有限速的连接不能用 splice 绕过 pipeline
+     *
+     * 只在开始 splice 时检查一次。之后新配置的限速只对新的连接生效，不会加到已经 splice 的连接上；
+     * 已有限速器删除后连接上留下的限速器速率为 0，不算作限速
+     */
+    public static boolean isLimited(Channel userChannel) {
+        if (globalShaper != null) {
+            return true;
+        }
+
+        for (Entry<String, ChannelHandler> entry : userChannel.pipeline()) {
+            if (entry.getValue() instanceof AbstractTrafficShapingHandler) {
+                AbstractTrafficShapingHandler shaper = (AbstractTrafficShapingHandler) entry.getValue();
+                if (shaper.getReadLimit() > 0 || shaper.getWriteLimit() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按最新的配置调整限速器 已删除或者不再限速的客户端和端口取消限速并停止统计
+     */
+    private static synchronized void update() {
+        Map<Integer, String> newPortClientKeys = new HashMap<Integer, String>();
+        Map<String, Client> clients = new HashMap<String, Client>();
+        Map<Integer, ClientProxyMapping> mappings = new HashMap<Integer, ClientProxyMapping>();
+
+        List<Client> clientList = ProxyConfig.getInstance().getClients();
+        if (clientList != null) {
+            for (Client client : clientList) {
+                clients.put(client.getClientKey(), client);
+                if (client.getProxyMappings() == null) {
+                    continue;
+                }
+                for (ClientProxyMapping mapping : client.getProxyMappings()) {
+                    newPortClientKeys.put(mapping.getInetPort(), client.getClientKey());
+                    mappings.put(mapping.getInetPort(), mapping);
+                }
+            }
+        }
+
+        for (Entry<String, Client> entry : clients.entrySet()) {
+            long readLimit = toBytes(entry.getValue().getReadLimit());
+            long writeLimit = toBytes(entry.getValue().getWriteLimit());
+            GlobalChannelTrafficShapingHandler shaper = clientShapers.get(entry.getKey());
+            if (readLimit == 0 && writeLimit == 0) {
+                if (shaper != null) {
+                    clientShapers.remove(entry.getKey());
+                    release(shaper);
+                    logger.info("client {} traffic limit removed", entry.getKey());
+                }
+            } else if (shaper == null) {
+                shaper = new GlobalChannelTrafficShapingHandler(executor, writeLimit, readLimit, 0, 0, CHECK_INTERVAL);
+                shaper.setMaxWriteDelay(MAX_WRITE_DELAY);
+                clientShapers.put(entry.getKey(), shaper);
+                logger.info("client {} traffic limit read {}B/s write {}B/s", entry.getKey(), readLimit, writeLimit);
+            } else if (shaper.getReadLimit() != readLimit || shaper.getWriteLimit() != writeLimit) {
+                shaper.configure(writeLimit, readLimit);
+                logger.info("client {} traffic limit read {}B/s write {}B/s", entry.getKey(), readLimit, writeLimit);
+            }
+        }
+
+        for (Entry<Integer, ClientProxyMapping> entry : mappings.entrySet()) {
+            long readLimit = toBytes(entry.getValue().getReadLimit());
+            long writeLimit = toBytes(entry.getValue().getWriteLimit());
+            GlobalTrafficShapingHandler shaper = portShapers.get(entry.getKey());
+            if (readLimit == 0 && writeLimit == 0) {
+                if (shaper != null) {
+                    portShapers.remove(entry.getKey());
+                    release(shaper);
+                    logger.info("port {} traffic limit removed", entry.getKey());
+                }
+            } else if (shaper == null) {
+                shaper = new GlobalTrafficShapingHandler(executor, writeLimit, readLimit, CHECK_INTERVAL);
+                shaper.setMaxWriteDelay(MAX_WRITE_DELAY);
+                portShapers.put(entry.getKey(), shaper);
+                logger.info("port {} traffic limit read {}B/s write {}B/s", entry.getKey(), readLimit, writeLimit);
+            } else if (shaper.getReadLimit() != readLimit || shaper.getWriteLimit() != writeLimit) {
+                shaper.configure(writeLimit, readLimit);
+                logger.info("port {} traffic limit read {}B/s write {}B/s", entry.getKey(), readLimit, writeLimit);
+            }
+        }
+
+        Iterator<Entry<String, GlobalChannelTrafficShapingHandler>> clientIte = clientShapers.entrySet().iterator();
+        while (clientIte.hasNext()) {
+            Entry<String, GlobalChannelTrafficShapingHandler> entry = clientIte.next();
+            if (!clients.containsKey(entry.getKey())) {
+                clientIte.remove();
+                release(entry.getValue());
+            }
+        }
+
+        Iterator<Entry<Integer, GlobalTrafficShapingHandler>> portIte = portShapers.entrySet().iterator();
+        while (portIte.hasNext()) {
+            Entry<Integer, GlobalTrafficShapingHandler> entry = portIte.next();
+            if (!mappings.containsKey(entry.getKey())) {
+                portIte.remove();
+                release(entry.getValue());
+            }
+        }
+
+        portClientKeys = newPortClientKeys;
+    }
+
+    /**
+     * 可能还有连接在使用 先取消限速再停止统计
+     */
+    private static void release(AbstractTrafficShapingHandler shaper) {
+        shaper.configure(0, 0);
+        if (shaper instanceof GlobalChannelTrafficShapingHandler) {
+            ((GlobalChannelTrafficShapingHandler) shaper).release();
+        } else {
+            ((GlobalTrafficShapingHandler) shaper).release();
+        }
+    }
+
+    private static long toBytes(Long kbps) {
+        return kbps == null || kbps < 0 ? 0 : kbps * KB;
+    }
+}
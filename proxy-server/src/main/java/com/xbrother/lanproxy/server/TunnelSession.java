@@ -0,0 +1,199 @@
+package com.xbrother.lanproxy.server;
+
+import java.net.InetSocketAddress;
+
+import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.server.config.ProxyConfig;
+import com.xbrother.lanproxy.server.metrics.MetricsCollector;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 一个用户连接的转发会话
+ *
+ * 用户连接建立时创建，集中保存转发路径上用到的对象：用户连接、转发数据的连接、控制连接、用户编号、
+ * 代理端口、统计以及流的窗口和压缩上下文。用户连接的处理器直接持有会话，
+ * 非复用模式下绑定的数据连接通过一个属性找到会话，转发每条消息时不再逐个查找连接属性和按端口查找控制连接。
+ *
+ * 会话的字段在用户连接和数据连接两个 EventLoop 中读写，先设置其他字段再设置 dataChannel 发布。
+ * 对端连接仍然写入 {@link Constants#NEXT_CHANNEL}，协议模块中的空闲检测和透传处理使用
+ */
+public class TunnelSession {
+
+    private static final AttributeKey<TunnelSession> SESSION = AttributeKey.newInstance("tunnel_session");
+
+    private final Channel userChannel;
+
+    /** 用户连接的代理端口 */
+    private final int port;
+
+    private final MetricsCollector metrics;
+
+    /** 代理客户端的控制连接 通知客户端连接后端服务器时确定 */
+    private volatile Channel cmdChannel;
+
+    private volatile String clientKey;
+
+    private volatile long id;
+
+    private volatile String userId;
+
+    /** 连接时映射的内网信息 配置变化后用于判断是否需要断开 */
+    private volatile String lanInfo;
+
+    /** 转发数据的连接 非复用模式为数据连接，复用模式为控制连接，客户端连接后端服务器成功后绑定 */
+    private volatile Channel dataChannel;
+
+    /** 数据连接的协议是否为 v2 及以上 */
+    private volatile boolean v2;
+
+    /** 数据连接是否已经切换为透传 */
+    private volatile boolean raw;
+
+    /** 用户连接正在迁移到数据连接的 EventLoop 上 期间不根据可写状态切换两端的读取 */
+    private volatile boolean migrating;
+
+    private volatile StreamWindow window;
+
+    private volatile StreamCompressor compressor;
+
+    private TunnelSession(Channel userChannel) {
+        this.userChannel = userChannel;
+        this.port = ((InetSocketAddress) userChannel.localAddress()).getPort();
+        this.metrics = MetricsCollector.getCollector(port);
+    }
+
+    /**
+     * 用户连接建立时创建
+     */
+    public static TunnelSession open(Channel userChannel) {
+        TunnelSession session = new TunnelSession(userChannel);
+        userChannel.attr(SESSION).set(session);
+        return session;
+    }
+
+    /**
+     * 用户连接或者已绑定的数据连接所属的会话 控制连接和空闲的数据连接返回 null
+     */
+    public static TunnelSession get(Channel channel) {
+        return channel.attr(SESSION).get();
+    }
+
+    /**
+     * 通知客户端连接后端服务器时调用
+     */
+    public void connect(Channel cmdChannel, long id) {
+        this.id = id;
+        this.userId = String.valueOf(id);
+        this.lanInfo = ProxyConfig.getInstance().getLanInfo(port);
+        this.clientKey = ProxyConfig.getInstance().getClientKey(port);
+        this.cmdChannel = cmdChannel;
+    }
+
+    /**
+     * 非复用模式下客户端的数据连接绑定到用户连接
+     */
+    public void bind(Channel dataChannel) {
+        this.v2 = ProtocolVersion.isV2(dataChannel);
+        dataChannel.attr(SESSION).set(this);
+        dataChannel.attr(Constants.NEXT_CHANNEL).set(userChannel);
+        userChannel.attr(Constants.NEXT_CHANNEL).set(dataChannel);
+        this.dataChannel = dataChannel;
+    }
+
+    /**
+     * 复用模式下流建立成功 控制连接即为数据通道，控制连接上有多个会话，不在控制连接上保存
+     */
+    public void bindStream(Channel cmdChannel) {
+        this.v2 = true;
+        userChannel.attr(Constants.NEXT_CHANNEL).set(cmdChannel);
+        this.dataChannel = cmdChannel;
+    }
+
+    /**
+     * 数据连接归还给客户端复用之前解除绑定
+     */
+    public void unbind(Channel dataChannel) {
+        dataChannel.attr(SESSION).set(null);
+        dataChannel.attr(Constants.NEXT_CHANNEL).set(null);
+    }
+
+    /**
+     * 数据连接切换为透传后调用
+     */
+    public void markRaw() {
+        this.raw = true;
+    }
+
+    public Channel getUserChannel() {
+        return userChannel;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public MetricsCollector getMetrics() {
+        return metrics;
+    }
+
+    public Channel getCmdChannel() {
+        return cmdChannel;
+    }
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getLanInfo() {
+        return lanInfo;
+    }
+
+    public Channel getDataChannel() {
+        return dataChannel;
+    }
+
+    public boolean isV2() {
+        return v2;
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+    public boolean isMigrating() {
+        return migrating;
+    }
+
+    public void setMigrating(boolean migrating) {
+        this.migrating = migrating;
+    }
+
+    public StreamWindow getWindow() {
+        return window;
+    }
+
+    public void setWindow(StreamWindow window) {
+        this.window = window;
+    }
+
+    public StreamCompressor getCompressor() {
+        return compressor;
+    }
+
+    public void setCompressor(StreamCompressor compressor) {
+        this.compressor = compressor;
+    }
+}
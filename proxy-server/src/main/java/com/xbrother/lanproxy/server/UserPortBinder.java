@@ -0,0 +1,436 @@
+package com.xbrother.lanproxy.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.protocol.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * 用户端口的绑定和解绑
+ *
+ * 所有端口共用一个 ServerBootstrap，一次发起全部绑定，监听 socket 分散注册在各个 boss 线程上并发完成，
+ * 结果在绑定完成的回调中记录，调用方（配置变化的通知线程）不等待，只有启动时等待第一次绑定的结果。
+ * 被占用或者绑定失败的端口汇总到一次的绑定结果中，不影响其他端口，
+ * 之后每次绑定（配置变化）和定时重试时再次绑定，直到成功或者端口被删除。
+ * 解绑同样不等待，关闭还没有完成的端口再次绑定时在关闭后进行，
+ * 绑定还没有完成就被解绑的端口，再次绑定时在之前的绑定完成并关闭后进行
+ */
+public class UserPortBinder {
+
+    private static Logger logger = LoggerFactory.getLogger(UserPortBinder.class);
+
+    /** 绑定失败的端口定时重试的间隔 秒，为 0 时只在配置变化时重试 */
+    private static final int RETRY_INTERVAL = Config.getInstance().getIntValue("server.bind.retry.interval", 30);
+
+    private final ServerBootstrap bootstrap;
+
+    /** 已经绑定的用户端口 */
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+
+    /** 绑定失败 等待重试的用户端口 */
+    private final Set<Integer> failedPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /** 正在绑定的用户端口 绑定期间被解绑时删除 */
+    private final Map<Integer, BindListener> binding = new HashMap<Integer, BindListener>();
+
+    /** 正在关闭的用户端口 包括绑定期间被解绑、绑定完成后才能关闭的端口 */
+    private final Map<Integer, Future<?>> closing = new HashMap<Integer, Future<?>>();
+
+    /** 是否已经发起过第一次绑定 */
+    private boolean started;
+
+    /** 第一次绑定（启动时）的结果 */
+    private volatile Report startupReport;
+
+    /** 最近一次绑定的结果 */
+    private volatile Report lastReport;
+
+    public UserPortBinder(ServerBootstrap bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * 定时重试绑定失败的端口
+     */
+    public void startRetry() {
+        if (RETRY_INTERVAL <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("user-port-retry", true));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!failedPorts.isEmpty()) {
+                        bind(Collections.<Integer> emptyList());
+                    }
+                } catch (Throwable e) {
+                    logger.error("retry user ports error", e);
+                }
+            }
+        }, RETRY_INTERVAL, RETRY_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 发起绑定用户端口 已经绑定或者正在绑定的端口跳过，之前绑定失败的端口一起重试
+     *
+     * @return 全部端口绑定完成后得到本次绑定的结果
+     */
+    public synchronized Future<Report> bind(Collection<Integer> ports) {
+        BindRound round = new BindRound(ports.size(), !started);
+        started = true;
+
+        Set<Integer> targets = new LinkedHashSet<Integer>();
+        for (int port : ports) {
+            if (channels.containsKey(port) || binding.containsKey(port) || !targets.add(port)) {
+                round.skipped++;
+            }
+        }
+        for (int port : failedPorts) {
+            if (!binding.containsKey(port) && targets.add(port)) {
+                round.retried++;
+            }
+        }
+
+        round.remaining = targets.size();
+        if (targets.isEmpty()) {
+            finish(round);
+            return round.promise;
+        }
+        for (int port : targets) {
+            BindListener listener = new BindListener(port, round);
+            binding.put(port, listener);
+            startBind(port, listener);
+        }
+        return round.promise;
+    }
+
+    private void startBind(final int port, final BindListener listener) {
+        Future<?> closeFuture = closing.get(port);
+        if (closeFuture == null) {
+            bootstrap.bind(port).addListener(listener);
+            return;
+        }
+
+        // 之前的解绑还没有完成 关闭后再绑定
+        closeFuture.addListener(new FutureListener<Object>() {
+            @Override
+            public void operationComplete(Future<Object> future) throws Exception {
+                bootstrap.bind(port).addListener(listener);
+            }
+        });
+    }
+
+    /**
+     * 一个端口绑定完成 记入所属的一次绑定
+     */
+    private void onBound(int port, final BindListener listener, ChannelFuture future) {
+        BindRound round = listener.round;
+        boolean done;
+        synchronized (this) {
+            if (binding.get(port) != listener) {
+                // 绑定期间端口已经被解绑 关闭后通知等待的再次绑定
+                if (future.isSuccess()) {
+                    future.channel().close().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture closeFuture) throws Exception {
+                            listener.superseded.setSuccess(null);
+                        }
+                    });
+                } else {
+                    listener.superseded.setSuccess(null);
+                }
+            } else {
+                binding.remove(port);
+                if (future.isSuccess()) {
+                    channels.put(port, future.channel());
+                    failedPorts.remove(port);
+                    round.bound++;
+                    logger.debug("bind user port {}", port);
+                } else {
+                    failedPorts.add(port);
+                    if (Transport.isAddressInUse(future.cause())) {
+                        round.inUse.add(port);
+                    } else {
+                        round.failed.put(port, String.valueOf(future.cause()));
+                    }
+                }
+            }
+            done = --round.remaining == 0;
+        }
+
+        if (done) {
+            finish(round);
+        }
+    }
+
+    private void finish(BindRound round) {
+        Collections.sort(round.inUse);
+        Report report = new Report(round.requested, round.bound, round.skipped, round.retried, round.inUse, round.failed,
+                (System.nanoTime() - round.start) / 1000000);
+        round.promise.setSuccess(report);
+
+        if (round.requested == 0 && report.bound == 0) {
+            // 定时重试仍然失败 不再重复记录
+            logger.debug("retry user ports, {}", report);
+            return;
+        }
+        if (round.startup) {
+            startupReport = report;
+        }
+        lastReport = report;
+
+        if (report.inUse.isEmpty() && report.failed.isEmpty()) {
+            logger.info("bind user ports, {}", report);
+        } else {
+            logger.error("bind user ports, {}", report);
+        }
+    }
+
+    /**
+     * 发起解绑用户端口 不等待关闭完成，之后再次绑定这些端口时在关闭后进行
+     *
+     * @return 全部端口关闭完成的通知
+     */
+    public synchronized ChannelGroupFuture unbind(Collection<Integer> ports) {
+        ChannelGroup group = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        for (int port : ports) {
+            failedPorts.remove(port);
+            BindListener pending = binding.remove(port);
+            if (pending != null) {
+                // 绑定还没有完成 再次绑定要等这次绑定完成并关闭
+                trackClosing(port, pending.supersede());
+                logger.debug("unbind user port {} while binding", port);
+            }
+            Channel channel = channels.remove(port);
+            if (channel != null) {
+                group.add(channel);
+                trackClosing(port, channel.closeFuture());
+                logger.debug("unbind user port {}", port);
+            }
+        }
+
+        if (!group.isEmpty()) {
+            logger.info("unbind user ports, count={}", group.size());
+        }
+        return group.close();
+    }
+
+    /**
+     * 记录正在关闭的端口 关闭完成后删除
+     */
+    private void trackClosing(final int port, final Future<?> closeFuture) {
+        closing.put(port, closeFuture);
+        closeFuture.addListener(new FutureListener<Object>() {
+            @Override
+            public void operationComplete(Future<Object> future) throws Exception {
+                synchronized (UserPortBinder.this) {
+                    if (closing.get(port) == closeFuture) {
+                        closing.remove(port);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 解绑全部用户端口
+     */
+    public synchronized ChannelGroupFuture unbindAll() {
+        Set<Integer> ports = new LinkedHashSet<Integer>(channels.keySet());
+        ports.addAll(failedPorts);
+        ports.addAll(binding.keySet());
+        return unbind(ports);
+    }
+
+    public boolean isBound(int port) {
+        return channels.containsKey(port);
+    }
+
+    public int getBoundCount() {
+        return channels.size();
+    }
+
+    /**
+     * 绑定失败 等待重试的端口
+     */
+    public List<Integer> getFailedPorts() {
+        List<Integer> ports = new ArrayList<Integer>(failedPorts);
+        Collections.sort(ports);
+        return ports;
+    }
+
+    public Report getStartupReport() {
+        return startupReport;
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * 一次绑定的进度 由 UserPortBinder 的锁保护
+     */
+    private static final class BindRound {
+
+        private final long start = System.nanoTime();
+
+        private final Promise<Report> promise = new DefaultPromise<Report>(GlobalEventExecutor.INSTANCE);
+
+        private final int requested;
+
+        /** 是否为启动时的第一次绑定 */
+        private final boolean startup;
+
+        private int remaining;
+
+        private int bound;
+
+        private int skipped;
+
+        private int retried;
+
+        private final List<Integer> inUse = new ArrayList<Integer>();
+
+        private final Map<Integer, String> failed = new TreeMap<Integer, String>();
+
+        private BindRound(int requested, boolean startup) {
+            this.requested = requested;
+            this.startup = startup;
+        }
+    }
+
+    /**
+     * 一个端口的一次绑定
+     */
+    private final class BindListener implements ChannelFutureListener {
+
+        private final int port;
+
+        private final BindRound round;
+
+        /** 绑定期间被解绑时 绑定完成并关闭后通知 由 UserPortBinder 的锁保护 */
+        private Promise<Void> superseded;
+
+        private BindListener(int port, BindRound round) {
+            this.port = port;
+            this.round = round;
+        }
+
+        private Promise<Void> supersede() {
+            superseded = new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+            return superseded;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            onBound(port, this, future);
+        }
+    }
+
+    /**
+     * 一次绑定的结果
+     */
+    public static final class Report {
+
+        /** 本次要求绑定的端口数 */
+        private final int requested;
+
+        /** 绑定成功的端口数 */
+        private final int bound;
+
+        /** 已经绑定而跳过的端口数 */
+        private final int skipped;
+
+        /** 重试之前绑定失败的端口数 */
+        private final int retried;
+
+        /** 被其他程序占用的端口 */
+        private final List<Integer> inUse;
+
+        /** 其他原因绑定失败的端口及原因 */
+        private final Map<Integer, String> failed;
+
+        private final long elapsedMillis;
+
+        private final long time;
+
+        private Report(int requested, int bound, int skipped, int retried, List<Integer> inUse, Map<Integer, String> failed, long elapsedMillis) {
+            this.requested = requested;
+            this.bound = bound;
+            this.skipped = skipped;
+            this.retried = retried;
+            this.inUse = inUse;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+            this.time = System.currentTimeMillis();
+        }
+
+        public int getRequested() {
+            return requested;
+        }
+
+        public int getBound() {
+            return bound;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getRetried() {
+            return retried;
+        }
+
+        public List<Integer> getInUse() {
+            return Collections.unmodifiableList(inUse);
+        }
+
+        public Map<Integer, String> getFailed() {
+            return Collections.unmodifiableMap(failed);
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return "requested=" + requested + ", bound=" + bound + ", skipped=" + skipped + ", retried=" + retried + ", inUse=" + inUse + ", failed=" + failed + ", elapsed="
+                    + elapsedMillis + "ms";
+        }
+    }
+}
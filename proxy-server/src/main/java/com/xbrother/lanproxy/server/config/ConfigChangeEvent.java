@@ -0,0 +1,121 @@
+package com.xbrother.lanproxy.server.config;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * 代理配置的一次变化，由更新前后的配置对比得出
+ *
+ * 客户端按 clientKey 对比限速、并发数等参数，映射按启用的代理端口对比所属客户端、内网地址以及压缩、优先级等参数，
+ * 禁用的映射视为删除。监听器只处理受影响的客户端和端口
+ */
+public class ConfigChangeEvent {
+
+    public enum Type {
+        CLIENT_ADDED, CLIENT_REMOVED, CLIENT_CHANGED, MAPPING_ADDED, MAPPING_REMOVED, MAPPING_CHANGED
+    }
+
+    private final Map<Type, Set<String>> clientKeys = new EnumMap<Type, Set<String>>(Type.class);
+
+    private final Map<Type, Set<Integer>> ports = new EnumMap<Type, Set<Integer>>(Type.class);
+
+    /** 映射有变化的客户端 包括端口原来所属和现在所属的客户端 */
+    private final Set<String> mappingClientKeys = new HashSet<String>();
+
+    /**
+     * @param oldClients 更新前每个客户端的参数
+     * @param newClients 更新后每个客户端的参数
+     * @param oldMappings 更新前每个启用端口的参数 第一项为所属的客户端
+     * @param newMappings 更新后每个启用端口的参数 第一项为所属的客户端
+     */
+    ConfigChangeEvent(Map<String, List<Object>> oldClients, Map<String, List<Object>> newClients, Map<Integer, List<Object>> oldMappings,
+            Map<Integer, List<Object>> newMappings) {
+        for (Type type : Type.values()) {
+            clientKeys.put(type, new HashSet<String>());
+            ports.put(type, new HashSet<Integer>());
+        }
+
+        for (Entry<String, List<Object>> entry : newClients.entrySet()) {
+            List<Object> old = oldClients.get(entry.getKey());
+            if (old == null) {
+                clientKeys.get(Type.CLIENT_ADDED).add(entry.getKey());
+            } else if (!old.equals(entry.getValue())) {
+                clientKeys.get(Type.CLIENT_CHANGED).add(entry.getKey());
+            }
+        }
+        for (String clientKey : oldClients.keySet()) {
+            if (!newClients.containsKey(clientKey)) {
+                clientKeys.get(Type.CLIENT_REMOVED).add(clientKey);
+            }
+        }
+
+        for (Entry<Integer, List<Object>> entry : newMappings.entrySet()) {
+            List<Object> old = oldMappings.get(entry.getKey());
+            if (old == null) {
+                ports.get(Type.MAPPING_ADDED).add(entry.getKey());
+            } else if (!old.equals(entry.getValue())) {
+                ports.get(Type.MAPPING_CHANGED).add(entry.getKey());
+                mappingClientKeys.add((String) old.get(0));
+            } else {
+                continue;
+            }
+            mappingClientKeys.add((String) entry.getValue().get(0));
+        }
+        for (Entry<Integer, List<Object>> entry : oldMappings.entrySet()) {
+            if (!newMappings.containsKey(entry.getKey())) {
+                ports.get(Type.MAPPING_REMOVED).add(entry.getKey());
+                mappingClientKeys.add((String) entry.getValue().get(0));
+            }
+        }
+    }
+
+    /**
+     * 发生该类变化的客户端
+     */
+    public Set<String> getClientKeys(Type type) {
+        return Collections.unmodifiableSet(clientKeys.get(type));
+    }
+
+    /**
+     * 发生该类变化的代理端口
+     */
+    public Set<Integer> getPorts(Type type) {
+        return Collections.unmodifiableSet(ports.get(type));
+    }
+
+    /**
+     * 映射有增加、删除或者修改的客户端
+     */
+    public Set<String> getMappingClientKeys() {
+        return Collections.unmodifiableSet(mappingClientKeys);
+    }
+
+    public boolean isEmpty() {
+        for (Type type : Type.values()) {
+            if (!clientKeys.get(type).isEmpty() || !ports.get(type).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ConfigChangeEvent [");
+        for (Type type : Type.values()) {
+            Set<?> changes = type.name().startsWith("CLIENT") ? clientKeys.get(type) : ports.get(type);
+            if (!changes.isEmpty()) {
+                sb.append(type).append('=').append(changes.size() > 20 ? changes.size() + " items" : changes).append(", ");
+            }
+        }
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 2);
+        }
+        return sb.append(']').toString();
+    }
+}
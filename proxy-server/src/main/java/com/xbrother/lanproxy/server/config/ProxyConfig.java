@@ -12,6 +12,7 @@ import java.util.*;
 import com.google.gson.*;
 import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.common.JsonUtil;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -113,11 +114,46 @@ public class ProxyConfig implements Serializable {
      */
     private volatile Map<String, List<Integer>> clientInetPortMapping = new HashMap<String, List<Integer>>();
 
+    /**
+     * 代理服务器上的每个对外端口（key）所属的代理客户端（value）
+     */
+    private volatile Map<Integer, String> inetPortClientKeyMapping = new HashMap<Integer, String>();
+
     /**
      * 代理服务器上的每个对外端口（key）对应的代理客户端背后的真实服务器信息（value）
      */
     private volatile Map<Integer, String> inetPortLanInfoMapping = new HashMap<Integer, String>();
 
+    /**
+     * 需要压缩数据的代理服务器对外端口
+     */
+    private volatile Set<Integer> compressInetPorts = new HashSet<Integer>();
+
+    /**
+     * 需要合并小块读取的代理服务器对外端口
+     */
+    private volatile Set<Integer> coalesceInetPorts = new HashSet<Integer>();
+
+    /**
+     * 配置了优先级的代理服务器对外端口 未配置的为普通优先级
+     */
+    private volatile Map<Integer, Integer> inetPortPriorities = new HashMap<Integer, Integer>();
+
+    /**
+     * 配置了 socket 参数档案的代理服务器对外端口
+     */
+    private volatile Map<Integer, String> inetPortSocketProfiles = new HashMap<Integer, String>();
+
+    /**
+     * 每个客户端影响运行的参数 用于对比配置变化
+     */
+    private Map<String, List<Object>> clientSnapshots = new HashMap<String, List<Object>>();
+
+    /**
+     * 每个启用的代理端口影响运行的参数 用于对比配置变化
+     */
+    private Map<Integer, List<Object>> mappingSnapshots = new HashMap<Integer, List<Object>>();
+
     /**
      * 配置变化监听器
      */
@@ -381,6 +417,13 @@ public class ProxyConfig implements Serializable {
         Map<String, List<Integer>> clientInetPortMapping = new HashMap<String, List<Integer>>();
         // 代理服务器对外端口 与客户端后台真实IP映射关系  50001 -> 127.0.0.1:22
         Map<Integer, String> inetPortLanInfoMapping = new HashMap<Integer, String>();
+        Map<Integer, String> inetPortClientKeyMapping = new HashMap<Integer, String>();
+        Set<Integer> compressInetPorts = new HashSet<Integer>();
+        Set<Integer> coalesceInetPorts = new HashSet<Integer>();
+        Map<Integer, Integer> inetPortPriorities = new HashMap<Integer, Integer>();
+        Map<Integer, String> inetPortSocketProfiles = new HashMap<Integer, String>();
+        Map<String, List<Object>> clientSnapshots = new HashMap<String, List<Object>>();
+        Map<Integer, List<Object>> mappingSnapshots = new HashMap<Integer, List<Object>>();
 
         // 构造端口映射关系
         for (Client client : clients) {
@@ -394,6 +437,7 @@ public class ProxyConfig implements Serializable {
             List<ClientProxyMapping> mappings = client.getProxyMappings();
             List<Integer> ports = new ArrayList<Integer>();
             clientInetPortMapping.put(clientKey, ports);
+            clientSnapshots.put(clientKey, Arrays.<Object> asList(client.getReadLimit(), client.getWriteLimit(), client.getMaxConnections()));
 
             for (ClientProxyMapping mapping : mappings) {
                 // 将处于禁用状态的代理跳过
@@ -409,12 +453,36 @@ public class ProxyConfig implements Serializable {
                 }
 
                 inetPortLanInfoMapping.put(port, mapping.getLan());
+                inetPortClientKeyMapping.put(port, clientKey);
+                if (Boolean.TRUE.equals(mapping.getCompress())) {
+                    compressInetPorts.add(port);
+                }
+                if (Boolean.TRUE.equals(mapping.getCoalesce())) {
+                    coalesceInetPorts.add(port);
+                }
+                if (WriteScheduler.normalize(mapping.getPriority()) != WriteScheduler.PRIORITY_NORMAL) {
+                    inetPortPriorities.put(port, mapping.getPriority());
+                }
+                if (mapping.getSocketProfile() != null && !mapping.getSocketProfile().trim().isEmpty()) {
+                    inetPortSocketProfiles.put(port, mapping.getSocketProfile().trim());
+                }
+                mappingSnapshots.put(port, Arrays.<Object> asList(clientKey, mapping.getLan(), Boolean.TRUE.equals(mapping.getCompress()), Boolean.TRUE.equals(mapping.getCoalesce()),
+                        mapping.getPriority(), inetPortSocketProfiles.get(port), mapping.getReadLimit(), mapping.getWriteLimit(), mapping.getMaxConnections()));
             }
         }
 
+        ConfigChangeEvent event = new ConfigChangeEvent(this.clientSnapshots, clientSnapshots, this.mappingSnapshots, mappingSnapshots);
+
         // 替换之前的配置关系
+        this.clientSnapshots = clientSnapshots;
+        this.mappingSnapshots = mappingSnapshots;
         this.clientInetPortMapping = clientInetPortMapping;
         this.inetPortLanInfoMapping = inetPortLanInfoMapping;
+        this.inetPortClientKeyMapping = inetPortClientKeyMapping;
+        this.compressInetPorts = compressInetPorts;
+        this.coalesceInetPorts = coalesceInetPorts;
+        this.inetPortPriorities = inetPortPriorities;
+        this.inetPortSocketProfiles = inetPortSocketProfiles;
         this.clients = clients;
 
         // 更新完后 写入到配置文件
@@ -438,16 +506,23 @@ public class ProxyConfig implements Serializable {
         }
 
         // 通知配置变化
-        notifyconfigChangedListeners();
+        if (!event.isEmpty()) {
+            logger.info("config changed {}", event);
+        }
+        notifyconfigChangedListeners(event);
     }
 
     /**
-     * 配置更新通知
+     * 配置更新通知 没有变化时不通知
      */
-    private void notifyconfigChangedListeners() {
+    private void notifyconfigChangedListeners(ConfigChangeEvent event) {
+        if (event.isEmpty()) {
+            return;
+        }
+
         List<ConfigChangedListener> changedListeners = new ArrayList<ConfigChangedListener>(configChangedListeners);
         for (ConfigChangedListener changedListener : changedListeners) {
-            changedListener.onChanged();
+            changedListener.onChanged(event);
         }
     }
 
@@ -499,6 +574,57 @@ public class ProxyConfig implements Serializable {
         return inetPortLanInfoMapping.get(port);
     }
 
+    /**
+     * 根据代理服务器端口获取所属的代理客户端
+     *
+     * @param port
+     * @return
+     */
+    public String getClientKey(Integer port) {
+        return inetPortClientKeyMapping.get(port);
+    }
+
+    /**
+     * 该端口的代理是否压缩数据
+     *
+     * @param port
+     * @return
+     */
+    public boolean isCompress(Integer port) {
+        return compressInetPorts.contains(port);
+    }
+
+    /**
+     * 该端口的代理是否合并小块读取
+     *
+     * @param port
+     * @return
+     */
+    public boolean isCoalesce(Integer port) {
+        return coalesceInetPorts.contains(port);
+    }
+
+    /**
+     * 该端口的代理在复用的控制连接上的写出优先级
+     *
+     * @param port
+     * @return
+     */
+    public int getPriority(Integer port) {
+        Integer priority = inetPortPriorities.get(port);
+        return priority == null ? WriteScheduler.PRIORITY_NORMAL : priority;
+    }
+
+    /**
+     * 该端口的代理使用的 socket 参数档案名称 未配置时返回 null
+     *
+     * @param port
+     * @return
+     */
+    public String getSocketProfile(Integer port) {
+        return inetPortSocketProfiles.get(port);
+    }
+
     /**
      * 返回需要绑定在代理服务器的端口（用于用户请求）
      *
@@ -551,6 +677,45 @@ public class ProxyConfig implements Serializable {
          */
         private String tag;
 
+        /**
+         * 该客户端所有用户连接读取（用户上传）的总速率上限 KB/s 为空或 0 时不限速
+         */
+        private Long readLimit;
+
+        /**
+         * 该客户端所有用户连接写出（客户端上行）的总速率上限 KB/s 为空或 0 时不限速
+         */
+        private Long writeLimit;
+
+        /**
+         * 该客户端所有端口的用户连接并发数上限 为空或 0 时不限制
+         */
+        private Integer maxConnections;
+
+        public Long getReadLimit() {
+            return readLimit;
+        }
+
+        public void setReadLimit(Long readLimit) {
+            this.readLimit = readLimit;
+        }
+
+        public Long getWriteLimit() {
+            return writeLimit;
+        }
+
+        public void setWriteLimit(Long writeLimit) {
+            this.writeLimit = writeLimit;
+        }
+
+        public Integer getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(Integer maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
         public String getTag() {
             return tag;
         }
@@ -684,6 +849,97 @@ public class ProxyConfig implements Serializable {
          */
         private String status;
 
+        /**
+         * 是否压缩传输的数据（v2 协议的客户端有效） 适合 HTTP 等可压缩的流量
+         */
+        private Boolean compress;
+
+        /**
+         * 是否合并小块读取后再转发 适合文件同步、数据库导出等更关注吞吐的流量
+         */
+        private Boolean coalesce;
+
+        /**
+         * 该端口用户连接读取（用户上传）的总速率上限 KB/s 为空或 0 时不限速
+         */
+        private Long readLimit;
+
+        /**
+         * 该端口用户连接写出（客户端上行）的总速率上限 KB/s 为空或 0 时不限速
+         */
+        private Long writeLimit;
+
+        /**
+         * 复用模式（v3）下该端口的数据在控制连接上的写出优先级 1 交互 2 普通 3 批量 为空时为普通
+         */
+        private Integer priority;
+
+        /**
+         * 该端口的用户连接并发数上限 超过后排队等待 为空或 0 时不限制
+         */
+        private Integer maxConnections;
+
+        /**
+         * 连接使用的 socket 参数档案名称，档案在 config.properties 中定义，为空时使用默认参数
+         */
+        private String socketProfile;
+
+        public Long getReadLimit() {
+            return readLimit;
+        }
+
+        public void setReadLimit(Long readLimit) {
+            this.readLimit = readLimit;
+        }
+
+        public Long getWriteLimit() {
+            return writeLimit;
+        }
+
+        public void setWriteLimit(Long writeLimit) {
+            this.writeLimit = writeLimit;
+        }
+
+        public Integer getPriority() {
+            return priority;
+        }
+
+        public void setPriority(Integer priority) {
+            this.priority = priority;
+        }
+
+        public String getSocketProfile() {
+            return socketProfile;
+        }
+
+        public void setSocketProfile(String socketProfile) {
+            this.socketProfile = socketProfile;
+        }
+
+        public Integer getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(Integer maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public Boolean getCompress() {
+            return compress;
+        }
+
+        public Boolean getCoalesce() {
+            return coalesce;
+        }
+
+        public void setCoalesce(Boolean coalesce) {
+            this.coalesce = coalesce;
+        }
+
+        public void setCompress(Boolean compress) {
+            this.compress = compress;
+        }
+
         public String getStatus() {
             return status;
         }
@@ -723,7 +979,13 @@ public class ProxyConfig implements Serializable {
      * 配置更新回调 使用接口实现回调
      */
     public static interface ConfigChangedListener {
-        void onChanged();
+
+        /**
+         * 在 {@link ProxyConfig#update(String)} 的锁内依次调用
+         *
+         * @param event 与更新前相比的变化 不为空
+         */
+        void onChanged(ConfigChangeEvent event);
     }
 
     /**
@@ -59,7 +59,7 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         response.headers().set(Names.CONTENT_TYPE, mimeType);
         response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
         response.headers().set(Names.SERVER, SERVER_VS);
-        ChannelFuture future = ctx.writeAndFlush(response);
+        ChannelFuture future = ctx.write(response);
         if (!HttpHeaders.isKeepAlive(request)) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
@@ -131,7 +131,7 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             ctx.write(new ChunkedNioFile(raf.getChannel()));
         }
 
-        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        ChannelFuture future = ctx.write(LastHttpContent.EMPTY_LAST_CONTENT);
         if (!keepAlive) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
@@ -142,4 +142,11 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         ctx.writeAndFlush(response);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 响应只 write 一轮读取结束后统一 flush 流水线中的多个请求只产生一次系统调用
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
 }
@@ -1,6 +1,7 @@
 package com.xbrother.lanproxy.server.config.web;
 
 import com.xbrother.lanproxy.common.container.Container;
+import com.xbrother.lanproxy.server.ProxyServerContainer;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 import com.xbrother.lanproxy.server.config.web.routes.RouteConfig;
 import org.slf4j.Logger;
@@ -9,9 +10,8 @@ import org.slf4j.LoggerFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
@@ -20,20 +20,20 @@ public class WebConfigContainer implements Container {
 
     private static Logger logger = LoggerFactory.getLogger(WebConfigContainer.class);
 
-    private NioEventLoopGroup serverWorkerGroup;
+    private EventLoopGroup serverWorkerGroup;
 
-    private NioEventLoopGroup serverBossGroup;
+    private EventLoopGroup serverBossGroup;
 
     public WebConfigContainer() {
         // 配置管理 不会有大批量的更新配置的场景 使用单线程处理网络事件
-        serverBossGroup = new NioEventLoopGroup(1);
-        serverWorkerGroup = new NioEventLoopGroup(1);
+        serverBossGroup = ProxyServerContainer.TRANSPORT.newEventLoopGroup(1);
+        serverWorkerGroup = ProxyServerContainer.TRANSPORT.newEventLoopGroup(1);
     }
 
     @Override
     public void start() {
         ServerBootstrap httpServerBootstrap = new ServerBootstrap();
-        httpServerBootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+        httpServerBootstrap.group(serverBossGroup, serverWorkerGroup).channel(ProxyServerContainer.TRANSPORT.serverChannelClass()).childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
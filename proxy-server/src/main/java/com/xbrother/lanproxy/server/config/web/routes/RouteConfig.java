@@ -4,13 +4,22 @@ import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.RttStats;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
 import com.xbrother.lanproxy.server.config.web.ApiRoute;
 import com.xbrother.lanproxy.server.config.web.RequestHandler;
 import com.xbrother.lanproxy.server.config.web.RequestMiddleware;
 import com.xbrother.lanproxy.server.config.web.ResponseInfo;
 import com.xbrother.lanproxy.common.JsonUtil;
 import com.xbrother.lanproxy.server.ProxyChannelManager;
+import com.xbrother.lanproxy.server.LoopAffinity;
+import com.xbrother.lanproxy.server.OutboundBudget;
+import com.xbrother.lanproxy.server.ProxyServerContainer;
+import com.xbrother.lanproxy.server.UserPortBinder;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 import com.xbrother.lanproxy.server.config.ProxyConfig.Client;
 import com.xbrother.lanproxy.server.config.ProxyConfig.User;
@@ -57,6 +66,16 @@ public class RouteConfig {
         ApiRoute.addRoute("/metrics/get", metricsGet());
         // 获取数据使用量并重置
         ApiRoute.addRoute("/metrics/getandreset", metricsGetAndReset());
+        // 获取各在线客户端控制连接的往返时延与抖动
+        ApiRoute.addRoute("/metrics/link", metricsLink());
+        // 获取复用模式下各在线客户端控制连接上按优先级分类的写出队列
+        ApiRoute.addRoute("/metrics/queues", metricsQueues());
+        // 获取所有连接待发送字节数与预算
+        ApiRoute.addRoute("/metrics/outbound", metricsOutbound());
+        // 获取隧道两端连接在同一个 EventLoop 上的统计
+        ApiRoute.addRoute("/metrics/affinity", metricsAffinity());
+        // 用户端口启动和最近一次绑定的耗时及失败的端口
+        ApiRoute.addRoute("/metrics/bind", metricsBind());
         // 处理更新用户信息
         ApiRoute.addRoute("/user/update", userUpdate());
         // 获取所有用户的列表以及详情
@@ -203,7 +222,17 @@ public class RouteConfig {
                         client.setStatus(0);// 客户端离线
                     }
                 }
-                return ResponseInfo.build(ProxyConfig.getInstance().getClients());
+
+                // 链路质量只在返回结果中附加 不写入配置文件
+                Gson gson = new Gson();
+                JsonArray result = gson.toJsonTree(clients).getAsJsonArray();
+                for (int i = 0; i < clients.size(); i++) {
+                    RttStats.Snapshot linkQuality = getLinkQuality(clients.get(i).getClientKey());
+                    if (linkQuality != null) {
+                        result.get(i).getAsJsonObject().add("linkQuality", gson.toJsonTree(linkQuality));
+                    }
+                }
+                return ResponseInfo.build(result);
             }
         };
     }
@@ -320,6 +349,82 @@ public class RouteConfig {
         };
     }
 
+    private static RequestHandler metricsLink(){
+        return new RequestHandler() {
+            @Override
+            public ResponseInfo request(FullHttpRequest request) {
+                Map<String, RttStats.Snapshot> linkQualities = new LinkedHashMap<String, RttStats.Snapshot>();
+                for (Client client : ProxyConfig.getInstance().getClients()) {
+                    RttStats.Snapshot linkQuality = getLinkQuality(client.getClientKey());
+                    if (linkQuality != null) {
+                        linkQualities.put(client.getClientKey(), linkQuality);
+                    }
+                }
+                return ResponseInfo.build(linkQualities);
+            }
+        };
+    }
+
+    /**
+     * 客户端控制连接的往返时延统计 客户端离线或者不支持时返回 null
+     */
+    private static RttStats.Snapshot getLinkQuality(String clientKey) {
+        Channel channel = ProxyChannelManager.getCmdChannel(clientKey);
+        RttStats stats = channel == null ? null : RttStats.get(channel);
+        return stats == null ? null : stats.snapshot();
+    }
+
+    private static RequestHandler metricsQueues(){
+        return new RequestHandler() {
+            @Override
+            public ResponseInfo request(FullHttpRequest request) {
+                Map<String, Map<String, WriteScheduler.QueueStats>> queues = new LinkedHashMap<String, Map<String, WriteScheduler.QueueStats>>();
+                for (Client client : ProxyConfig.getInstance().getClients()) {
+                    Channel channel = ProxyChannelManager.getCmdChannel(client.getClientKey());
+                    if (channel != null && ProtocolVersion.isMux(channel)) {
+                        queues.put(client.getClientKey(), WriteScheduler.stats(channel));
+                    }
+                }
+                return ResponseInfo.build(queues);
+            }
+        };
+    }
+
+    private static RequestHandler metricsOutbound(){
+        return new RequestHandler() {
+            @Override
+            public ResponseInfo request(FullHttpRequest request) {
+                return ResponseInfo.build(OutboundBudget.getUsage());
+            }
+        };
+    }
+
+    private static RequestHandler metricsAffinity(){
+        return new RequestHandler() {
+            @Override
+            public ResponseInfo request(FullHttpRequest request) {
+                return ResponseInfo.build(LoopAffinity.getStats());
+            }
+        };
+    }
+
+    private static RequestHandler metricsBind(){
+        return new RequestHandler() {
+            @Override
+            public ResponseInfo request(FullHttpRequest request) {
+                Map<String, Object> result = new HashMap<String, Object>();
+                UserPortBinder binder = ProxyServerContainer.getUserPortBinder();
+                if (binder != null) {
+                    result.put("bound", binder.getBoundCount());
+                    result.put("failed", binder.getFailedPorts());
+                    result.put("startup", binder.getStartupReport());
+                    result.put("last", binder.getLastReport());
+                }
+                return ResponseInfo.build(result);
+            }
+        };
+    }
+
     private static RequestHandler userUpdate(){
         return new RequestHandler() {
             @Override
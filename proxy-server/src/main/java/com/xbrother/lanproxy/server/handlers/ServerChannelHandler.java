@@ -3,10 +3,25 @@ package com.xbrother.lanproxy.server.handlers;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.xbrother.lanproxy.common.Config;
 import com.xbrother.lanproxy.common.JsonUtil;
-import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.HeartbeatProbe;
+import com.xbrother.lanproxy.protocol.IdleCheckHandler;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
 import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.ProxyMessageDecoder;
+import com.xbrother.lanproxy.protocol.ProxyMessageEncoder;
+import com.xbrother.lanproxy.protocol.RawRelayHandler;
+import com.xbrother.lanproxy.protocol.RelayFlusher;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.protocol.Varints;
+import com.xbrother.lanproxy.server.LoopAffinity;
 import com.xbrother.lanproxy.server.ProxyChannelManager;
+import com.xbrother.lanproxy.server.ProxyServerContainer;
+import com.xbrother.lanproxy.server.SocketProfiles;
+import com.xbrother.lanproxy.server.TrafficShapingManager;
+import com.xbrother.lanproxy.server.TunnelSession;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +43,37 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     private static Logger logger = LoggerFactory.getLogger(ServerChannelHandler.class);
 
+    /**
+     * 服务端支持的最高协议版本
+     */
+    private static final int PROTOCOL_VERSION = Config.getInstance().getIntValue("server.protocol.version", ProtocolVersion.V3);
+
+    /**
+     * 是否允许 v2 数据连接切换为透传
+     */
+    private static final boolean RAW_ENABLE = Config.getInstance().getBooleanValue("server.raw.enable", true);
+
+    /**
+     * 服务端支持的特性
+     */
+    private static final int FEATURES = (Config.getInstance().getBooleanValue("server.compress.enable", true) ? ProtocolVersion.FEATURE_COMPRESS : 0) | ProtocolVersion.FEATURE_BATCH | ProtocolVersion.FEATURE_FRAGMENT
+            | ProtocolVersion.FEATURE_RTT | (RAW_ENABLE ? ProtocolVersion.FEATURE_RAW : 0);
+
+    /**
+     * 控制连接主动探测往返时延的间隔 秒
+     */
+    private static final int HEARTBEAT_PROBE_INTERVAL = Config.getInstance().getIntValue("server.heartbeat.probe.interval", 10);
+
+    /**
+     * 转发时一轮读取中未 flush 数据的上限
+     */
+    public static final int MAX_PENDING_FLUSH_BYTES = Config.getInstance().getIntValue("server.flush.max.pending", RelayFlusher.DEFAULT_MAX_PENDING_BYTES);
+
+    private final RelayFlusher flusher = new RelayFlusher(MAX_PENDING_FLUSH_BYTES);
+
+    /** 本轮读取中绑定、等待迁移到本连接 EventLoop 的会话 */
+    private TunnelSession pendingMigration;
+
     /**
      * 接收到客户端的数据的时候执行
      */
@@ -38,6 +84,9 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             case ProxyMessage.TYPE_HEARTBEAT:
                 handleHeartbeatMessage(ctx, proxyMessage);
                 break;
+            case ProxyMessage.TYPE_HEARTBEAT_ACK:
+                HeartbeatProbe.onAck(ctx.channel(), proxyMessage);
+                break;
             case ProxyMessage.C_TYPE_AUTH:
                 handleAuthMessage(ctx, proxyMessage);
                 break;
@@ -48,8 +97,12 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
                 handleDisconnectMessage(ctx, proxyMessage);
                 break;
             case ProxyMessage.P_TYPE_TRANSFER:
+            case ProxyMessage.P_TYPE_TRANSFER_DEFLATE:
                 handleTransferMessage(ctx, proxyMessage);
                 break;
+            case ProxyMessage.TYPE_WINDOW_UPDATE:
+                handleWindowUpdateMessage(ctx, proxyMessage);
+                break;
             default:
                 logger.error("协议不符合要求");
                 break;
@@ -58,47 +111,75 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     // 处理客户端的数据包
     private void handleTransferMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
-        Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
-        if (userChannel != null) {
-            ByteBuf buf = ctx.alloc().buffer(proxyMessage.getData().length);
-            buf.writeBytes(proxyMessage.getData());
-            userChannel.writeAndFlush(buf);
+        if (ProtocolVersion.isMux(ctx.channel())) {
+            // 复用模式下按流编号找到用户连接
+            Channel userChannel = ProxyChannelManager.getUserChannel(ctx.channel(), proxyMessage.getSerialNumber());
+            StreamWindow window = userChannel == null ? null : StreamWindow.get(userChannel);
+            ByteBuf data = window == null ? null : StreamCompressor.readData(userChannel, proxyMessage);
+            if (data == null) {
+                return;
+            }
+
+            int bytes = data.readableBytes();
+            if (!window.tryReceive(bytes)) {
+                // 对端不遵守窗口 关闭本端连接重置流
+                logger.warn("stream {} exceeds receive window, close user channel {}", window.getId(), userChannel);
+                data.release();
+                userChannel.close();
+                return;
+            }
+            flusher.write(userChannel, data, bytes);
+            window.onDataReceived(bytes);
+            return;
+        }
+
+        TunnelSession session = TunnelSession.get(ctx.channel());
+        if (session != null) {
+            Channel userChannel = session.getUserChannel();
+            // 直接转发消息中的数据 未压缩时为 retain 后的原数据
+            ByteBuf data = StreamCompressor.readData(userChannel, proxyMessage);
+            if (data != null) {
+                flusher.write(userChannel, data, data.readableBytes());
+            }
         }
     }
 
     // 处理客户端的断开请求
     private void handleDisconnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
-        String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
+        TunnelSession session = TunnelSession.get(ctx.channel());
         // 代理连接没有连上服务器由控制连接发送用户端断开连接消息
-        if (clientKey == null) {
-            String userId = proxyMessage.getUri();
+        if (session == null) {
+            long userId = getUserId(proxyMessage);
             Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(ctx.channel(), userId);
             if (userChannel != null) {
+                // 复用模式下由客户端关闭的流不需要再通知客户端
+                StreamWindow window = StreamWindow.get(userChannel);
+                if (window != null) {
+                    window.close();
+                }
+
                 // 数据发送完成后再关闭连接，解决http1.0数据传输问题
                 userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
             }
             return;
         }
 
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
-        if (cmdChannel == null) {
-            logger.warn("ConnectMessage :error cmd channel key {}", ctx.channel().attr(Constants.CLIENT_KEY).get());
-            return;
-        }
-
-        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ctx.channel().attr(Constants.USER_ID).get());
+        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(session.getCmdChannel(), session.getId());
         if (userChannel != null) {
             // 数据发送完成后再关闭连接，解决http1.0数据传输问题
             userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
 
-            ctx.channel().attr(Constants.NEXT_CHANNEL).set(null);
-            ctx.channel().attr(Constants.CLIENT_KEY).set(null);
-            ctx.channel().attr(Constants.USER_ID).set(null);
+            session.unbind(ctx.channel());
         }
     }
 
     // 处理客户端的连接请求
     private void handleConnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (ProtocolVersion.isMux(ctx.channel())) {
+            handleStreamConnectMessage(ctx, proxyMessage);
+            return;
+        }
+
         String uri = proxyMessage.getUri();
         if (uri == null) {
             ctx.channel().close();
@@ -106,39 +187,123 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             return;
         }
 
-        String[] tokens = uri.split("@");
-        if (tokens.length != 2) {
-            ctx.channel().close();
-            logger.warn("ConnectMessage: error uri :", tokens.toString());
-            return;
+        if (!ProtocolVersion.isV2(ctx.channel())) {
+            // 数据连接跟随所属控制连接的协商结果 v2 协议 uri 为 clientKey
+            Channel cmdChannel = ProxyChannelManager.getCmdChannel(uri);
+            if (cmdChannel != null && ProtocolVersion.isV2(cmdChannel)) {
+                ProtocolVersion.inherit(ctx.channel(), cmdChannel);
+            }
+        }
+
+        long userId;
+        String clientKey;
+        if (ProtocolVersion.isV2(ctx.channel())) {
+            // v2 协议 uri 为 clientKey 流编号即用户编号
+            userId = proxyMessage.getSerialNumber();
+            clientKey = uri;
+        } else {
+            // v1 协议 uri 格式为 userId@clientKey
+            int index = uri.indexOf('@');
+            if (index < 0 || index == uri.length() - 1 || uri.indexOf('@', index + 1) >= 0) {
+                ctx.channel().close();
+                logger.warn("ConnectMessage: error uri {}", uri);
+                return;
+            }
+
+            userId = parseUserId(uri.substring(0, index));
+            clientKey = uri.substring(index + 1);
         }
-        logger.info("客户端传来的 Token: {}", tokens.toString());
+        logger.debug("ConnectMessage userId {}, clientKey {}", userId, clientKey);
 
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(tokens[1]);
+        Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
         if (cmdChannel == null) {
             ctx.channel().close();
-            logger.warn("ConnectMessage: error cmd channel key {}", tokens[1]);
+            logger.warn("ConnectMessage: error cmd channel key {}", clientKey);
             return;
         }
 
-        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, tokens[0]);
-        if (userChannel != null) {
-            ctx.channel().attr(Constants.USER_ID).set(tokens[0]);
-            ctx.channel().attr(Constants.CLIENT_KEY).set(tokens[1]);
-            ctx.channel().attr(Constants.NEXT_CHANNEL).set(userChannel);
-            userChannel.attr(Constants.NEXT_CHANNEL).set(ctx.channel());
-            // 代理客户端与后端服务器连接成功，修改用户连接为可读状态
-            userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+        // 客户端请求透传时 CONNECT 之后的字节不再是消息
+        ByteBuf data = proxyMessage.getData();
+        boolean raw = ProtocolVersion.isV2(ctx.channel()) && data != null && data.isReadable() && (data.getUnsignedByte(data.readerIndex()) & ProtocolVersion.CONNECT_FLAG_RAW) != 0;
+
+        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, userId);
+        if (userChannel == null) {
+            if (raw) {
+                // 用户连接已经断开 客户端已经切换为透传，之后的字节不能再按消息解析，移除解码器后关闭
+                logger.debug("ConnectMessage: user channel closed, close raw data channel {}", ctx.channel());
+                ctx.pipeline().remove(ProxyMessageDecoder.class);
+                ctx.channel().close();
+            }
+            return;
+        }
+
+        TunnelSession session = TunnelSession.get(userChannel);
+        session.bind(ctx.channel());
+        SocketProfiles.applyToDataChannel(ctx.channel(), session.getPort());
+
+        if (raw) {
+            session.markRaw();
+            RawRelayHandler.install(ctx.channel(), MAX_PENDING_FLUSH_BYTES);
+        }
+
+        if (LoopAffinity.needsMigration(userChannel, ctx.channel(), true)) {
+            // 本轮读取结束后把用户连接迁移到数据连接的 EventLoop 上 之后再开始转发
+            session.setMigrating(true);
+            pendingMigration = session;
+            return;
+        }
+        startRelay(ctx.channel(), session);
+    }
+
+    /**
+     * 代理客户端与后端服务器连接成功，修改用户连接为可读状态
+     */
+    private static void startRelay(Channel dataChannel, TunnelSession session) {
+        Channel userChannel = session.getUserChannel();
+        // splice 会绕过 pipeline 有限速的用户连接不使用
+        if (session.isRaw() && ProxyServerContainer.TRANSPORT.isSplice() && !TrafficShapingManager.isLimited(userChannel) && LoopAffinity.isOutboundEmpty(userChannel)
+                && LoopAffinity.isOutboundEmpty(dataChannel)) {
+            RawRelayHandler.trySplice(dataChannel, userChannel);
+        }
+
+        userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+    }
+
+    // 复用模式下客户端连接后端服务器成功 控制连接即为用户连接的数据通道
+    private void handleStreamConnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel userChannel = ProxyChannelManager.getUserChannel(ctx.channel(), proxyMessage.getSerialNumber());
+        if (userChannel == null) {
+            // 用户连接已经断开 通知客户端关闭后端连接
+            ProxyMessage disconnectMessage = ProxyMessage.newInstance();
+            disconnectMessage.setType(ProxyMessage.TYPE_DISCONNECT);
+            disconnectMessage.setSerialNumber(proxyMessage.getSerialNumber());
+            ctx.channel().writeAndFlush(disconnectMessage, ctx.channel().voidPromise());
+            return;
+        }
+
+        TunnelSession.get(userChannel).bindStream(ctx.channel());
+        LoopAffinity.needsMigration(userChannel, ctx.channel(), false);
+        userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+    }
+
+    // 复用模式下客户端归还流的接收窗口
+    private void handleWindowUpdateMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel userChannel = ProxyChannelManager.getUserChannel(ctx.channel(), proxyMessage.getSerialNumber());
+        StreamWindow window = userChannel == null ? null : StreamWindow.get(userChannel);
+        long increment = Varints.readVarint(proxyMessage.getData());
+        if (window != null && increment > 0 && increment <= Integer.MAX_VALUE) {
+            window.onWindowUpdate((int) increment);
         }
     }
 
     // 处理客户端发来的心跳包
     private void handleHeartbeatMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
-        ProxyMessage heartbeatMessage = new ProxyMessage();
-        heartbeatMessage.setSerialNumber(heartbeatMessage.getSerialNumber());
-        heartbeatMessage.setType(ProxyMessage.TYPE_HEARTBEAT);
         logger.debug("response heartbeat message {}", ctx.channel());
-        ctx.channel().writeAndFlush(heartbeatMessage);
+        if (HeartbeatProbe.isProbe(ctx.channel(), proxyMessage)) {
+            flusher.write(ctx.channel(), HeartbeatProbe.newAck(proxyMessage), 0);
+        } else {
+            flusher.write(ctx.channel(), ProxyMessageEncoder.heartbeat(ctx.channel()), 0);
+        }
     }
 
     // 处理客户端发来的认证包
@@ -173,6 +338,41 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
             logger.info("set port => channel, clientKey:{}, ports:{}, ctx.channel:{}", clientKey, ports, ctx.channel());
             ProxyChannelManager.addCmdChannel(ports, clientKey, ctx.channel());
+            IdleCheckHandler.setCmdChannel(ctx.channel());
+
+            // 客户端在认证数据中声明支持的协议版本、特性与单包最大长度 旧版本客户端不带数据或者只带前两项
+            ByteBuf data = proxyMessage.getData();
+            int clientVersion = data != null && data.isReadable() ? data.readUnsignedByte() : ProtocolVersion.V1;
+            long clientFeatures = data != null && data.isReadable() ? Varints.readVarint(data) : 0;
+            long clientMaxFrameLength = data != null && data.isReadable() ? Varints.readVarint(data) : 0;
+            int version = Math.min(clientVersion, PROTOCOL_VERSION);
+            int features = version >= ProtocolVersion.V2 && clientFeatures > 0 ? (int) clientFeatures & FEATURES : 0;
+            int maxFrameLength = clientMaxFrameLength > 0 ? (int) Math.min(clientMaxFrameLength, ProxyServerContainer.MAX_FRAME_LENGTH) : ProtocolVersion.DEFAULT_MAX_FRAME_LENGTH;
+            ProtocolVersion.set(ctx.channel(), version);
+            ProtocolVersion.setFeatures(ctx.channel(), features);
+            ProtocolVersion.setMaxFrameLength(ctx.channel(), maxFrameLength);
+            logger.info("negotiated clientKey {}, version {}, features {}, maxFrameLength {}", clientKey, version, features, maxFrameLength);
+
+            if (clientMaxFrameLength > 0) {
+                // 告知客户端协商结果
+                ByteBuf ackData = ctx.alloc().buffer(1 + Varints.varintSize(features) + Varints.varintSize(maxFrameLength));
+                ackData.writeByte(version);
+                Varints.writeVarint(ackData, features);
+                Varints.writeVarint(ackData, maxFrameLength);
+                ProxyMessage ackMessage = ProxyMessage.newInstance();
+                ackMessage.setType(ProxyMessage.TYPE_AUTH_ACK);
+                ackMessage.setData(ackData);
+                flusher.write(ctx.channel(), ackMessage, 0);
+            }
+
+            if (ProtocolVersion.hasFeature(ctx.channel(), ProtocolVersion.FEATURE_RTT)) {
+                HeartbeatProbe.start(ctx.channel(), HEARTBEAT_PROBE_INTERVAL);
+            }
+
+            if (version >= ProtocolVersion.V2) {
+                // 切换为 v2 后下发映射表 之后的连接消息只携带映射编号
+                ProxyChannelManager.pushLanMappings(ctx.channel());
+            }
 
         }else {
             // 以下为支持客户端自发现的实现 本地配置文件中没有此客户端
@@ -192,15 +392,43 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
         }
     }
 
+    /**
+     * 获取消息对应的用户编号 v1 协议放在 uri 中 v2 协议为数值型的流编号
+     */
+    private static long getUserId(ProxyMessage proxyMessage) {
+        String uri = proxyMessage.getUri();
+        return uri != null ? parseUserId(uri) : proxyMessage.getSerialNumber();
+    }
+
+    /**
+     * v1 协议的用户编号由服务端生成 格式不对时返回 0，查找不到用户连接
+     */
+    private static long parseUserId(String userId) {
+        try {
+            return Long.parseLong(userId);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * 当一个Channel的可写的状态发生改变的时候执行
      */
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
-        Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
-
-        if (userChannel != null) {
-            userChannel.config().setOption(ChannelOption.AUTO_READ, ctx.channel().isWritable());
+        TunnelSession session = TunnelSession.get(ctx.channel());
+
+        if (session != null && !session.isMigrating()) {
+            session.getUserChannel().config().setOption(ChannelOption.AUTO_READ, ctx.channel().isWritable());
+        } else if (session == null && ProtocolVersion.isMux(ctx.channel())) {
+            // 复用模式下控制连接积压过多 暂停或恢复所有流
+            for (Channel userChannel : ProxyChannelManager.getUserChannels(ctx.channel()).values()) {
+                TunnelSession userSession = TunnelSession.get(userChannel);
+                // 还没有建立的流不能开始读取
+                if (userSession != null && userSession.getDataChannel() != null && userSession.getWindow() != null) {
+                    userSession.getWindow().onTunnelWritabilityChanged();
+                }
+            }
         }
 
         super.channelWritabilityChanged(ctx);
@@ -209,17 +437,39 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
     /**
      * 当一个Channel已经处于非激活的状态且不再连接到远程端的时候被调用执行
      */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 一轮读取结束 统一 flush 本轮转发的数据
+        flusher.flush();
+
+        if (pendingMigration != null) {
+            final TunnelSession session = pendingMigration;
+            final Channel dataChannel = ctx.channel();
+            pendingMigration = null;
+            LoopAffinity.migrate(session.getUserChannel(), dataChannel, new Runnable() {
+                @Override
+                public void run() {
+                    session.setMigrating(false);
+                    startRelay(dataChannel, session);
+                }
+            });
+        }
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        flusher.flush();
+        TunnelSession session = TunnelSession.get(ctx.channel());
 
-        if (userChannel != null && userChannel.isActive()) {
-            String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
-            String userId = ctx.channel().attr(Constants.USER_ID).get();
+        if (session != null && session.getUserChannel().isActive()) {
+            Channel userChannel = session.getUserChannel();
+            String clientKey = session.getClientKey();
+            String userId = session.getUserId();
             Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
 
             if (cmdChannel != null) {
-                ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
+                ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, session.getId());
                 logger.info("removed user channel from cmd channel: userId " + userId + "clientKey:" + clientKey);
             } else {
                 logger.warn("null cmdChannel, clientKey is {}", clientKey);
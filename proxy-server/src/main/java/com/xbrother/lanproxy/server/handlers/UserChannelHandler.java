@@ -1,18 +1,28 @@
 package com.xbrother.lanproxy.server.handlers;
 
-import java.net.InetSocketAddress;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.common.Config;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
 import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.ReadCoalescingHandler;
+import com.xbrother.lanproxy.protocol.RelayFlusher;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.protocol.Varints;
+import com.xbrother.lanproxy.server.AdmissionManager;
 import com.xbrother.lanproxy.server.ProxyChannelManager;
+import com.xbrother.lanproxy.server.TunnelSession;
 import com.xbrother.lanproxy.server.config.ProxyConfig;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +35,20 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
     private static Logger logger = LoggerFactory.getLogger(UserChannelHandler.class);
 
+    /** 合并小块读取时累积的最大字节数 */
+    private static final int COALESCE_SIZE = Config.getInstance().getIntValue("server.coalesce.size", 16 * 1024);
+
+    /** 合并小块读取时的最长等待时间 微秒 为 0 时每轮读取结束即发出 */
+    private static final long COALESCE_DELAY_MICROS = Config.getInstance().getIntValue("server.coalesce.delay.us", 0);
+
+    private final RelayFlusher flusher = new RelayFlusher(ServerChannelHandler.MAX_PENDING_FLUSH_BYTES);
+
+    private final TunnelSession session;
+
+    public UserChannelHandler(TunnelSession session) {
+        this.session = session;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // 当出现异常就关闭连接
@@ -34,87 +58,169 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
         // 通知代理客户端
-        Channel userChannel = ctx.channel();
-        Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
+        Channel proxyChannel = session.getDataChannel();
 
         if (proxyChannel == null) {
             logger.warn("proxyChannel == null 该端口还没有代理");
             // 该端口还没有代理客户端
             ctx.channel().close();
+        } else if (session.isRaw()) {
+            // 透传模式直接转发
+            flusher.write(proxyChannel, buf.retain(), buf.readableBytes());
         } else {
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
-
-            ProxyMessage proxyMessage = new ProxyMessage();
+            ProxyMessage proxyMessage = ProxyMessage.newInstance();
             proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(bytes);
+            StreamWindow window = session.getWindow();
+            if (window != null) {
+                // 复用模式以流编号区分用户连接
+                proxyMessage.setSerialNumber(window.getId());
+                proxyMessage.setPriority(window.getPriority());
+                window.onDataSent(buf.readableBytes());
+            } else if (!session.isV2()) {
+                // v2 协议数据连接只绑定一个用户连接 不需要携带用户编号
+                proxyMessage.setUri(session.getUserId());
+            }
+
+            StreamCompressor compressor = session.getCompressor();
+            ByteBuf compressed = compressor == null ? null : compressor.compress(proxyChannel.alloc(), buf);
+            if (compressed != null) {
+                proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER_DEFLATE);
+                proxyMessage.setData(compressed);
+            } else {
+                // buf 在 channelRead0 返回后会被自动释放 交给消息后需要 retain
+                proxyMessage.setData(buf.retain());
+            }
 
-            proxyChannel.writeAndFlush(proxyMessage);
+            flusher.write(proxyChannel, proxyMessage, proxyMessage.getData().readableBytes());
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 一轮读取结束 统一 flush 本轮转发的数据
+        flusher.flush();
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
+        final Channel userChannel = ctx.channel();
 
-        if (cmdChannel == null) {
+        if (ProxyChannelManager.getCmdChannel(session.getPort()) == null) {
             // 该端口还没有代理客户端
             ctx.channel().close();
         } else {
-            String userId = newUserId();
-            String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
             // 用户连接到代理服务器时，设置用户连接不可读，等待代理后端服务器连接成功后再改变为可读状态
             userChannel.config().setOption(ChannelOption.AUTO_READ, false);
-            ProxyChannelManager.addUserChannelToCmdChannel(cmdChannel, userId, userChannel);
-
-            ProxyMessage proxyMessage = new ProxyMessage();
-            proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(lanInfo.getBytes());
-            cmdChannel.writeAndFlush(proxyMessage);
+            // 超过并发数限制时排队 放行后再通知代理客户端
+            AdmissionManager.admit(userChannel, session.getPort(), new Runnable() {
+                @Override
+                public void run() {
+                    connect(userChannel);
+                }
+            });
         }
 
         super.channelActive(ctx);
     }
 
+    /**
+     * 通知代理客户端连接后端服务器
+     */
+    private void connect(Channel userChannel) {
+        int port = session.getPort();
+        Channel cmdChannel = ProxyChannelManager.getCmdChannel(port);
+
+        if (cmdChannel == null) {
+            // 排队期间代理客户端已经断开
+            userChannel.close();
+        } else {
+            long id = userIdProducer.incrementAndGet();
+            String userId = String.valueOf(id);
+            String lanInfo = ProxyConfig.getInstance().getLanInfo(port);
+            if (ProxyConfig.getInstance().isCoalesce(port)) {
+                ReadCoalescingHandler.install(userChannel, COALESCE_SIZE, COALESCE_DELAY_MICROS);
+            }
+            session.connect(cmdChannel, id);
+            ProxyChannelManager.addUserChannelToCmdChannel(cmdChannel, id, userChannel);
+
+            ProxyMessage proxyMessage = ProxyMessage.newInstance();
+            proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+            if (ProtocolVersion.isV2(cmdChannel)) {
+                // v2 协议只携带映射编号（即对外端口） 客户端从认证时下发的映射表中查找后端地址
+                proxyMessage.setSerialNumber(id);
+                ByteBuf data = cmdChannel.alloc().buffer(Varints.varintSize(port) + 1);
+                Varints.writeVarint(data, port);
+                boolean compress = ProxyChannelManager.isCompress(cmdChannel, port);
+                if (compress) {
+                    session.setCompressor(StreamCompressor.open(userChannel));
+                } else if (ProtocolVersion.hasFeature(cmdChannel, ProtocolVersion.FEATURE_RAW) && !ProtocolVersion.isMux(cmdChannel)) {
+                    // 允许客户端在数据连接绑定后切换为透传
+                    data.writeByte(ProtocolVersion.CONNECT_FLAG_RAW);
+                }
+                proxyMessage.setData(data);
+            } else {
+                proxyMessage.setUri(userId);
+                proxyMessage.setData(Unpooled.copiedBuffer(lanInfo, CharsetUtil.UTF_8));
+            }
+
+            if (ProtocolVersion.isMux(cmdChannel)) {
+                // 复用模式下用户连接作为流直接复用控制连接
+                StreamWindow window = StreamWindow.open(id, cmdChannel, userChannel);
+                window.setPriority(ProxyConfig.getInstance().getPriority(port));
+                session.setWindow(window);
+            }
+            cmdChannel.writeAndFlush(proxyMessage, cmdChannel.voidPromise());
+        }
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 
+        flusher.flush();
+
         // 通知代理客户端
         Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
+        StreamCompressor compressor = session.getCompressor();
+        if (compressor != null) {
+            compressor.release();
+        }
+
+        if (!AdmissionManager.release(userChannel)) {
+            // 排队中或者被拒绝的连接 代理客户端还不知道 不需要通知
+            super.channelInactive(ctx);
+            return;
+        }
+
+        Channel cmdChannel = session.getCmdChannel();
         if (cmdChannel == null) {
-            // 该端口还没有代理客户端
+            // 还没有通知过代理客户端
             ctx.channel().close();
         } else {
             // 用户连接断开，从控制连接中移除
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
-            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
-            Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-
-            if (proxyChannel != null && proxyChannel.isActive()) {
-                /*
-                proxyChannel.attr(Constants.NEXT_CHANNEL).remove();
-                proxyChannel.attr(Constants.CLIENT_KEY).remove();
-                proxyChannel.attr(Constants.USER_ID).remove();
-                */
-
-                proxyChannel.attr(Constants.NEXT_CHANNEL).set(null);
-                proxyChannel.attr(Constants.CLIENT_KEY).set(null);
-                proxyChannel.attr(Constants.USER_ID).set(null);
-
+            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, session.getId());
+            Channel proxyChannel = session.getDataChannel();
+            StreamWindow window = session.getWindow();
+
+            if (window != null) {
+                // 复用模式 通知客户端关闭流
+                window.sendDisconnect();
+            } else if (proxyChannel != null && session.isRaw()) {
+                // 透传的数据连接不再复用 数据发送完成后直接关闭
+                proxyChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            } else if (proxyChannel != null && proxyChannel.isActive()) {
+                session.unbind(proxyChannel);
 
                 proxyChannel.config().setOption(ChannelOption.AUTO_READ, true);
                 // 通知客户端，用户连接已经断开
-                ProxyMessage proxyMessage = new ProxyMessage();
+                ProxyMessage proxyMessage = ProxyMessage.newInstance();
                 proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-                proxyMessage.setUri(userId);
-                proxyChannel.writeAndFlush(proxyMessage);
+                if (session.isV2()) {
+                    proxyMessage.setSerialNumber(session.getId());
+                } else {
+                    proxyMessage.setUri(session.getUserId());
+                }
+                proxyChannel.writeAndFlush(proxyMessage, proxyChannel.voidPromise());
             }
         }
 
@@ -126,27 +232,17 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
         // 通知代理客户端
         Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
-        if (cmdChannel == null) {
-            // 该端口还没有代理客户端
-            ctx.channel().close();
-        } else {
-            Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-            if (proxyChannel != null) {
-                proxyChannel.config().setOption(ChannelOption.AUTO_READ, userChannel.isWritable());
+        Channel proxyChannel = session.getDataChannel();
+        StreamWindow window = session.getWindow();
+        if (window != null) {
+            // 复用模式不能暂停控制连接 改为延迟归还流的接收窗口
+            if (userChannel.isWritable()) {
+                window.onEndpointWritable();
             }
+        } else if (proxyChannel != null && !session.isMigrating()) {
+            proxyChannel.config().setOption(ChannelOption.AUTO_READ, userChannel.isWritable());
         }
 
         super.channelWritabilityChanged(ctx);
     }
-
-    /**
-     * 为用户连接产生ID
-     *
-     * @return
-     */
-    private static String newUserId() {
-        return String.valueOf(userIdProducer.incrementAndGet());
-    }
-}
\ No newline at end of file
+}
@@ -18,6 +18,10 @@ public class Metrics implements Serializable {
 
     private int channels;
 
+    private int queuedChannels;
+
+    private long rejectedChannels;
+
     private long timestamp;
 
     public long getReadBytes() {
@@ -52,6 +56,22 @@ public class Metrics implements Serializable {
         this.wroteMsgs = wroteMsgs;
     }
 
+    public int getQueuedChannels() {
+        return queuedChannels;
+    }
+
+    public void setQueuedChannels(int queuedChannels) {
+        this.queuedChannels = queuedChannels;
+    }
+
+    public long getRejectedChannels() {
+        return rejectedChannels;
+    }
+
+    public void setRejectedChannels(long rejectedChannels) {
+        this.rejectedChannels = rejectedChannels;
+    }
+
     public int getChannels() {
         return channels;
     }
@@ -22,6 +22,12 @@ public class MetricsCollector {
 
     private AtomicInteger channels = new AtomicInteger();
 
+    /** 超过并发数限制正在排队的用户连接数 */
+    private AtomicInteger queuedChannels = new AtomicInteger();
+
+    /** 排队超时或者队列已满被关闭的用户连接数 */
+    private AtomicLong rejectedChannels = new AtomicLong();
+
     private MetricsCollector() {
     }
 
@@ -83,6 +89,8 @@ public class MetricsCollector {
         metrics.setTimestamp(System.currentTimeMillis());
         metrics.setReadMsgs(readMsgs.getAndSet(0));
         metrics.setWroteMsgs(wroteMsgs.getAndSet(0));
+        metrics.setQueuedChannels(queuedChannels.get());
+        metrics.setRejectedChannels(rejectedChannels.getAndSet(0));
 
         return metrics;
     }
@@ -96,6 +104,8 @@ public class MetricsCollector {
         metrics.setTimestamp(System.currentTimeMillis());
         metrics.setReadMsgs(readMsgs.get());
         metrics.setWroteMsgs(wroteMsgs.get());
+        metrics.setQueuedChannels(queuedChannels.get());
+        metrics.setRejectedChannels(rejectedChannels.get());
 
         return metrics;
     }
@@ -116,10 +126,18 @@ public class MetricsCollector {
         wroteMsgs.addAndGet(msgs);
     }
 
+    public void incrementRejectedChannels() {
+        rejectedChannels.incrementAndGet();
+    }
+
     public AtomicInteger getChannels() {
         return channels;
     }
 
+    public AtomicInteger getQueuedChannels() {
+        return queuedChannels;
+    }
+
     public Integer getPort() {
         return port;
     }
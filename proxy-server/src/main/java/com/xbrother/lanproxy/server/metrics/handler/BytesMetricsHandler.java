@@ -1,7 +1,5 @@
 package com.xbrother.lanproxy.server.metrics.handler;
 
-import java.net.InetSocketAddress;
-
 import com.xbrother.lanproxy.server.metrics.MetricsCollector;
 
 import io.netty.buffer.ByteBuf;
@@ -11,10 +9,15 @@ import io.netty.channel.ChannelPromise;
 
 public class BytesMetricsHandler extends ChannelDuplexHandler {
 
+    /** 用户连接所属代理端口的统计 连接建立时确定 */
+    private final MetricsCollector metricsCollector;
+
+    public BytesMetricsHandler(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
         metricsCollector.incrementReadBytes(((ByteBuf) msg).readableBytes());
         metricsCollector.incrementReadMsgs(1);
         ctx.fireChannelRead(msg);
@@ -22,8 +25,6 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
         metricsCollector.incrementWroteBytes(((ByteBuf) msg).readableBytes());
         metricsCollector.incrementWroteMsgs(1);
         super.write(ctx, msg, promise);
@@ -31,16 +32,14 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().incrementAndGet();
+        metricsCollector.getChannels().incrementAndGet();
         super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().decrementAndGet();
+        metricsCollector.getChannels().decrementAndGet();
         super.channelInactive(ctx);
     }
 
-}
\ No newline at end of file
+}
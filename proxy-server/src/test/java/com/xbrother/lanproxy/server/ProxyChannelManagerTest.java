@@ -0,0 +1,100 @@
+package com.xbrother.lanproxy.server;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class ProxyChannelManagerTest {
+
+    private static final String CLIENT_KEY = "channel-manager-test";
+
+    private static final int FIRST_PORT = 61000;
+
+    private static final int PORTS = 32;
+
+    @Test
+    public void updateAndRemovePorts() {
+        Channel channel = new EmbeddedChannel();
+        ProxyChannelManager.addCmdChannel(Arrays.asList(FIRST_PORT, FIRST_PORT + 1), CLIENT_KEY, channel);
+        assertSame(channel, ProxyChannelManager.getCmdChannel(FIRST_PORT));
+
+        // 删除一个端口 新增一个端口
+        ProxyChannelManager.updatePorts(channel, Arrays.asList(FIRST_PORT + 1, FIRST_PORT + 2));
+        assertNull(ProxyChannelManager.getCmdChannel(FIRST_PORT));
+        assertSame(channel, ProxyChannelManager.getCmdChannel(FIRST_PORT + 1));
+        assertSame(channel, ProxyChannelManager.getCmdChannel(FIRST_PORT + 2));
+
+        ProxyChannelManager.removeCmdChannel(channel);
+        for (int port = FIRST_PORT; port < FIRST_PORT + 3; port++) {
+            assertNull(ProxyChannelManager.getCmdChannel(port));
+        }
+        assertNull(ProxyChannelManager.getCmdChannel(CLIENT_KEY));
+    }
+
+    @Test
+    public void replacedChannelKeepsPorts() {
+        Channel oldChannel = new EmbeddedChannel();
+        Channel newChannel = new EmbeddedChannel();
+        ProxyChannelManager.addCmdChannel(Arrays.asList(FIRST_PORT), CLIENT_KEY, oldChannel);
+        // 客户端重连 旧的控制连接之后才断开
+        ProxyChannelManager.addCmdChannel(Arrays.asList(FIRST_PORT), CLIENT_KEY, newChannel);
+
+        ProxyChannelManager.updatePorts(oldChannel, Arrays.asList(FIRST_PORT, FIRST_PORT + 1));
+        assertNull(ProxyChannelManager.getCmdChannel(FIRST_PORT + 1));
+        ProxyChannelManager.removeCmdChannel(oldChannel);
+        assertSame(newChannel, ProxyChannelManager.getCmdChannel(FIRST_PORT));
+        assertSame(newChannel, ProxyChannelManager.getCmdChannel(CLIENT_KEY));
+
+        ProxyChannelManager.removeCmdChannel(newChannel);
+        assertNull(ProxyChannelManager.getCmdChannel(FIRST_PORT));
+    }
+
+    @Test
+    public void concurrentUpdateAndRemove() throws Exception {
+        final List<Integer> ports = new ArrayList<Integer>();
+        for (int i = 0; i < PORTS; i++) {
+            ports.add(FIRST_PORT + i);
+        }
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int round = 0; round < 2000; round++) {
+            final Channel channel = new EmbeddedChannel();
+            ProxyChannelManager.addCmdChannel(ports.subList(0, 1), CLIENT_KEY, channel);
+
+            // 配置变化新增端口的同时控制连接断开
+            Thread updater = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        ProxyChannelManager.updatePorts(channel, ports);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            updater.start();
+            barrier.await();
+            ProxyChannelManager.removeCmdChannel(channel);
+            updater.join();
+
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            for (int port : ports) {
+                assertNull("round " + round + " port " + port, ProxyChannelManager.getCmdChannel(port));
+            }
+        }
+    }
+}
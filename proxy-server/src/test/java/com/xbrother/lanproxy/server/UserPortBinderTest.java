@@ -0,0 +1,102 @@
+package com.xbrother.lanproxy.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xbrother.lanproxy.protocol.Transport;
+import com.xbrother.lanproxy.server.UserPortBinder.Report;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+
+public class UserPortBinderTest {
+
+    private static final int FIRST_PORT = 62000;
+
+    private static final int PORTS = 16;
+
+    private EventLoopGroup bossGroup;
+
+    private EventLoopGroup workerGroup;
+
+    private UserPortBinder binder;
+
+    @Before
+    public void setUp() {
+        // NIO 下监听 socket 在下一次 select 时才真正关闭 关闭完成后立即绑定仍可能被占用
+        Transport transport = Transport.select(Transport.AUTO);
+        Assume.assumeTrue(transport.isEpoll());
+
+        bossGroup = transport.newEventLoopGroup(4);
+        workerGroup = transport.newEventLoopGroup(1);
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup).channel(transport.serverChannelClass()).childHandler(new NoopHandler());
+        binder = new UserPortBinder(bootstrap);
+    }
+
+    @After
+    public void tearDown() {
+        if (binder == null) {
+            return;
+        }
+        binder.unbindAll().awaitUninterruptibly();
+        bossGroup.shutdownGracefully().syncUninterruptibly();
+        workerGroup.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    public void bindUnbindAndRebind() {
+        List<Integer> ports = ports();
+        Report report = binder.bind(ports).awaitUninterruptibly().getNow();
+        assertEquals(PORTS, report.getBound());
+
+        // 已经绑定的端口跳过
+        report = binder.bind(ports).awaitUninterruptibly().getNow();
+        assertEquals(PORTS, report.getSkipped());
+        assertEquals(0, report.getBound());
+
+        // 解绑后立即再次绑定 在关闭后进行
+        binder.unbind(ports);
+        report = binder.bind(ports).awaitUninterruptibly().getNow();
+        assertEquals(PORTS, report.getBound());
+        assertEquals(PORTS, binder.getBoundCount());
+    }
+
+    @Test
+    public void unbindWhileBinding() {
+        List<Integer> ports = ports();
+        for (int round = 0; round < 50; round++) {
+            // 绑定还没有完成就被解绑 再次绑定要等之前的绑定完成并关闭 不能因为端口被占用而失败
+            binder.bind(ports);
+            binder.unbind(ports);
+            Report report = binder.bind(ports).awaitUninterruptibly().getNow();
+            assertTrue("round " + round + " " + report, report.getInUse().isEmpty() && report.getFailed().isEmpty());
+            assertEquals("round " + round, PORTS, binder.getBoundCount());
+            assertTrue(binder.getFailedPorts().isEmpty());
+
+            binder.unbind(ports);
+        }
+    }
+
+    private static List<Integer> ports() {
+        List<Integer> ports = new ArrayList<Integer>();
+        for (int i = 0; i < PORTS; i++) {
+            ports.add(FIRST_PORT + i);
+        }
+        return ports;
+    }
+
+    @ChannelHandler.Sharable
+    private static final class NoopHandler extends ChannelInboundHandlerAdapter {
+    }
+}
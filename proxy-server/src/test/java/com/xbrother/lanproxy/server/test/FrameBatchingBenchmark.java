@@ -0,0 +1,143 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.ProxyMessageDecoder;
+import com.xbrother.lanproxy.protocol.ProxyMessageEncoder;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * 小数据包合并发送的对比测试
+ *
+ * 多个线程模拟多个用户连接，向同一条控制连接写入 10~100 字节的 TRANSFER 消息，
+ * 对比合并前后的 flush 次数（约等于 write 系统调用次数）、线路上的字节数以及耗时
+ */
+public class FrameBatchingBenchmark {
+
+    private static final int PRODUCERS = 8;
+
+    private static final int MESSAGES_PER_PRODUCER = 50000;
+
+    private static final int MIN_PACKET_SIZE = 10;
+
+    private static final int MAX_PACKET_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(2);
+        try {
+            // 先跑一轮预热
+            run(group, false, false);
+            run(group, true, false);
+
+            run(group, false, true);
+            run(group, true, true);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static void run(NioEventLoopGroup group, final boolean batch, boolean print) throws Exception {
+        final int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+        final CountDownLatch received = new CountDownLatch(total);
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong wireBytes = new AtomicLong();
+        final AtomicLong payloadBytes = new AtomicLong();
+
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap.group(group).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new ProxyMessageDecoder(1024 * 1024, 0, 4, 0, 0));
+                ch.pipeline().addLast(new SimpleChannelInboundHandler<ProxyMessage>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, ProxyMessage msg) throws Exception {
+                        received.countDown();
+                    }
+                });
+            }
+        });
+        Channel server = serverBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(NioSocketChannel.class).handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+                    @Override
+                    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                        wireBytes.addAndGet(((ByteBuf) msg).readableBytes());
+                        ctx.write(msg, promise);
+                    }
+
+                    @Override
+                    public void flush(ChannelHandlerContext ctx) throws Exception {
+                        flushes.incrementAndGet();
+                        ctx.flush();
+                    }
+                });
+                ch.pipeline().addLast(new ProxyMessageEncoder(batch));
+            }
+        });
+        final Channel channel = bootstrap.connect(server.localAddress()).sync().channel();
+        ProtocolVersion.set(channel, ProtocolVersion.V2);
+        ProtocolVersion.setFeatures(channel, ProtocolVersion.FEATURE_BATCH);
+
+        long start = System.nanoTime();
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int streamId = i + 1;
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(streamId);
+                    for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+                        int size = MIN_PACKET_SIZE + random.nextInt(MAX_PACKET_SIZE - MIN_PACKET_SIZE + 1);
+                        ByteBuf data = channel.alloc().buffer(size);
+                        data.writeZero(size);
+                        payloadBytes.addAndGet(size);
+
+                        ProxyMessage proxyMessage = new ProxyMessage();
+                        proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
+                        proxyMessage.setSerialNumber(streamId);
+                        proxyMessage.setData(data);
+                        channel.writeAndFlush(proxyMessage, channel.voidPromise());
+                    }
+                }
+            };
+            producers[i].start();
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        received.await();
+        long elapsed = System.nanoTime() - start;
+
+        channel.close().sync();
+        server.close().sync();
+
+        if (print) {
+            long overhead = wireBytes.get() - payloadBytes.get();
+            System.out.println((batch ? "合并发送" : "逐个发送") + " 消息数:" + total + " flush 次数:" + flushes.get() + " 线路字节:" + wireBytes.get() + " 头部开销:" + overhead + " (每消息 "
+                    + String.format("%.2f", (double) overhead / total) + " 字节)" + " 耗时:" + elapsed / 1000000 + "ms" + " 吞吐:" + (long) (total / (elapsed / 1e9)) + " 消息/秒");
+        }
+    }
+}
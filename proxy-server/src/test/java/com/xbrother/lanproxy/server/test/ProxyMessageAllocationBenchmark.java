@@ -0,0 +1,183 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collections;
+
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.ProxyMessage;
+import com.xbrother.lanproxy.protocol.ProxyMessageDecoder;
+import com.xbrother.lanproxy.protocol.ProxyMessageEncoder;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.protocol.WriteScheduler;
+import com.xbrother.lanproxy.server.ProxyChannelManager;
+import com.xbrother.lanproxy.server.TunnelSession;
+import com.xbrother.lanproxy.server.handlers.ServerChannelHandler;
+import com.xbrother.lanproxy.server.handlers.UserChannelHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 转发路径上每帧分配内存的测试
+ *
+ * 用户连接和数据连接使用服务端实际的处理器（{@link UserChannelHandler}、{@link ServerChannelHandler}，经过各自的 RelayFlusher），
+ * 通过 {@link TunnelSession} 绑定。下载方向向数据连接送入编码好的 TRANSFER 帧，转发到用户连接；
+ * 上传方向向用户连接送入数据，封装成消息后经编码器写到数据连接。两端写出的结果直接丢弃，相当于写入 socket。
+ * 统计当前线程平均每帧分配的字节数，读缓冲区每次装入多个帧，模拟一次 socket 读取，所有缓冲区都来自池化分配器。
+ *
+ * v2 为每个用户连接独占一个数据连接；v3 为复用模式，用户连接作为一个流复用控制连接，
+ * 控制连接上加入 {@link WriteScheduler}，上传方向的消息经过调度写出，每次读取后模拟对端归还窗口
+ */
+public class ProxyMessageAllocationBenchmark {
+
+    private static final int FRAMES_PER_READ = 64;
+
+    private static final int READS = 20000;
+
+    private static final int PACKET_SIZE = 64;
+
+    /** v3 下的流编号 */
+    private static final long STREAM_ID = 1;
+
+    public static void main(String[] args) throws Exception {
+        for (int version : new int[] { ProtocolVersion.V2, ProtocolVersion.V3 }) {
+            // 先跑一轮预热
+            run(version, false);
+            run(version, true);
+        }
+    }
+
+    private static void run(int version, boolean print) throws Exception {
+        boolean mux = version == ProtocolVersion.V3;
+        EmbeddedChannel userChannel = new InetEmbeddedChannel(new InetSocketAddress("127.0.0.1", 20000), new DiscardHandler());
+        EmbeddedChannel dataChannel = new InetEmbeddedChannel(new InetSocketAddress("127.0.0.1", 4900), new DiscardHandler());
+        userChannel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        dataChannel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        ProtocolVersion.set(dataChannel, version);
+
+        // 连接建立后再加入处理器 不触发 channelActive 中的连接流程
+        TunnelSession session = TunnelSession.open(userChannel);
+        userChannel.pipeline().addLast(new UserChannelHandler(session));
+        dataChannel.pipeline().addLast(new ProxyMessageEncoder(false), new ProxyMessageDecoder(1024 * 1024, 0, 4, 0, 0));
+        StreamWindow window = null;
+        if (mux) {
+            // 复用模式下数据连接即控制连接 按流编号找到用户连接
+            dataChannel.pipeline().addLast(new WriteScheduler());
+            ProxyChannelManager.addCmdChannel(Collections.<Integer> emptyList(), "allocation-benchmark", dataChannel);
+            ProxyChannelManager.addUserChannelToCmdChannel(dataChannel, STREAM_ID, userChannel);
+            window = StreamWindow.open(STREAM_ID, dataChannel, userChannel);
+            session.setWindow(window);
+            session.bindStream(dataChannel);
+        } else {
+            session.bind(dataChannel);
+        }
+        dataChannel.pipeline().addLast(new ServerChannelHandler());
+
+        // 预先编码一次读取的内容
+        ByteBuf template = PooledByteBufAllocator.DEFAULT.buffer();
+        EmbeddedChannel encoder = new EmbeddedChannel(new ProxyMessageEncoder(false));
+        ProtocolVersion.set(encoder, version);
+        for (int i = 0; i < FRAMES_PER_READ; i++) {
+            ProxyMessage proxyMessage = new ProxyMessage();
+            proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
+            if (mux) {
+                proxyMessage.setSerialNumber(STREAM_ID);
+            }
+            proxyMessage.setData(encoder.alloc().buffer(PACKET_SIZE).writeZero(PACKET_SIZE));
+            encoder.writeOutbound(proxyMessage);
+        }
+        for (Object encoded = encoder.readOutbound(); encoded != null; encoded = encoder.readOutbound()) {
+            template.writeBytes((ByteBuf) encoded);
+            ((ByteBuf) encoded).release();
+        }
+        encoder.finish();
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // 下载 数据连接 -> 用户连接
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            ByteBuf read = dataChannel.alloc().buffer(template.readableBytes());
+            read.writeBytes(template, template.readerIndex(), template.readableBytes());
+            dataChannel.pipeline().fireChannelRead(read);
+            dataChannel.pipeline().fireChannelReadComplete();
+        }
+        long downloadElapsed = System.nanoTime() - start;
+        long downloadAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // 上传 用户连接 -> 数据连接
+        allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            for (int j = 0; j < FRAMES_PER_READ; j++) {
+                userChannel.pipeline().fireChannelRead(userChannel.alloc().buffer(PACKET_SIZE).writeZero(PACKET_SIZE));
+            }
+            userChannel.pipeline().fireChannelReadComplete();
+            if (window != null) {
+                window.onWindowUpdate(FRAMES_PER_READ * PACKET_SIZE);
+            }
+        }
+        long uploadElapsed = System.nanoTime() - start;
+        long uploadAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        template.release();
+        if (mux) {
+            ProxyChannelManager.removeCmdChannel(dataChannel);
+        } else {
+            session.unbind(dataChannel);
+        }
+        userChannel.finishAndReleaseAll();
+        dataChannel.finishAndReleaseAll();
+
+        if (print) {
+            print("v" + version + " 下载", downloadAllocated, downloadElapsed);
+            print("v" + version + " 上传", uploadAllocated, uploadElapsed);
+        }
+    }
+
+    private static void print(String name, long allocated, long elapsed) {
+        long frames = (long) READS * FRAMES_PER_READ;
+        System.out.println(name + " 帧数:" + frames + " 分配字节:" + allocated + " (每帧 " + String.format("%.1f", (double) allocated / frames) + " 字节)" + " 耗时:"
+                + elapsed / 1000000 + "ms");
+    }
+
+    /**
+     * 丢弃写出的数据 相当于写入 socket
+     */
+    private static final class DiscardHandler extends ChannelOutboundHandlerAdapter {
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            ReferenceCountUtil.release(msg);
+            promise.trySuccess();
+        }
+    }
+
+    /**
+     * 本地地址为 InetSocketAddress 的 EmbeddedChannel 与用户连接一样可以取到代理端口
+     */
+    private static final class InetEmbeddedChannel extends EmbeddedChannel {
+
+        private final InetSocketAddress localAddress;
+
+        private InetEmbeddedChannel(InetSocketAddress localAddress, ChannelHandler handler) {
+            super(handler);
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return localAddress;
+        }
+    }
+}
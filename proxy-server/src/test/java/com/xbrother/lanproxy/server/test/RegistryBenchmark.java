@@ -0,0 +1,131 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.xbrother.lanproxy.common.ConcurrentLongMap;
+
+/**
+ * 连接注册表的内存和查找开销对比
+ *
+ * 之前：用户编号到用户连接为以字符串为键的 ConcurrentHashMap，端口到控制连接为以 Integer 为键的 ConcurrentHashMap。
+ * 之后：用户编号为键的 {@link ConcurrentLongMap}，端口为下标的 AtomicReferenceArray。
+ *
+ * 值都使用同一批对象，只统计注册表本身的内存。查找的编号预先随机生成，模拟多个流的消息交错到达
+ */
+public class RegistryBenchmark {
+
+    private static final int TUNNELS = 100000;
+
+    private static final int LOOKUPS = 20000000;
+
+    private static final int PORTS = 5000;
+
+    private static Object[] channels = new Object[TUNNELS];
+
+    private static long[] ids = new long[1 << 20];
+
+    private static int[] ports = new int[1 << 20];
+
+    /** 保存计算结果 避免查找被 JIT 消除 */
+    private static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < TUNNELS; i++) {
+            channels[i] = new Object();
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + random.nextInt(TUNNELS);
+            ports[i] = 10000 + random.nextInt(PORTS);
+        }
+
+        long before = usedMemory();
+        Map<String, Object> stringMap = new ConcurrentHashMap<String, Object>();
+        for (int i = 0; i < TUNNELS; i++) {
+            stringMap.put(String.valueOf(i + 1), channels[i]);
+        }
+        long stringBytes = usedMemory() - before;
+
+        before = usedMemory();
+        ConcurrentLongMap<Object> longMap = new ConcurrentLongMap<Object>();
+        for (int i = 0; i < TUNNELS; i++) {
+            longMap.put(i + 1, channels[i]);
+        }
+        long longBytes = usedMemory() - before;
+
+        System.out.println("ConcurrentHashMap<String> 条目:" + stringMap.size() + " 内存:" + stringBytes / 1024 + "KB (每条 " + stringBytes / TUNNELS + "B)");
+        System.out.println("ConcurrentLongMap 条目:" + longMap.size() + " 内存:" + longBytes / 1024 + "KB (每条 " + longBytes / TUNNELS + "B)");
+
+        Map<Integer, Object> portMap = new ConcurrentHashMap<Integer, Object>();
+        AtomicReferenceArray<Object> portArray = new AtomicReferenceArray<Object>(65536);
+        for (int i = 0; i < PORTS; i++) {
+            portMap.put(10000 + i, channels[i]);
+            portArray.set(10000 + i, channels[i]);
+        }
+
+        // 先跑一轮预热
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            runString(stringMap, print);
+            runLong(longMap, print);
+            runPortMap(portMap, print);
+            runPortArray(portArray, print);
+        }
+    }
+
+    private static void runString(Map<String, Object> map, boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            // 消息中的流编号是数值 之前每次查找都要先转成字符串
+            sink += map.get(String.valueOf(ids[i & (ids.length - 1)])).hashCode();
+        }
+        print(print, "用户连接 ConcurrentHashMap<String>", System.nanoTime() - start, sink);
+    }
+
+    private static void runLong(ConcurrentLongMap<Object> map, boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += map.get(ids[i & (ids.length - 1)]).hashCode();
+        }
+        print(print, "用户连接 ConcurrentLongMap", System.nanoTime() - start, sink);
+    }
+
+    private static void runPortMap(Map<Integer, Object> map, boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += map.get(ports[i & (ports.length - 1)]).hashCode();
+        }
+        print(print, "端口 ConcurrentHashMap<Integer>", System.nanoTime() - start, sink);
+    }
+
+    private static void runPortArray(AtomicReferenceArray<Object> array, boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += array.get(ports[i & (ports.length - 1)]).hashCode();
+        }
+        print(print, "端口 AtomicReferenceArray", System.nanoTime() - start, sink);
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void print(boolean print, String name, long elapsed, long sink) {
+        blackhole = sink;
+        if (print) {
+            System.out.println(name + " 查找:" + LOOKUPS + " 耗时:" + elapsed / 1000000 + "ms (每次 " + String.format("%.1f", (double) elapsed / LOOKUPS) + "ns)");
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.xbrother.lanproxy.server.test;
 
-import com.xbrother.lanproxy.protocol.Compress;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
 public class ServerMainTest {
 
@@ -8,14 +12,14 @@ public class ServerMainTest {
 //        ProxyServerContainer.main(args);
 
         try {
-            testGzipCompress();
+            testStreamCompress();
         }catch (Exception e){
 
         }
 
     }
 
-    public static void testGzipCompress() throws Exception{
+    public static void testStreamCompress() throws Exception{
 
         byte[] bytes = ("周波好烦追软包追不追bcdjhcbcbcewyevfvfvbvbebvdfvfdfvfdvfv周波好烦追软包" +
                 "追不追bcdjhcbcbcewyevfvfvbvbebvdfvfdfvfdvfv周波好烦追软包追不追bcdjhcbcbcew" +
@@ -48,14 +52,22 @@ public class ServerMainTest {
                 "dfvf周波好烦追软包追不追bcdjhcbcbcewyevfvfvbvbebvdfvfdfvfdvfvdfvf周波好烦追软" +
                 "包追不追bcdjhcbcbcewyevfvfvbvbebvdfvfdfvfdvfvdfvf").getBytes();
 
-        byte[] newBytes = Compress.zlibCompress(bytes);
-
+        // 发送方与接收方各自一个上下文 同一个流的多个数据包共用压缩字典
+        StreamCompressor sender = new StreamCompressor();
+        StreamCompressor receiver = new StreamCompressor();
+        for (int i = 0; i < 3; i++) {
+            ByteBuf compressed = sender.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes));
 
-        System.out.println("压缩前大小:" + bytes.length + "\n压缩后大小:" + newBytes.length);
+            System.out.println("第" + (i + 1) + "个数据包 压缩前大小:" + bytes.length + " 压缩后大小:" + compressed.readableBytes());
 
-        byte[] deCompress  = Compress.zlibDeCompress(newBytes);
+            ByteBuf deCompress = receiver.decompress(ByteBufAllocator.DEFAULT, compressed);
 
-        System.out.println("解压后长度:" + deCompress.length );
+            System.out.println("解压后长度:" + deCompress.readableBytes() + " 内容一致:" + deCompress.equals(Unpooled.wrappedBuffer(bytes)));
+            compressed.release();
+            deCompress.release();
+        }
+        sender.release();
+        receiver.release();
 
 
     }
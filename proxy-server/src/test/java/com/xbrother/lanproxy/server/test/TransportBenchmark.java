@@ -0,0 +1,243 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xbrother.lanproxy.protocol.Transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * NIO 与 epoll 传输实现的对比测试
+ *
+ * 建连：并发建立短连接，统计每秒完成的连接数；
+ * 转发：多条连接经过一个中转服务器写入接收端，中转服务器按读写状态控制读取，统计吞吐。
+ * 当前系统不支持 epoll 时只测试 NIO
+ */
+public class TransportBenchmark {
+
+    private static final int THREADS = 4;
+
+    private static final int CONNECTIONS = 20000;
+
+    private static final int CONCURRENT_CONNECTS = 64;
+
+    private static final int STREAMS = 8;
+
+    private static final long BYTES_PER_STREAM = 256L * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** 建连测试中什么也不做的处理器 */
+    private static final ChannelHandler NOOP_HANDLER = new NoopHandler();
+
+    public static void main(String[] args) throws Exception {
+        Transport[] transports = Transport.select(Transport.AUTO).isEpoll() ? new Transport[] { Transport.select(Transport.NIO), Transport.select(Transport.EPOLL) }
+                : new Transport[] { Transport.select(Transport.NIO) };
+
+        for (Transport transport : transports) {
+            EventLoopGroup group = transport.newEventLoopGroup(THREADS);
+            try {
+                // 先跑一轮预热
+                connect(transport, group, false);
+                relay(transport, group, false);
+
+                connect(transport, group, true);
+                relay(transport, group, true);
+            } finally {
+                group.shutdownGracefully().sync();
+            }
+        }
+    }
+
+    private static void connect(Transport transport, EventLoopGroup group, boolean print) throws Exception {
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap.group(group).channel(transport.serverChannelClass()).option(ChannelOption.SO_BACKLOG, 1024).childHandler(NOOP_HANDLER);
+        Channel server = serverBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(transport.socketChannelClass()).handler(NOOP_HANDLER);
+
+        final Semaphore inFlight = new Semaphore(CONCURRENT_CONNECTS);
+        final CountDownLatch done = new CountDownLatch(CONNECTIONS);
+        final AtomicLong failed = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            inFlight.acquire();
+            bootstrap.connect(server.localAddress()).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        failed.incrementAndGet();
+                        inFlight.release();
+                        done.countDown();
+                        return;
+                    }
+
+                    future.channel().close().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            inFlight.release();
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        server.close().sync();
+
+        if (print) {
+            System.out.println((transport.isEpoll() ? "epoll" : "nio") + " 建连:" + CONNECTIONS + " 失败:" + failed.get() + " 耗时:" + elapsed / 1000000 + "ms" + " 速率:"
+                    + (long) (CONNECTIONS / (elapsed / 1e9)) + " 连接/秒");
+        }
+    }
+
+    private static void relay(final Transport transport, final EventLoopGroup group, boolean print) throws Exception {
+        final CountDownLatch received = new CountDownLatch(STREAMS);
+
+        // 接收端 收满一条流的数据后计数
+        ServerBootstrap sinkBootstrap = new ServerBootstrap();
+        sinkBootstrap.group(group).channel(transport.serverChannelClass()).childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            private long bytes;
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                                bytes += ((ByteBuf) msg).readableBytes();
+                                ReferenceCountUtil.release(msg);
+                                if (bytes == BYTES_PER_STREAM) {
+                                    received.countDown();
+                                }
+                            }
+                        });
+                    }
+                });
+        final Channel sink = sinkBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        // 中转服务器 每个连接对应一条到接收端的连接
+        ServerBootstrap relayBootstrap = new ServerBootstrap();
+        relayBootstrap.group(group).channel(transport.serverChannelClass()).childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.AUTO_READ, false).childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel inbound) throws Exception {
+                        inbound.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            private Channel outbound;
+
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                                Bootstrap bootstrap = new Bootstrap();
+                                bootstrap.group(inbound.eventLoop()).channel(transport.socketChannelClass()).option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                                        .handler(new ChannelInboundHandlerAdapter() {
+                                            @Override
+                                            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                                                inbound.config().setAutoRead(ctx.channel().isWritable());
+                                            }
+                                        });
+                                bootstrap.connect(sink.localAddress()).addListener(new ChannelFutureListener() {
+                                    @Override
+                                    public void operationComplete(ChannelFuture future) throws Exception {
+                                        outbound = future.channel();
+                                        inbound.config().setAutoRead(true);
+                                    }
+                                });
+                            }
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                                outbound.write(msg, outbound.voidPromise());
+                            }
+
+                            @Override
+                            public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+                                outbound.flush();
+                                if (!outbound.isWritable()) {
+                                    inbound.config().setAutoRead(false);
+                                }
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                                if (outbound != null) {
+                                    outbound.close();
+                                }
+                            }
+                        });
+                    }
+                });
+        Channel relay = relayBootstrap.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        // 发送端 按可写状态持续写入
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(transport.socketChannelClass()).option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                    private long sent;
+
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                        send(ctx);
+                    }
+
+                    @Override
+                    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                        send(ctx);
+                    }
+
+                    private void send(ChannelHandlerContext ctx) {
+                        while (ctx.channel().isWritable() && sent < BYTES_PER_STREAM) {
+                            int size = (int) Math.min(CHUNK_SIZE, BYTES_PER_STREAM - sent);
+                            ctx.write(ctx.alloc().buffer(size).writeZero(size), ctx.voidPromise());
+                            sent += size;
+                        }
+                        ctx.flush();
+                    }
+                });
+            }
+        });
+
+        Channel[] senders = new Channel[STREAMS];
+        long start = System.nanoTime();
+        for (int i = 0; i < STREAMS; i++) {
+            senders[i] = bootstrap.connect(relay.localAddress()).sync().channel();
+        }
+        received.await();
+        long elapsed = System.nanoTime() - start;
+
+        for (Channel sender : senders) {
+            sender.close().sync();
+        }
+        relay.close().sync();
+        sink.close().sync();
+
+        if (print) {
+            long total = STREAMS * BYTES_PER_STREAM;
+            System.out.println((transport.isEpoll() ? "epoll" : "nio") + " 转发:" + total / (1024 * 1024) + "MB 耗时:" + elapsed / 1000000 + "ms" + " 吞吐:"
+                    + String.format("%.1f", total / (1024.0 * 1024) / (elapsed / 1e9)) + " MB/秒");
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class NoopHandler extends ChannelInboundHandlerAdapter {
+    }
+}
@@ -0,0 +1,133 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.xbrother.lanproxy.protocol.Constants;
+import com.xbrother.lanproxy.protocol.ProtocolVersion;
+import com.xbrother.lanproxy.protocol.RawRelayHandler;
+import com.xbrother.lanproxy.protocol.StreamCompressor;
+import com.xbrother.lanproxy.protocol.StreamWindow;
+import com.xbrother.lanproxy.server.TunnelSession;
+import com.xbrother.lanproxy.server.metrics.MetricsCollector;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 转发每条消息时查找转发状态的开销对比
+ *
+ * 之前：统计处理器每次读写都从 localAddress() 取端口再查找统计对象，用户连接的处理器逐个读取
+ * NEXT_CHANNEL、透传标记、流窗口、协议版本、用户编号和压缩上下文等连接属性，数据连接读取 NEXT_CHANNEL 找到用户连接。
+ * 之后：用户连接的处理器直接持有 {@link TunnelSession}，数据连接通过一个属性找到会话。
+ *
+ * 每一轮模拟一条上传消息和一条下载消息，在多个连接之间轮转，避免所有状态都在 CPU 缓存中
+ */
+public class TunnelSessionBenchmark {
+
+    private static final int TUNNELS = 1000;
+
+    private static final int ROUNDS = 20000000;
+
+    private static Channel[] userChannels = new Channel[TUNNELS];
+
+    private static Channel[] dataChannels = new Channel[TUNNELS];
+
+    private static TunnelSession[] sessions = new TunnelSession[TUNNELS];
+
+    /** 保存计算结果 避免查找被 JIT 消除 */
+    private static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < TUNNELS; i++) {
+            userChannels[i] = new InetEmbeddedChannel(new InetSocketAddress("127.0.0.1", 20000 + i % 50));
+            dataChannels[i] = new InetEmbeddedChannel(new InetSocketAddress("127.0.0.1", 4900));
+            ProtocolVersion.set(dataChannels[i], ProtocolVersion.V2);
+            userChannels[i].attr(Constants.USER_ID).set(String.valueOf(i));
+
+            sessions[i] = TunnelSession.open(userChannels[i]);
+            sessions[i].bind(dataChannels[i]);
+        }
+
+        // 先跑一轮预热
+        runAttributes(false);
+        runSession(false);
+
+        runAttributes(true);
+        runSession(true);
+    }
+
+    private static void runAttributes(boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            int index = i % TUNNELS;
+            Channel userChannel = userChannels[index];
+
+            // 上传 BytesMetricsHandler.channelRead + UserChannelHandler.channelRead0
+            MetricsCollector collector = MetricsCollector.getCollector(((InetSocketAddress) userChannel.localAddress()).getPort());
+            Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
+            boolean raw = RawRelayHandler.isRaw(proxyChannel);
+            StreamWindow window = StreamWindow.get(userChannel);
+            boolean v2 = ProtocolVersion.isV2(proxyChannel);
+            String userId = userChannel.attr(Constants.USER_ID).get();
+            StreamCompressor compressor = StreamCompressor.get(userChannel);
+            sink += collector.hashCode() + proxyChannel.hashCode() + (raw ? 1 : 0) + (window == null ? 0 : 1) + (v2 ? 1 : 0) + userId.length() + (compressor == null ? 0 : 1);
+
+            // 下载 ServerChannelHandler.handleTransferMessage + BytesMetricsHandler.write
+            Channel peer = dataChannels[index].attr(Constants.NEXT_CHANNEL).get();
+            collector = MetricsCollector.getCollector(((InetSocketAddress) peer.localAddress()).getPort());
+            sink += peer.hashCode() + collector.hashCode();
+        }
+        print(print, "连接属性", System.nanoTime() - start, sink);
+    }
+
+    private static void runSession(boolean print) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            int index = i % TUNNELS;
+            TunnelSession session = sessions[index];
+
+            // 上传 处理器字段中的会话
+            MetricsCollector collector = session.getMetrics();
+            Channel proxyChannel = session.getDataChannel();
+            boolean raw = session.isRaw();
+            StreamWindow window = session.getWindow();
+            boolean v2 = session.isV2();
+            String userId = session.getUserId();
+            StreamCompressor compressor = session.getCompressor();
+            sink += collector.hashCode() + proxyChannel.hashCode() + (raw ? 1 : 0) + (window == null ? 0 : 1) + (v2 ? 1 : 0) + (userId == null ? 0 : userId.length())
+                    + (compressor == null ? 0 : 1);
+
+            // 下载 数据连接上的会话属性
+            TunnelSession peerSession = TunnelSession.get(dataChannels[index]);
+            sink += peerSession.getUserChannel().hashCode() + peerSession.getMetrics().hashCode();
+        }
+        print(print, "会话对象", System.nanoTime() - start, sink);
+    }
+
+    private static void print(boolean print, String name, long elapsed, long sink) {
+        blackhole = sink;
+        if (print) {
+            System.out.println(name + " 轮数:" + ROUNDS + " 耗时:" + elapsed / 1000000 + "ms (每轮 " + String.format("%.1f", (double) elapsed / ROUNDS) + "ns)");
+        }
+    }
+
+    /**
+     * 本地地址为 InetSocketAddress 的 EmbeddedChannel 与用户连接一样可以取到代理端口
+     */
+    private static final class InetEmbeddedChannel extends EmbeddedChannel {
+
+        private final InetSocketAddress localAddress;
+
+        private InetEmbeddedChannel(InetSocketAddress localAddress) {
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return localAddress;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.xbrother.lanproxy.server.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xbrother.lanproxy.protocol.Transport;
+import com.xbrother.lanproxy.server.UserPortBinder;
+import com.xbrother.lanproxy.server.UserPortBinder.Report;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * 大量用户端口的启动绑定和配置更新的耗时对比
+ *
+ * 之前：逐个端口同步等待绑定完成；配置变化时重新创建 ServerBootstrap 并再次绑定全部端口，已经绑定的端口逐个抛出 BindException。
+ * 之后：{@link UserPortBinder} 共用一个 ServerBootstrap，一次发起全部绑定，在回调中汇总结果，配置变化时只绑定新增的端口。
+ *
+ * 端口范围内被其他程序占用的端口计入失败，不影响对比
+ */
+public class UserPortBindBenchmark {
+
+    private static final int PORTS = 5000;
+
+    private static final int FIRST_PORT = 40000;
+
+    /** 配置更新时新增的端口数 */
+    private static final int ADDED_PORTS = 50;
+
+    /** 什么也不做的处理器 */
+    private static final ChannelHandler NOOP_HANDLER = new NoopHandler();
+
+    public static void main(String[] args) throws Exception {
+        Transport transport = Transport.select(Transport.AUTO);
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(0);
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(1);
+
+        List<Integer> ports = new ArrayList<Integer>();
+        for (int i = 0; i < PORTS; i++) {
+            ports.add(FIRST_PORT + i);
+        }
+        List<Integer> reloadPorts = new ArrayList<Integer>(ports);
+        for (int i = 0; i < ADDED_PORTS; i++) {
+            reloadPorts.add(FIRST_PORT + PORTS + i);
+        }
+
+        System.out.println("传输:" + (transport.isEpoll() ? "epoll" : "nio") + " 端口:" + PORTS + " 新增:" + ADDED_PORTS);
+        try {
+            // 先跑一轮预热
+            for (int round = 0; round < 2; round++) {
+                boolean print = round == 1;
+                runSequential(transport, bossGroup, workerGroup, ports, reloadPorts, print);
+                runParallel(transport, bossGroup, workerGroup, ports, reloadPorts, print);
+            }
+        } finally {
+            bossGroup.shutdownGracefully().sync();
+            workerGroup.shutdownGracefully().sync();
+        }
+    }
+
+    private static void runSequential(Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup, List<Integer> ports, List<Integer> reloadPorts,
+            boolean print) {
+        List<Channel> channels = new ArrayList<Channel>();
+
+        long start = System.nanoTime();
+        int failed = bindSequential(newBootstrap(transport, bossGroup, workerGroup), ports, channels);
+        long startup = System.nanoTime() - start;
+
+        // 配置变化 重新创建 ServerBootstrap 绑定全部端口
+        start = System.nanoTime();
+        int reloadFailed = bindSequential(newBootstrap(transport, bossGroup, workerGroup), reloadPorts, channels);
+        long reload = System.nanoTime() - start;
+
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        if (print) {
+            System.out.println("逐个同步绑定 启动:" + startup / 1000000 + "ms (成功 " + (ports.size() - failed) + " 失败 " + failed + ") 配置更新:" + reload / 1000000
+                    + "ms (失败 " + reloadFailed + ")");
+        }
+    }
+
+    private static int bindSequential(ServerBootstrap bootstrap, List<Integer> ports, List<Channel> channels) {
+        int failed = 0;
+        for (int port : ports) {
+            try {
+                channels.add(bootstrap.bind(port).sync().channel());
+            } catch (Exception ex) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static void runParallel(Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup, List<Integer> ports, List<Integer> reloadPorts,
+            boolean print) {
+        UserPortBinder binder = new UserPortBinder(newBootstrap(transport, bossGroup, workerGroup));
+
+        Report startup = binder.bind(ports).awaitUninterruptibly().getNow();
+        // 配置变化 只有新增的端口需要绑定
+        Report reload = binder.bind(reloadPorts.subList(ports.size(), reloadPorts.size())).awaitUninterruptibly().getNow();
+
+        long start = System.nanoTime();
+        binder.unbindAll().awaitUninterruptibly();
+        long unbind = System.nanoTime() - start;
+        if (print) {
+            System.out.println("共用并发绑定 启动:" + startup.getElapsedMillis() + "ms (成功 " + startup.getBound() + " 失败 " + (startup.getInUse().size() + startup.getFailed().size())
+                    + ") 配置更新:" + reload.getElapsedMillis() + "ms 解绑:" + unbind / 1000000 + "ms");
+        }
+    }
+
+    private static ServerBootstrap newBootstrap(Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup).channel(transport.serverChannelClass()).childHandler(NOOP_HANDLER);
+        transport.configure(bootstrap, 1, 0, 0);
+        return bootstrap;
+    }
+
+    @ChannelHandler.Sharable
+    private static final class NoopHandler extends ChannelInboundHandlerAdapter {
+    }
+}